@@ -2,6 +2,8 @@ drop table medico cascade constraints;
 drop table cliente cascade constraints;
 drop table anulacion cascade constraints;
 drop table consulta cascade constraints;
+drop table ocupacion cascade constraints;
+drop table medico_consultas cascade constraints;
 
 
 drop sequence seq_medico;
@@ -28,6 +30,9 @@ create table medico(
 	consultas int not null check (consultas >= 0)
 );
 
+--Busqueda de los medicos de una especialidad (medicos_especialidad)
+create index medico_especialidad on medico(especialidad);
+
 create sequence seq_consulta;
 create table consulta (
 	id_consulta	integer primary key,
@@ -44,6 +49,31 @@ create table anulacion (
 	motivo_anulacion varchar(100) not null
 );
 
+--Consultas no anuladas: una fila por medico y fecha ocupados. La clave primaria
+--rechaza una segunda reserva en la misma fecha, incluso entre sesiones
+--concurrentes, sin contar las consultas y anulaciones anteriores.
+create table ocupacion (
+	id_medico integer not null references medico,
+	fecha_consulta date not null,
+	id_consulta integer not null references consulta,
+	primary key (id_medico, fecha_consulta)
+);
+
+--Recorre en orden las consultas de un medico para la paginacion por clave
+--(fecha_consulta, id_consulta) sin ordenar ni visitar la tabla
+create index ocupacion_pagina on ocupacion(id_medico, fecha_consulta, id_consulta);
+
+--Contador de consultas repartido: en ese modo cada reserva o anulacion suma
+--su incremento a una de varias filas del medico en lugar de a su fila de
+--medico. El total es medico.consultas mas la suma de los delta, y el plegado
+--periodico pasa los delta a medico.consultas.
+create table medico_consultas (
+	id_medico integer not null references medico,
+	fila integer not null,
+	delta integer not null,
+	primary key (id_medico, fila)
+);
+
 
 
 create or replace procedure reset_seq( p_seq_name varchar ) is
@@ -78,6 +108,8 @@ begin
  
        
 	
+	delete from ocupacion;
+	delete from medico_consultas;
 	delete from anulacion;
 	delete from consulta; 
 	delete from cliente;
@@ -97,10 +129,149 @@ begin
 
 
 	insert into anulacion values (seq_anulacion.nextval, 1 , to_date('24/02/2023', 'DD/MM/YYYY'), 'Enfermedad infecciosa');
+
+	insert into ocupacion values (2, to_date( '25/03/2022', 'DD/MM/YYYY'), 2);
     
 	
     commit;
 end;
 /
 
+-- Procedimientos para ejecutar las transacciones en el servidor con una sola
+-- llamada. Los errores se senalan con raise_application_error(-(20000 + codigo))
+-- donde codigo es el de GestionMedicosException.
+
+--Suma el incremento al contador de consultas del medico con las reglas de
+--ContadorConsultas: si el medico tiene filas en medico_consultas se suma a
+--una de ellas al azar (8 = NUMERO_FILAS) y, si no, a medico.consultas. Los
+--decrementos bloquean antes la fila de medico, para hacerse de uno en uno, y
+--comprueban que el total no queda negativo (ORA-02290, como la restriccion).
+create or replace procedure pr_sumar_consultas( p_id_medico integer, p_incremento integer ) is
+    v_id_medico medico.id_medico%type;
+    v_total integer;
+    v_fila integer;
+    check_violado exception;
+    pragma exception_init( check_violado, -2290 );
+begin
+    if p_incremento < 0 then
+        select id_medico into v_id_medico from medico where id_medico = p_id_medico for update;
+    end if;
+
+    -- La fila se elige una vez: en el WHERE se sortearia fila a fila
+    v_fila := trunc(dbms_random.value(0, 8));
+    update medico_consultas set delta = delta + p_incremento
+     where id_medico = p_id_medico and fila = v_fila;
+
+    if sql%rowcount = 0 then
+        update medico set consultas = consultas + p_incremento where id_medico = p_id_medico;
+    elsif p_incremento < 0 then
+        select consultas + nvl((select sum(delta) from medico_consultas
+                                 where medico_consultas.id_medico = medico.id_medico), 0)
+          into v_total from medico where id_medico = p_id_medico;
+        if v_total < 0 then
+            raise check_violado;
+        end if;
+    end if;
+end;
+/
+
+create or replace procedure pr_reservar_consulta( p_nif_cliente varchar, p_nif_medico varchar,
+                                                  p_fecha date ) is
+    v_id_medico medico.id_medico%type;
+    fk_violada exception;
+    pragma exception_init( fk_violada, -2291 );
+begin
+    begin
+        select id_medico into v_id_medico from medico where NIF = p_nif_medico;
+    exception
+        when no_data_found then
+            raise_application_error( -20002, 'Medico inexistente' );
+    end;
+
+    insert into consulta values (seq_consulta.nextval, p_fecha, v_id_medico, p_nif_cliente);
+    insert into ocupacion values (v_id_medico, p_fecha, seq_consulta.currval);
+
+    pr_sumar_consultas( v_id_medico, 1 );
+
+    commit;
+exception
+    when fk_violada then
+        rollback;
+        raise_application_error( -20001, 'Cliente inexistente' );
+    when dup_val_on_index then
+        rollback;
+        raise_application_error( -20003, 'Medico ocupado' );
+end;
+/
+
+create or replace procedure pr_anular_consulta( p_nif_cliente varchar, p_nif_medico varchar,
+                                                p_fecha date, p_fecha_anulacion date,
+                                                p_motivo varchar ) is
+    v_nif_cliente cliente.NIF%type;
+    v_id_medico medico.id_medico%type;
+    v_id_consulta consulta.id_consulta%type;
+    v_existe integer;
+begin
+    if p_motivo is null then
+        raise_application_error( -20006, 'Se debe indicar un motivo para la anulacion' );
+    end if;
+
+    begin
+        select NIF into v_nif_cliente from cliente where NIF = p_nif_cliente;
+    exception
+        when no_data_found then
+            raise_application_error( -20001, 'Cliente inexistente' );
+    end;
+
+    begin
+        select id_medico into v_id_medico from medico where NIF = p_nif_medico;
+    exception
+        when no_data_found then
+            raise_application_error( -20002, 'Medico inexistente' );
+    end;
+
+    if trunc(p_fecha) - trunc(p_fecha_anulacion) < 2 then
+        raise_application_error( -20005, 'La Consulta no se puede anular para la fecha introducida' );
+    end if;
+
+    --Se libera la fecha ocupada por la consulta del cliente
+    delete from ocupacion
+     where id_medico = v_id_medico and fecha_consulta = p_fecha
+       and id_consulta in (select id_consulta from consulta where NIF = p_nif_cliente)
+    returning id_consulta into v_id_consulta;
+
+    if sql%rowcount = 0 then
+        select count(*) into v_existe from consulta where fecha_consulta = p_fecha;
+        if v_existe = 0 then
+            raise_application_error( -20004, 'Consulta inexistente' );
+        end if;
+        raise_application_error( -20005, 'La Consulta ya esta anulada' );
+    end if;
+
+    insert into anulacion values (seq_anulacion.nextval, v_id_consulta, p_fecha_anulacion, p_motivo);
+    pr_sumar_consultas( v_id_medico, -1 );
+
+    commit;
+end;
+/
+
+create or replace procedure pr_consulta_medico( p_nif_medico varchar, p_id_medico out integer,
+                                                p_consultas out sys_refcursor ) is
+begin
+    begin
+        select id_medico into p_id_medico from medico where NIF = p_nif_medico;
+    exception
+        when no_data_found then
+            raise_application_error( -20002, 'Medico inexistente' );
+    end;
+
+    open p_consultas for
+        select id_consulta, fecha_consulta, id_medico, NIF
+          from consulta
+         where id_medico = p_id_medico
+           and not exists ( select * from anulacion where anulacion.id_consulta = consulta.id_consulta )
+         order by fecha_consulta;
+end;
+/
+
 exit;
@@ -1,13 +1,19 @@
 package lsi.ubu.enunciado;
 
 import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * GestionMedicosException:
  * Implementa las excepciones contextualizadas de la transacciones
- * de gestion de medicos
+ * de gestion de medicos. Son el resultado normal de muchas peticiones
+ * (por ejemplo MEDICO_OCUPADO), por lo que no capturan la traza de pila:
+ * solo lo hace una de cada N si se activa el muestreo con la propiedad
+ * PROPIEDAD_MUESTREO o con setMuestreoTraza, y esas se registran con su
+ * traza.
  * 
  * @author <a href="mailto:jmaudes@ubu.es">Jesus Maudes</a>
  * @author <a href="mailto:rmartico@ubu.es">Raul Marticorena</a>
@@ -25,6 +31,15 @@ public class GestionMedicosException extends SQLException {
 	public static final int CONSULTA_NO_EXISTE = 4;
 	public static final int CONSULTA_NO_ANULA = 5;
 	public static final int MOTIVO_NULL = 6;
+	public static final int SISTEMA_OCUPADO = 7;
+
+	/**
+	 * Propiedad de sistema con el muestreo de trazas: N para registrar la traza
+	 * de una de cada N excepciones (en media), 0 (por defecto) para ninguna.
+	 */
+	public static final String PROPIEDAD_MUESTREO = "gestionMedicos.muestreoTraza";
+
+	private static volatile int muestreoTraza = Integer.getInteger(PROPIEDAD_MUESTREO, 0);
 
 	private int codigo; // = -1;
 	private String mensaje;
@@ -33,7 +48,6 @@ public class GestionMedicosException extends SQLException {
 
 	public GestionMedicosException(int code) {
 		codigo = code;
-		String mensaje = null;
 
 		switch (code) {
 		case CLIENTE_NO_EXISTE:
@@ -54,17 +68,42 @@ public class GestionMedicosException extends SQLException {
 		case MOTIVO_NULL:
 			mensaje = "Se debe indicar un motivo para la anulación";
 			break;
+		case SISTEMA_OCUPADO:
+			mensaje = "Sistema ocupado, inténtelo más tarde";
+			break;
 		}					
 
-		l.error(mensaje);
+		l.debug(mensaje);
 
-		// Traza_de_pila
-		for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-			l.info(ste.toString());
+		// Traza_de_pila, solo en las excepciones muestreadas
+		int muestreo = muestreoTraza;
+		if (muestreo > 0 && ThreadLocalRandom.current().nextInt(muestreo) == 0) {
+			super.fillInStackTrace();
+			l.info("Traza de pila de la excepción " + codigo + ": " + mensaje, this);
 		}
 
 	}
 
+	/**
+	 * setMuestreoTraza: Cambia el muestreo de trazas.
+	 * 
+	 * @param muestreo N para registrar la traza de una de cada N excepciones,
+	 *                 0 para ninguna
+	 */
+	public static void setMuestreoTraza(int muestreo) {
+		muestreoTraza = Math.max(0, muestreo);
+	}
+
+	public static int getMuestreoTraza() {
+		return muestreoTraza;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() { // No se recorre la pila
+														// al crearla
+		return this;
+	}
+
 	@Override
 	public String getMessage() { // Redefinicion del metodo de la clase
 									// Exception
@@ -0,0 +1,411 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.CacheLRU;
+import lsi.ubu.util.FiltroBloom;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * CacheReferencias: Caché en memoria de los datos de referencia que consultan
+ * todas las transacciones: el id_medico de cada NIF de médico y los NIF de
+ * clientes que existen. Solo se guardan los NIF encontrados, de modo que un
+ * NIF desconocido siempre se vuelve a buscar en la base de datos. Las cachés
+ * tienen tamaño acotado (LRU) y tiempo de vida, se pueden precargar con una
+ * lectura de cada tabla y se invalidan al modificar sus filas. Los aciertos y
+ * fallos se publican por JMX.
+ * <p>
+ * La misma lectura construye un filtro de Bloom con todos los NIF de cada
+ * tabla, que descarta sin ir a la base de datos (ni pedir conexión al pool)
+ * los NIF que seguro que no existen, como los mal tecleados. Mientras no se ha
+ * construido, o tras invalidarTodo, todos los NIF se buscan en la base de
+ * datos. Las altas de médicos y clientes se deben notificar con
+ * registrarMedico y registrarCliente; las hechas fuera de la aplicación no las
+ * ve el filtro hasta que se reconstruye. Por eso los filtros caducan a los
+ * TIEMPO_VIDA_FILTROS_MS de empezar a leerlos: a partir de entonces no se
+ * consultan (todos los NIF se buscan en la base de datos) y se reconstruyen
+ * en segundo plano con precargar.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class CacheReferencias {
+
+	/** Número máximo de médicos en caché. */
+	public static final int MAX_MEDICOS = 10000;
+
+	/** Número máximo de clientes en caché. */
+	public static final int MAX_CLIENTES = 100000;
+
+	/** Tiempo de vida de cada entrada. */
+	public static final long TIEMPO_VIDA_MS = TimeUnit.MINUTES.toMillis(10);
+
+	/** Elementos mínimos para los que se dimensiona cada filtro de Bloom. */
+	public static final int ELEMENTOS_FILTRO = 10000;
+
+	/** Probabilidad de falsos positivos de los filtros de Bloom. */
+	public static final double PROBABILIDAD_FALSOS = 0.01;
+
+	/**
+	 * Tiempo durante el que se confía en los filtros de Bloom, contado desde
+	 * que se empezaron a leer las tablas; es lo más que tarda en verse un alta
+	 * hecha fuera de la aplicación.
+	 */
+	public static final long TIEMPO_VIDA_FILTROS_MS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final String SEL_TODOS_MEDICOS = "select NIF, id_medico from medico";
+
+	private static final String SEL_TODOS_CLIENTES = "select NIF from cliente";
+
+	private static Logger logger = LoggerFactory.getLogger(CacheReferencias.class);
+
+	private static final CacheLRU<String, Integer> medicos = new CacheLRU<String, Integer>(MAX_MEDICOS,
+			TIEMPO_VIDA_MS);
+
+	private static final CacheLRU<String, Boolean> clientes = new CacheLRU<String, Boolean>(MAX_CLIENTES,
+			TIEMPO_VIDA_MS);
+
+	private static volatile FiltroBloom filtroMedicos;
+	private static volatile FiltroBloom filtroClientes;
+
+	/* Filtros en construcción, que también reciben las altas registradas */
+	private static volatile FiltroBloom nuevoFiltroMedicos;
+	private static volatile FiltroBloom nuevoFiltroClientes;
+
+	/* Solo se hace una precarga a la vez */
+	private static final Object cerrojoPrecarga = new Object();
+
+	/* Momento (System.nanoTime) en que caducan los filtros en uso */
+	private static volatile long caducidadFiltros;
+
+	/* Hay una reconstrucción de los filtros en segundo plano en marcha */
+	private static final AtomicBoolean reconstruyendo = new AtomicBoolean();
+
+	private static final LongAdder rechazados = new LongAdder();
+
+	static {
+		medicos.registrarJMX("medicos");
+		clientes.registrarJMX("clientes");
+	}
+
+	private CacheReferencias() {
+	}
+
+	/**
+	 * idMedico: Identificador del médico con un NIF, de la caché o, si no está,
+	 * de la base de datos.
+	 *
+	 * @param con Conexión que se usa si hay que buscarlo
+	 * @param nif NIF del médico
+	 * @return id_medico, o null si no existe
+	 * @throws SQLException
+	 */
+	public static Integer idMedico(Connection con, String nif) throws SQLException {
+		Integer id = medicos.get(nif);
+		if (id != null) {
+			return id;
+		}
+		if (!puedeExistirMedico(nif)) {
+			return null;
+		}
+		PreparedStatement pst_sel_medico = SentenciaSQL.SEL_MEDICO.preparar(con);
+		try {
+			pst_sel_medico.setString(1, nif);
+			try (ResultSet rs_sel_medico = pst_sel_medico.executeQuery()) {
+				if (!rs_sel_medico.next()) {
+					return null;
+				}
+				id = rs_sel_medico.getInt(1);
+			}
+		} finally {
+			pst_sel_medico.close();
+		}
+		medicos.put(nif, id);
+		return id;
+	}
+
+	/**
+	 * existeCliente: Indica si existe un cliente, según la caché o, si no está,
+	 * la base de datos.
+	 *
+	 * @param con Conexión que se usa si hay que buscarlo
+	 * @param nif NIF del cliente
+	 * @return true si existe
+	 * @throws SQLException
+	 */
+	public static boolean existeCliente(Connection con, String nif) throws SQLException {
+		if (clientes.get(nif) != null) {
+			return true;
+		}
+		if (!puedeExistirCliente(nif)) {
+			return false;
+		}
+		PreparedStatement pst_sel_cliente = SentenciaSQL.SEL_CLIENTE.preparar(con);
+		try {
+			pst_sel_cliente.setString(1, nif);
+			try (ResultSet rs_sel_cliente = pst_sel_cliente.executeQuery()) {
+				if (!rs_sel_cliente.next()) {
+					return false;
+				}
+			}
+		} finally {
+			pst_sel_cliente.close();
+		}
+		clientes.put(nif, Boolean.TRUE);
+		return true;
+	}
+
+	/**
+	 * idMedicoEnCache: Identificador del médico si está en la caché, sin acceder
+	 * a la base de datos.
+	 *
+	 * @param nif NIF del médico
+	 * @return id_medico, o null si no está en la caché
+	 */
+	public static Integer idMedicoEnCache(String nif) {
+		return medicos.get(nif);
+	}
+
+	/**
+	 * clienteEnCache: Indica si se sabe que el cliente existe, sin acceder a la
+	 * base de datos.
+	 *
+	 * @param nif NIF del cliente
+	 * @return true si está en la caché
+	 */
+	public static boolean clienteEnCache(String nif) {
+		return clientes.get(nif) != null;
+	}
+
+	/**
+	 * puedeExistirMedico: Consulta el filtro de Bloom de médicos, sin acceder a
+	 * la base de datos.
+	 *
+	 * @param nif NIF del médico
+	 * @return false si seguro que no existe, true si puede existir
+	 */
+	public static boolean puedeExistirMedico(String nif) {
+		return puedeExistir(filtroMedicos, nif);
+	}
+
+	/**
+	 * puedeExistirCliente: Consulta el filtro de Bloom de clientes, sin acceder
+	 * a la base de datos.
+	 *
+	 * @param nif NIF del cliente
+	 * @return false si seguro que no existe, true si puede existir
+	 */
+	public static boolean puedeExistirCliente(String nif) {
+		return puedeExistir(filtroClientes, nif);
+	}
+
+	private static boolean puedeExistir(FiltroBloom filtro, String nif) {
+		if (filtro == null || nif == null || filtro.puedeContener(nif)) {
+			return true;
+		}
+		if (System.nanoTime() - caducidadFiltros > 0) {
+			// Puede faltar un alta hecha fuera de la aplicación: lo decide la base de datos
+			reconstruirFiltros();
+			return true;
+		}
+		rechazados.increment();
+		return false;
+	}
+
+	/**
+	 * reconstruirFiltros: Lanza precargar en un hilo aparte, salvo que ya haya
+	 * una reconstrucción en marcha.
+	 */
+	private static void reconstruirFiltros() {
+		if (!reconstruyendo.compareAndSet(false, true)) {
+			return;
+		}
+		Thread hilo = new Thread(() -> {
+			try {
+				precargar();
+			} catch (SQLException e) {
+				logger.warn("No se han podido reconstruir los filtros de Bloom: " + e.getMessage());
+			} finally {
+				reconstruyendo.set(false);
+			}
+		}, "reconstruccion-filtros-bloom");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	/**
+	 * registrarMedico: Se debe llamar tras confirmar el alta de un médico.
+	 *
+	 * @param nif      NIF del médico
+	 * @param idMedico Identificador asignado
+	 */
+	public static void registrarMedico(String nif, int idMedico) {
+		anadir(filtroMedicos, nuevoFiltroMedicos, nif);
+		medicos.put(nif, idMedico);
+	}
+
+	/**
+	 * registrarCliente: Se debe llamar tras confirmar el alta de un cliente.
+	 *
+	 * @param nif NIF del cliente
+	 */
+	public static void registrarCliente(String nif) {
+		anadir(filtroClientes, nuevoFiltroClientes, nif);
+		clientes.put(nif, Boolean.TRUE);
+	}
+
+	private static void anadir(FiltroBloom filtro, FiltroBloom nuevo, String nif) {
+		if (filtro != null)
+			filtro.anadir(nif);
+		if (nuevo != null)
+			nuevo.anadir(nif);
+	}
+
+	/**
+	 * precargar: Recorre todos los médicos y clientes con una lectura de cada
+	 * tabla, trayendo las filas de GestionMedicos.TAMANO_FETCH en
+	 * GestionMedicos.TAMANO_FETCH. Carga las cachés hasta su tamaño máximo y
+	 * reconstruye los filtros de Bloom con todos los NIF, sustituyendo a los
+	 * anteriores al terminar; los nuevos caducan a los TIEMPO_VIDA_FILTROS_MS
+	 * de empezar la lectura. Si ya hay una precarga en marcha (por ejemplo la
+	 * reconstrucción en segundo plano) espera a que termine.
+	 *
+	 * @return Número de filas leídas
+	 * @throws SQLException
+	 */
+	public static int precargar() throws SQLException {
+		synchronized (cerrojoPrecarga) {
+			return precargarFiltros();
+		}
+	}
+
+	/* Cuerpo de precargar, con cerrojoPrecarga tomado */
+	private static int precargarFiltros() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
+		Connection con = null;
+		PreparedStatement pst_sel_medicos = null;
+		PreparedStatement pst_sel_clientes = null;
+		ResultSet rs_sel_medicos = null;
+		ResultSet rs_sel_clientes = null;
+		int cargadas = 0;
+		long caducidad = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIEMPO_VIDA_FILTROS_MS);
+		FiltroBloom filtroMedicosNuevo = new FiltroBloom(tamanoFiltro(filtroMedicos), PROBABILIDAD_FALSOS);
+		FiltroBloom filtroClientesNuevo = new FiltroBloom(tamanoFiltro(filtroClientes), PROBABILIDAD_FALSOS);
+		// Se publican solo para que registrarMedico y registrarCliente los completen
+		nuevoFiltroMedicos = filtroMedicosNuevo;
+		nuevoFiltroClientes = filtroClientesNuevo;
+
+		try {
+			con = pool.getConnection();
+
+			pst_sel_medicos = con.prepareStatement(SEL_TODOS_MEDICOS);
+			pst_sel_medicos.setFetchSize(GestionMedicos.TAMANO_FETCH);
+			rs_sel_medicos = pst_sel_medicos.executeQuery();
+			while (rs_sel_medicos.next()) {
+				filtroMedicosNuevo.anadir(rs_sel_medicos.getString(1));
+				if (cargadas++ < MAX_MEDICOS)
+					medicos.put(rs_sel_medicos.getString(1), rs_sel_medicos.getInt(2));
+			}
+
+			pst_sel_clientes = con.prepareStatement(SEL_TODOS_CLIENTES);
+			pst_sel_clientes.setFetchSize(GestionMedicos.TAMANO_FETCH);
+			rs_sel_clientes = pst_sel_clientes.executeQuery();
+			int clientesCargados = 0;
+			while (rs_sel_clientes.next()) {
+				filtroClientesNuevo.anadir(rs_sel_clientes.getString(1));
+				if (clientesCargados++ < MAX_CLIENTES)
+					clientes.put(rs_sel_clientes.getString(1), Boolean.TRUE);
+			}
+			cargadas += clientesCargados;
+
+			con.commit();
+			caducidadFiltros = caducidad;
+			filtroMedicos = filtroMedicosNuevo;
+			filtroClientes = filtroClientesNuevo;
+			logger.info("Caché de referencias precargada con {} filas", cargadas);
+			return cargadas;
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (rs_sel_medicos != null)
+				rs_sel_medicos.close();
+			if (rs_sel_clientes != null)
+				rs_sel_clientes.close();
+			if (pst_sel_medicos != null)
+				pst_sel_medicos.close();
+			if (pst_sel_clientes != null)
+				pst_sel_clientes.close();
+			nuevoFiltroMedicos = null;
+			nuevoFiltroClientes = null;
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * tamanoFiltro: Elementos para los que se dimensiona un filtro nuevo: el
+	 * doble de los que tiene el actual, para dejar sitio a las altas.
+	 */
+	private static int tamanoFiltro(FiltroBloom actual) {
+		long elementos = actual == null ? 0 : actual.getElementos();
+		return (int) Math.min(Integer.MAX_VALUE / 2, Math.max(ELEMENTOS_FILTRO, 2 * elementos));
+	}
+
+	/**
+	 * invalidarMedico: Se debe llamar al modificar o borrar el médico.
+	 *
+	 * @param nif NIF del médico
+	 */
+	public static void invalidarMedico(String nif) {
+		medicos.invalidar(nif);
+	}
+
+	/**
+	 * invalidarCliente: Se debe llamar al borrar el cliente.
+	 *
+	 * @param nif NIF del cliente
+	 */
+	public static void invalidarCliente(String nif) {
+		clientes.invalidar(nif);
+	}
+
+	/**
+	 * invalidarTodo: Vacía las cachés y descarta los filtros de Bloom, por
+	 * ejemplo tras recargar las tablas. Hasta la siguiente llamada a precargar
+	 * todos los NIF se buscan en la base de datos.
+	 */
+	public static void invalidarTodo() {
+		filtroMedicos = null;
+		filtroClientes = null;
+		medicos.vaciar();
+		clientes.vaciar();
+	}
+
+	/**
+	 * informe: Contadores de las cachés.
+	 *
+	 * @return texto con una línea por caché
+	 */
+	public static String informe() {
+		return "Caché de referencias:\nmedicos: " + medicos + "\nclientes: " + clientes + "\nfiltro medicos: "
+				+ filtroMedicos + "\nfiltro clientes: " + filtroClientes + "\nNIF rechazados por los filtros: "
+				+ rechazados.sum();
+	}
+}
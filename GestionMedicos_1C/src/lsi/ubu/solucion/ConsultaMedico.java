@@ -0,0 +1,59 @@
+package lsi.ubu.solucion;
+
+import java.util.Date;
+
+/**
+ * ConsultaMedico: Consulta no anulada de un médico, tal como la devuelven las
+ * variantes de consulta_medico que entregan las filas una a una.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class ConsultaMedico {
+
+	private final int idConsulta;
+	private final Date fecha;
+	private final int idMedico;
+	private final String nifCliente;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param idConsulta Identificador de la consulta
+	 * @param fecha      Fecha de la consulta
+	 * @param idMedico   Identificador del médico
+	 * @param nifCliente NIF del paciente
+	 */
+	public ConsultaMedico(int idConsulta, Date fecha, int idMedico, String nifCliente) {
+		this.idConsulta = idConsulta;
+		this.fecha = fecha;
+		this.idMedico = idMedico;
+		this.nifCliente = nifCliente;
+	}
+
+	public int getIdConsulta() {
+		return idConsulta;
+	}
+
+	public Date getFecha() {
+		return fecha;
+	}
+
+	public int getIdMedico() {
+		return idMedico;
+	}
+
+	public String getNifCliente() {
+		return nifCliente;
+	}
+
+	/**
+	 * toString: Línea con la que consulta_medico imprime la consulta.
+	 */
+	@Override
+	public String toString() {
+		return "*Fecha: " + new java.sql.Date(fecha.getTime()) + "   *Consulta: " + idConsulta + "   *NIF Paciente: "
+				+ nifCliente;
+	}
+}
@@ -0,0 +1,325 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * ContadorConsultas: Actualiza el contador de consultas de los médicos. En el
+ * modo normal cada reserva o anulación suma su incremento a medico.consultas,
+ * de modo que todas las transacciones de un mismo médico esperan al bloqueo de
+ * su fila hasta que termina la anterior. En el modo repartido el incremento se
+ * suma a una de NUMERO_FILAS filas de medico_consultas elegida al azar, y
+ * transacciones simultáneas del mismo médico casi nunca coinciden en la misma
+ * fila. El total de un médico es medico.consultas más sus delta; plegar pasa
+ * periódicamente los delta a medico.consultas. Los decrementos de un médico
+ * bloquean antes su fila de medico, de modo que se hacen de uno en uno y cada
+ * uno comprueba el total con los anteriores ya confirmados; los incrementos no
+ * se esperan entre sí. Los procedimientos de gestion_medicos.sql siguen las
+ * mismas reglas con pr_sumar_consultas.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class ContadorConsultas {
+
+	/**
+	 * Propiedad de sistema que elige el modo del contador: "unico" (por
+	 * defecto) o "repartido".
+	 */
+	public static final String PROPIEDAD_CONTADOR = "gestionMedicos.contador";
+
+	/** Valor de PROPIEDAD_CONTADOR para el modo repartido. */
+	public static final String CONTADOR_REPARTIDO = "repartido";
+
+	/** Filas de medico_consultas de cada médico. */
+	public static final int NUMERO_FILAS = 8;
+
+	/** Código de Oracle de una restricción check violada. */
+	private static final int CHECK_VIOLADO = 2290;
+
+	private static Logger logger = LoggerFactory.getLogger(ContadorConsultas.class);
+
+	private static volatile boolean repartido = CONTADOR_REPARTIDO
+			.equalsIgnoreCase(System.getProperty(PROPIEDAD_CONTADOR));
+
+	private static ScheduledExecutorService planificador;
+
+	private ContadorConsultas() {
+	}
+
+	/**
+	 * setRepartido: Cambia el modo del contador. Antes de activar el modo
+	 * repartido hay que crear las filas con prepararFilas; los médicos sin
+	 * filas siguen usando medico.consultas.
+	 *
+	 * @param repartido true para el modo repartido
+	 */
+	public static void setRepartido(boolean repartido) {
+		ContadorConsultas.repartido = repartido;
+	}
+
+	public static boolean isRepartido() {
+		return repartido;
+	}
+
+	/**
+	 * sumar: Suma a cada médico su incremento de consultas dentro de la
+	 * transacción de con, con una sentencia por médico enviada en un único
+	 * executeBatch. En el modo repartido, si hay decrementos, comprueba después
+	 * que el total de esos médicos no queda negativo.
+	 *
+	 * @param con         Conexión de la transacción
+	 * @param incrementos id_medico -> incremento (negativo en las anulaciones)
+	 * @throws SQLException con el código de la restricción check si un total
+	 *                      queda negativo
+	 */
+	static void sumar(Connection con, Map<Integer, Integer> incrementos) throws SQLException {
+		if (incrementos.isEmpty()) {
+			return;
+		}
+		if (!repartido) {
+			sumarEnMedico(con, incrementos);
+			return;
+		}
+
+		bloquearDecrementos(con, incrementos);
+
+		Map<Integer, Integer> sinFilas = new HashMap<Integer, Integer>();
+		PreparedStatement pst_upd_contador = SentenciaSQL.UPD_CONTADOR_FILA.preparar(con);
+		try {
+			for (Map.Entry<Integer, Integer> incremento : incrementos.entrySet()) {
+				pst_upd_contador.setInt(1, incremento.getValue());
+				pst_upd_contador.setInt(2, incremento.getKey());
+				pst_upd_contador.setInt(3, ThreadLocalRandom.current().nextInt(NUMERO_FILAS));
+				if (pst_upd_contador.executeUpdate() == 0) {
+					sinFilas.put(incremento.getKey(), incremento.getValue());
+				}
+			}
+		} finally {
+			pst_upd_contador.close();
+		}
+		// Los médicos dados de alta después de prepararFilas no tienen filas
+		sumarEnMedico(con, sinFilas);
+
+		for (Map.Entry<Integer, Integer> incremento : incrementos.entrySet()) {
+			if (incremento.getValue() < 0 && total(con, incremento.getKey()) < 0) {
+				throw new SQLException("Restricción consultas >= 0 violada para el médico " + incremento.getKey(),
+						"23000", CHECK_VIOLADO);
+			}
+		}
+	}
+
+	/**
+	 * bloquearDecrementos: Bloquea, en orden de id_medico para no provocar
+	 * interbloqueos, la fila de medico de los médicos con decremento. Otro
+	 * decremento del mismo médico espera a que termine esta transacción, y la
+	 * lectura posterior del total ya ve lo que confirmó.
+	 */
+	private static void bloquearDecrementos(Connection con, Map<Integer, Integer> incrementos)
+			throws SQLException {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> incremento : incrementos.entrySet()) {
+			if (incremento.getValue() < 0) {
+				ids.add(incremento.getKey());
+			}
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+		Collections.sort(ids);
+		PreparedStatement pst_sel_bloqueo = SentenciaSQL.SEL_MEDICO_BLOQUEO.preparar(con);
+		try {
+			for (Integer id : ids) {
+				pst_sel_bloqueo.setInt(1, id);
+				pst_sel_bloqueo.executeQuery().close();
+			}
+		} finally {
+			pst_sel_bloqueo.close();
+		}
+	}
+
+	private static void sumarEnMedico(Connection con, Map<Integer, Integer> incrementos) throws SQLException {
+		if (incrementos.isEmpty()) {
+			return;
+		}
+		PreparedStatement pst_upd_medico = SentenciaSQL.UPD_MEDICO_CONSULTAS.preparar(con);
+		try {
+			for (Map.Entry<Integer, Integer> incremento : incrementos.entrySet()) {
+				pst_upd_medico.setInt(1, incremento.getValue());
+				pst_upd_medico.setInt(2, incremento.getKey());
+				pst_upd_medico.addBatch();
+			}
+			pst_upd_medico.executeBatch();
+		} finally {
+			pst_upd_medico.close();
+		}
+	}
+
+	/**
+	 * total: Total de consultas de un médico visto desde la transacción de con.
+	 *
+	 * @return Total, o 0 si el médico no existe
+	 */
+	static int total(Connection con, int idMedico) throws SQLException {
+		PreparedStatement pst_sel_total = SentenciaSQL.SEL_TOTAL_CONSULTAS.preparar(con);
+		try {
+			pst_sel_total.setInt(1, idMedico);
+			try (ResultSet rs_sel_total = pst_sel_total.executeQuery()) {
+				return rs_sel_total.next() ? rs_sel_total.getInt(1) : 0;
+			}
+		} finally {
+			pst_sel_total.close();
+		}
+	}
+
+	/**
+	 * prepararFilas: Crea las NUMERO_FILAS filas de cada médico que aún no las
+	 * tenga.
+	 *
+	 * @return Número de filas creadas
+	 * @throws SQLException
+	 */
+	public static int prepararFilas() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement pst_ins_filas = null;
+
+		try {
+			con = pool.getConnection();
+
+			pst_ins_filas = SentenciaSQL.INS_FILAS_CONTADOR.preparar(con);
+			pst_ins_filas.setInt(1, NUMERO_FILAS);
+			int creadas = pst_ins_filas.executeUpdate();
+
+			con.commit();
+			return creadas;
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (pst_ins_filas != null)
+				pst_ins_filas.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * plegar: Pasa los delta de medico_consultas a medico.consultas en una
+	 * transacción. Bloquea las filas con delta distinto de 0, suma a cada médico
+	 * el total de las suyas y les resta lo plegado; las filas que se crean o
+	 * cambian mientras tanto se pliegan la próxima vez.
+	 *
+	 * @return Número de filas plegadas
+	 * @throws SQLException
+	 */
+	public static int plegar() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement pst_sel_filas = null;
+		PreparedStatement pst_upd_contador = null;
+		ResultSet rs_sel_filas = null;
+
+		try {
+			con = pool.getConnection();
+
+			pst_sel_filas = SentenciaSQL.SEL_FILAS_PLEGAR.preparar(con);
+			rs_sel_filas = pst_sel_filas.executeQuery();
+			pst_upd_contador = SentenciaSQL.UPD_CONTADOR_FILA.preparar(con);
+			Map<Integer, Integer> totales = new HashMap<Integer, Integer>();
+			int plegadas = 0;
+			while (rs_sel_filas.next()) {
+				int idMedico = rs_sel_filas.getInt(1);
+				int delta = rs_sel_filas.getInt(3);
+				pst_upd_contador.setInt(1, -delta);
+				pst_upd_contador.setInt(2, idMedico);
+				pst_upd_contador.setInt(3, rs_sel_filas.getInt(2));
+				pst_upd_contador.addBatch();
+				totales.merge(idMedico, delta, Integer::sum);
+				plegadas++;
+			}
+			if (plegadas > 0) {
+				pst_upd_contador.executeBatch();
+				sumarEnMedico(con, totales);
+			}
+
+			con.commit();
+			return plegadas;
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (rs_sel_filas != null)
+				rs_sel_filas.close();
+			if (pst_sel_filas != null)
+				pst_sel_filas.close();
+			if (pst_upd_contador != null)
+				pst_upd_contador.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * iniciarPlegado: Pliega los contadores periódicamente en un hilo demonio.
+	 *
+	 * @param periodoMs Tiempo entre plegados
+	 */
+	public static synchronized void iniciarPlegado(long periodoMs) {
+		if (planificador != null) {
+			return;
+		}
+		planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "plegado-contadores");
+			t.setDaemon(true);
+			return t;
+		});
+		planificador.scheduleWithFixedDelay(() -> {
+			try {
+				int plegadas = plegar();
+				logger.debug("Plegadas {} filas de contadores", plegadas);
+			} catch (SQLException e) {
+				logger.warn("Fallo plegando los contadores: " + e.getMessage());
+			}
+		}, periodoMs, periodoMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * detenerPlegado: Detiene el plegado periódico.
+	 */
+	public static synchronized void detenerPlegado() {
+		if (planificador != null) {
+			planificador.shutdown();
+			planificador = null;
+		}
+	}
+}
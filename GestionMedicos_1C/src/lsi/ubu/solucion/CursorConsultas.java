@@ -0,0 +1,224 @@
+package lsi.ubu.solucion;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import oracle.jdbc.OracleTypes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.exceptions.PoolSaturadoException;
+
+/**
+ * CursorConsultas: Recorre las consultas no anuladas de un médico fila a fila,
+ * trayendo del servidor tamanoFetch filas en cada viaje. Mantiene prestada una
+ * conexión del pool de lectura desde que se abre hasta que se cierra o se
+ * llega a la última fila, por lo que quien lo recorre no debe hacer
+ * operaciones lentas entre fila y fila (para eso está la paginación).
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+class CursorConsultas extends Spliterators.AbstractSpliterator<ConsultaMedico> implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(CursorConsultas.class);
+
+	private final Connection con;
+	private PreparedStatement pst_sel_consulta;
+	private ResultSet rs_sel_consulta;
+	private int idMedico;
+	private boolean cerrado;
+
+	private CursorConsultas(Connection con) {
+		super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+		this.con = con;
+	}
+
+	/**
+	 * abrir: Busca el médico y abre el cursor con sus consultas, en el cliente o
+	 * con el procedimiento pr_consulta_medico según el modo de GestionMedicos.
+	 *
+	 * @param m_NIF_medico NIF del médico
+	 * @param tamanoFetch  Filas que se traen en cada viaje al servidor
+	 * @return Cursor abierto
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
+	 */
+	static CursorConsultas abrir(String m_NIF_medico, int tamanoFetch) throws SQLException {
+		if (!CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
+		CursorConsultas cursor = null;
+		try {
+			cursor = new CursorConsultas(pool.getConnection());
+			if (GestionMedicos.isModoServidor()) {
+				cursor.abrirEnServidor(m_NIF_medico, tamanoFetch);
+			} else {
+				cursor.abrirEnCliente(m_NIF_medico, tamanoFetch);
+			}
+			return cursor;
+
+		} catch (SQLException e) {
+
+			if (cursor != null)
+				cursor.cerrar(false);
+
+			if (e instanceof GestionMedicosException) {
+				throw (GestionMedicosException) e;
+			}
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+			if (GestionMedicos.isModoServidor()) {
+				throw GestionMedicos.traducirErrorServidor(e);
+			}
+			logger.error(e.getMessage());
+			throw e;
+		}
+	}
+
+	private void abrirEnCliente(String m_NIF_medico, int tamanoFetch) throws SQLException {
+		Integer id = CacheReferencias.idMedico(con, m_NIF_medico);
+
+		if (id == null) {
+			throw new GestionMedicosException(2);
+		}
+
+		idMedico = id;
+
+		pst_sel_consulta = SentenciaSQL.SEL_CONSULTAS_MEDICO.preparar(con);
+		pst_sel_consulta.setFetchSize(tamanoFetch);
+		pst_sel_consulta.setInt(1, idMedico);
+		rs_sel_consulta = pst_sel_consulta.executeQuery();
+	}
+
+	private void abrirEnServidor(String m_NIF_medico, int tamanoFetch) throws SQLException {
+		CallableStatement cll_consulta = SentenciaSQL.CALL_CONSULTA_MEDICO.prepararLlamada(con);
+		pst_sel_consulta = cll_consulta;
+		cll_consulta.setString(1, m_NIF_medico);
+		cll_consulta.registerOutParameter(2, Types.INTEGER);
+		cll_consulta.registerOutParameter(3, OracleTypes.CURSOR);
+		cll_consulta.execute();
+
+		idMedico = cll_consulta.getInt(2);
+		rs_sel_consulta = (ResultSet) cll_consulta.getObject(3);
+		rs_sel_consulta.setFetchSize(tamanoFetch);
+	}
+
+	/**
+	 * getIdMedico: Identificador del médico cuyas consultas se recorren.
+	 */
+	int getIdMedico() {
+		return idMedico;
+	}
+
+	/**
+	 * siguiente: Lee la siguiente consulta. Al llegar al final cierra el cursor
+	 * y devuelve la conexión al pool.
+	 *
+	 * @return Consulta, o null si no hay más
+	 * @throws SQLException
+	 */
+	ConsultaMedico siguiente() throws SQLException {
+		if (cerrado) {
+			return null;
+		}
+		try {
+			if (!rs_sel_consulta.next()) {
+				cerrar(true);
+				return null;
+			}
+			return new ConsultaMedico(rs_sel_consulta.getInt(1), rs_sel_consulta.getTimestamp(2),
+					rs_sel_consulta.getInt(3), rs_sel_consulta.getString(4));
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+			cerrar(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * recorrer: Entrega las consultas que quedan al consumidor, en orden de
+	 * fecha.
+	 *
+	 * @param consumidor Receptor de cada consulta
+	 * @return Número de consultas entregadas
+	 * @throws SQLException
+	 */
+	int recorrer(Consumer<? super ConsultaMedico> consumidor) throws SQLException {
+		int entregadas = 0;
+		ConsultaMedico consulta;
+		while ((consulta = siguiente()) != null) {
+			consumidor.accept(consulta);
+			entregadas++;
+		}
+		return entregadas;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super ConsultaMedico> accion) {
+		ConsultaMedico consulta;
+		try {
+			consulta = siguiente();
+		} catch (SQLException e) {
+			throw new IllegalStateException("Error leyendo las consultas del médico " + idMedico, e);
+		}
+		if (consulta == null) {
+			return false;
+		}
+		accion.accept(consulta);
+		return true;
+	}
+
+	/**
+	 * close: Cierra el cursor y devuelve la conexión al pool, si no se había
+	 * hecho ya.
+	 */
+	@Override
+	public void close() {
+		cerrar(true);
+	}
+
+	/**
+	 * cerrar: Libera los recursos una sola vez, terminando la transacción de
+	 * lectura.
+	 *
+	 * @param confirmar true para confirmar, false para deshacer
+	 */
+	private void cerrar(boolean confirmar) {
+		if (cerrado) {
+			return;
+		}
+		cerrado = true;
+		try {
+			/* Liberar recursos */
+			if (rs_sel_consulta != null)
+				rs_sel_consulta.close();
+			if (pst_sel_consulta != null)
+				pst_sel_consulta.close();
+			if (confirmar)
+				con.commit();
+			else
+				con.rollback();
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException e) {
+				logger.error(e.getMessage());
+			}
+		}
+	}
+}
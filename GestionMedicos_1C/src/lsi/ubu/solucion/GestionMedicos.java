@@ -9,14 +9,35 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.CerrojosFranjas;
+import lsi.ubu.util.EjecutorTransacciones;
 import lsi.ubu.util.ExecuteScript;
 import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.exceptions.ConfirmacionInciertaException;
+import lsi.ubu.util.exceptions.PoolSaturadoException;
 import lsi.ubu.util.exceptions.SGBDError;
 import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
 
@@ -36,6 +57,86 @@ public class GestionMedicos {
 
 	private static final String script_path = "sql/";
 
+	/** Resultado de una operación de un lote que se ha realizado. */
+	public static final int RESULTADO_OK = 0;
+
+	/** Número de filas que se envían en cada executeBatch. */
+	private static final int TAMANO_LOTE = 100;
+
+	/** Filas que trae del servidor cada viaje de consulta_medico. */
+	public static final int TAMANO_FETCH = 100;
+
+	/** Límites de fecha de consultas_medico_pagina cuando no se indica ventana. */
+	private static final java.sql.Date FECHA_MINIMA = java.sql.Date.valueOf("1900-01-01");
+	private static final java.sql.Date FECHA_MAXIMA = java.sql.Date.valueOf("9999-12-31");
+
+	/** Cerrojos en memoria entre los que se reparten los pares (médico, día). */
+	private static final int NUMERO_FRANJAS = 64;
+
+	/** Espera máxima por cada cerrojo antes de responder SISTEMA_OCUPADO. */
+	private static final long ESPERA_FRANJA_MS = 5000;
+
+	private static final CerrojosFranjas franjas = new CerrojosFranjas(NUMERO_FRANJAS);
+
+	static {
+		franjas.registrarJMX("huecos");
+	}
+
+	/** Intentos de cada transacción que falla por un error transitorio. */
+	private static final int MAX_INTENTOS = 5;
+
+	/** Espera antes del primer reintento; se duplica en cada uno. */
+	private static final long ESPERA_REINTENTO_MS = 20;
+
+	/** Tope de la espera entre reintentos. */
+	private static final long ESPERA_MAXIMA_REINTENTO_MS = 500;
+
+	/** Tiempo desde el primer intento tras el que no se empieza otro. */
+	private static final long PLAZO_REINTENTOS_MS = 3000;
+
+	/**
+	 * Repite las transacciones públicas que fallan por interbloqueos, fallos de
+	 * serialización, conexiones perdidas o recursos ocupados. Cada intento pide
+	 * su propia conexión y no retiene cerrojos de franjas durante la espera.
+	 * consulta_medico y consultas_medico no se repiten, porque ya han podido
+	 * entregar filas.
+	 */
+	private static final EjecutorTransacciones ejecutor = new EjecutorTransacciones(MAX_INTENTOS,
+			ESPERA_REINTENTO_MS, ESPERA_MAXIMA_REINTENTO_MS, PLAZO_REINTENTOS_MS);
+
+	static {
+		ejecutor.registrarJMX("gestionMedicos");
+	}
+
+	/** Días que se leen de una vez al buscar los siguientes días libres. */
+	private static final int VENTANA_HUECOS = 31;
+
+	/**
+	 * Médicos que se buscan con cada ejecución de SEL_OCUPACION_MEDICOS; los
+	 * lotes incompletos repiten el último NIF para usar siempre la misma
+	 * sentencia preparada.
+	 */
+	static final int LOTE_MEDICOS = 16;
+
+	/**
+	 * Propiedad de sistema que elige dónde se ejecutan las transacciones:
+	 * "cliente" (por defecto) o "servidor".
+	 */
+	public static final String PROPIEDAD_MODO = "gestionMedicos.modo";
+
+	/** Valor de PROPIEDAD_MODO para ejecutar las transacciones en el servidor. */
+	public static final String MODO_SERVIDOR = "servidor";
+
+	/**
+	 * Los procedimientos almacenados señalan los errores con
+	 * raise_application_error(-(ERROR_APLICACION + código de
+	 * GestionMedicosException)).
+	 */
+	private static final int ERROR_APLICACION = 20000;
+
+	/** Indica si las transacciones se ejecutan con procedimientos almacenados. */
+	private static volatile boolean modoServidor = MODO_SERVIDOR.equalsIgnoreCase(System.getProperty(PROPIEDAD_MODO));
+
 	/**
 	 * Main: Método main que ejecuta el método tests()
 	 * 
@@ -61,314 +162,1588 @@ public class GestionMedicos {
 	 */
 	public static void reservar_consulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta)
 			throws SQLException {
+		ejecutor.ejecutar(() -> reservarConsulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta));
+	}
+
+	/* Un intento de reservar_consulta, que el ejecutor puede repetir */
+	private static void reservarConsulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta)
+			throws SQLException {
+
+		// Los NIF que seguro que no existen se rechazan sin pedir conexión
+		if (!CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+		if (!CacheReferencias.puedeExistirCliente(m_NIF_cliente)) {
+			throw new GestionMedicosException(1);
+		}
+
+		// Las fechas que se sabe que están ocupadas se rechazan sin pedir conexión
+		Integer idConocido = CacheReferencias.idMedicoEnCache(m_NIF_medico);
+		if (idConocido != null && CacheReferencias.clienteEnCache(m_NIF_cliente)
+				&& IndiceOcupacion.ocupado(idConocido, m_Fecha_Consulta)) {
+			throw new GestionMedicosException(3);
+		}
+
+		// Las reservas y anulaciones del mismo médico y día se esperan en memoria
+		List<String> huecos = Collections.singletonList(claveFranja(m_NIF_medico, m_Fecha_Consulta));
+		if (modoServidor) {
+			CerrojosFranjas.Cierre cierre = bloquearHuecos(huecos);
+			try {
+				ejecutarEnServidor(SentenciaSQL.CALL_RESERVAR_CONSULTA, m_NIF_cliente, m_NIF_medico,
+						new java.sql.Date(m_Fecha_Consulta.getTime()));
+				if (idConocido != null)
+					IndiceOcupacion.marcar(idConocido, m_Fecha_Consulta);
+			} finally {
+				cierre.close();
+			}
+			return;
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CerrojosFranjas.Cierre cierre = null;
+		PreparedStatement pst_ins_consulta = null;
+		PreparedStatement pst_ins_ocupacion = null;
+
+		try {
+			cierre = bloquearHuecos(huecos);
+			con = pool.getConnection();
+
+			Integer idMedico = CacheReferencias.idMedico(con, m_NIF_medico);
+			if (idMedico == null) {
+				throw new GestionMedicosException(2);
+			}
+
+			java.sql.Date m_Fecha_sql = new java.sql.Date(m_Fecha_Consulta.getTime());
+
+			pst_ins_consulta = SentenciaSQL.INS_CONSULTA.preparar(con);
+			pst_ins_consulta.setDate(1, m_Fecha_sql);
+			pst_ins_consulta.setInt(2, idMedico);
+			pst_ins_consulta.setString(3, m_NIF_cliente);
+			pst_ins_consulta.executeUpdate();
+
+			// La clave primaria de ocupacion rechaza la fecha si ya está ocupada
+			pst_ins_ocupacion = SentenciaSQL.INS_OCUPACION.preparar(con);
+			pst_ins_ocupacion.setInt(1, idMedico);
+			pst_ins_ocupacion.setDate(2, m_Fecha_sql);
+			pst_ins_ocupacion.executeUpdate();
+
+			ContadorConsultas.sumar(con, Collections.singletonMap(idMedico, 1));
+
+			EjecutorTransacciones.confirmar(con);
+			IndiceOcupacion.marcar(idMedico, m_Fecha_Consulta);
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+
+			if (e instanceof GestionMedicosException) {
+				throw (GestionMedicosException) e;
+			}
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+			if (OracleSGBDErrorUtil.getInstance().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) {
+				throw new GestionMedicosException(1);
+			}
+			if (OracleSGBDErrorUtil.getInstance().checkExceptionToCode(e, SGBDError.PK_VIOLATED)) {
+				throw new GestionMedicosException(3);
+			}
+
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Se liberan todos los recursos que sean necesarios */
+			if (cierre != null)
+				cierre.close();
+			if (pst_ins_consulta != null)
+				pst_ins_consulta.close();
+			if (pst_ins_ocupacion != null)
+				pst_ins_ocupacion.close();
+			if (con != null)
+				con.close();
+		}
+
+	}
+
+	/**
+	 * reservar_consultas: Método que reserva un lote de consultas en una única
+	 * transacción. Las búsquedas de médicos y clientes se hacen una vez por NIF
+	 * distinto, las fechas ocupadas se leen una vez por médico, las
+	 * inserciones se envían con executeBatch en bloques de TAMANO_LOTE y los
+	 * contadores se actualizan con una sentencia por médico. Una reserva que no
+	 * se puede hacer no detiene el lote: su resultado indica el motivo.
+	 *
+	 * @param reservas Consultas a reservar
+	 * @return Resultado de cada reserva, en el mismo orden: RESULTADO_OK o el
+	 *         código de GestionMedicosException (CLIENTE_NO_EXISTE,
+	 *         MEDICO_NO_EXISTE, MEDICO_OCUPADO)
+	 * @throws SQLException Si falla la base de datos, o MEDICO_OCUPADO si otra
+	 *                      sesión ocupa una de las fechas mientras se reserva
+	 *                      el lote; en ambos casos no se reserva ninguna
+	 *                      consulta del lote
+	 */
+	public static int[] reservar_consultas(List<PeticionConsulta> reservas) throws SQLException {
+		return ejecutor.ejecutar(() -> reservarConsultas(reservas));
+	}
+
+	/* Un intento de reservar_consultas, que el ejecutor puede repetir */
+	private static int[] reservarConsultas(List<PeticionConsulta> reservas) throws SQLException {
+
+		int[] resultados = new int[reservas.size()];
+		if (descartarDesconocidos(reservas, resultados, false)) {
+			return resultados;
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CerrojosFranjas.Cierre cierre = null;
+		PreparedStatement pst_ins_consulta = null;
+		PreparedStatement pst_ins_ocupacion = null;
+
+		try {
+			cierre = bloquearHuecos(clavesFranja(reservas));
+			con = pool.getConnection();
+
+			Map<String, Integer> medicos = buscarMedicos(con, reservas);
+			Set<String> clientes = buscarClientes(con, reservas);
+			Set<String> ocupados = buscarHuecosOcupados(con, reservas, medicos);
+			Map<Integer, Integer> incrementos = new HashMap<Integer, Integer>();
+
+			List<Integer> aceptadas = new ArrayList<Integer>();
+			for (int i = 0; i < reservas.size(); i++) {
+				PeticionConsulta reserva = reservas.get(i);
+				Integer idMedico = medicos.get(reserva.getNifMedico());
+				if (idMedico == null) {
+					resultados[i] = GestionMedicosException.MEDICO_NO_EXISTE;
+					continue;
+				}
+				if (!clientes.contains(reserva.getNifCliente())) {
+					resultados[i] = GestionMedicosException.CLIENTE_NO_EXISTE;
+					continue;
+				}
+				// También detecta reservas repetidas dentro del propio lote
+				if (!ocupados.add(claveHueco(idMedico, reserva.getFecha()))) {
+					resultados[i] = GestionMedicosException.MEDICO_OCUPADO;
+					continue;
+				}
+				aceptadas.add(i);
+				incrementos.merge(idMedico, 1, Integer::sum);
+				resultados[i] = RESULTADO_OK;
+			}
+
+			if (!aceptadas.isEmpty()) {
+				List<Integer> ids = siguientesIdsConsulta(con, aceptadas.size());
+				pst_ins_consulta = SentenciaSQL.INS_CONSULTA_ID.preparar(con);
+				pst_ins_ocupacion = SentenciaSQL.INS_OCUPACION_ID.preparar(con);
+				int pendientes = 0;
+				for (int k = 0; k < aceptadas.size(); k++) {
+					PeticionConsulta reserva = reservas.get(aceptadas.get(k));
+					int idMedico = medicos.get(reserva.getNifMedico());
+					java.sql.Date m_Fecha_sql = new java.sql.Date(reserva.getFecha().getTime());
+
+					pst_ins_consulta.setInt(1, ids.get(k));
+					pst_ins_consulta.setDate(2, m_Fecha_sql);
+					pst_ins_consulta.setInt(3, idMedico);
+					pst_ins_consulta.setString(4, reserva.getNifCliente());
+					pst_ins_consulta.addBatch();
+
+					pst_ins_ocupacion.setInt(1, idMedico);
+					pst_ins_ocupacion.setDate(2, m_Fecha_sql);
+					pst_ins_ocupacion.setInt(3, ids.get(k));
+					pst_ins_ocupacion.addBatch();
+
+					if (++pendientes == TAMANO_LOTE) {
+						pst_ins_consulta.executeBatch();
+						pst_ins_ocupacion.executeBatch();
+						pendientes = 0;
+					}
+				}
+				if (pendientes > 0) {
+					pst_ins_consulta.executeBatch();
+					pst_ins_ocupacion.executeBatch();
+				}
+			}
+
+			ContadorConsultas.sumar(con, incrementos);
+
+			EjecutorTransacciones.confirmar(con);
+			for (Integer i : aceptadas) {
+				PeticionConsulta reserva = reservas.get(i);
+				IndiceOcupacion.marcar(medicos.get(reserva.getNifMedico()), reserva.getFecha());
+			}
+			return resultados;
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+			// Otra sesión ha ocupado una de las fechas después de comprobarla
+			if (OracleSGBDErrorUtil.getInstance().checkExceptionToCode(e, SGBDError.PK_VIOLATED)) {
+				throw new GestionMedicosException(GestionMedicosException.MEDICO_OCUPADO);
+			}
+
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Se liberan todos los recursos que sean necesarios */
+			if (cierre != null)
+				cierre.close();
+			if (pst_ins_consulta != null)
+				pst_ins_consulta.close();
+			if (pst_ins_ocupacion != null)
+				pst_ins_ocupacion.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * bloquearHuecos: Bloquea los cerrojos en memoria de los pares (médico, día)
+	 * de una operación, para que las reservas y anulaciones que coinciden en
+	 * esta JVM se esperen antes de pedir conexión en lugar de competir por los
+	 * bloqueos de la base de datos. Si son más que los cerrojos los bloquea
+	 * todos.
+	 *
+	 * @param claves Claves de claveFranja
+	 * @return Cierre que hay que cerrar al terminar la transacción
+	 * @throws GestionMedicosException SISTEMA_OCUPADO si se agota la espera
+	 */
+	private static CerrojosFranjas.Cierre bloquearHuecos(Collection<String> claves) throws GestionMedicosException {
+		CerrojosFranjas.Cierre cierre = claves.size() > NUMERO_FRANJAS ? franjas.bloquearTodas(ESPERA_FRANJA_MS)
+				: franjas.bloquear(claves, ESPERA_FRANJA_MS);
+		if (cierre == null) {
+			throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+		}
+		return cierre;
+	}
+
+	/**
+	 * claveFranja: Clave del cerrojo de un médico en un día. Se usa el NIF, que
+	 * identifica al médico igual que id_medico y se conoce sin consultar la base
+	 * de datos.
+	 */
+	private static String claveFranja(String nifMedico, Date fecha) {
+		return nifMedico + "|" + Misc.truncDate(fecha).getTime();
+	}
+
+	private static List<String> clavesFranja(List<PeticionConsulta> peticiones) {
+		List<String> claves = new ArrayList<String>(peticiones.size());
+		for (PeticionConsulta peticion : peticiones) {
+			claves.add(claveFranja(peticion.getNifMedico(), peticion.getFecha()));
+		}
+		return claves;
+	}
+
+	/**
+	 * clavesFranja: Claves de los días de un médico entre dos fechas (ambas
+	 * incluidas). Deja de añadir al pasar de NUMERO_FRANJAS, porque entonces se
+	 * bloquean todos los cerrojos.
+	 */
+	private static List<String> clavesFranja(String nifMedico, Date desde, Date hasta) {
+		List<String> claves = new ArrayList<String>();
+		Date ultimo = Misc.truncDate(hasta);
+		Date dia = Misc.truncDate(desde);
+		while (!dia.after(ultimo) && claves.size() <= NUMERO_FRANJAS) {
+			claves.add(claveFranja(nifMedico, dia));
+			dia = Misc.addDays(dia, 1);
+		}
+		return claves;
+	}
+
+	/**
+	 * descartarDesconocidos: Pone el resultado de las peticiones cuyo médico o
+	 * cliente seguro que no existe según los filtros de Bloom, sin acceder a la
+	 * base de datos. El resto se comprueban después en la transacción.
+	 *
+	 * @param clientePrimero true si se comprueba antes el cliente que el médico
+	 * @return true si se han descartado todas y no hace falta pedir conexión
+	 */
+	private static boolean descartarDesconocidos(List<PeticionConsulta> peticiones, int[] resultados,
+			boolean clientePrimero) {
+		boolean todas = true;
+		for (int i = 0; i < peticiones.size(); i++) {
+			PeticionConsulta peticion = peticiones.get(i);
+			boolean medico = CacheReferencias.puedeExistirMedico(peticion.getNifMedico());
+			boolean cliente = CacheReferencias.puedeExistirCliente(peticion.getNifCliente());
+			if (medico && cliente) {
+				todas = false;
+			} else if (!cliente && (clientePrimero || medico)) {
+				resultados[i] = GestionMedicosException.CLIENTE_NO_EXISTE;
+			} else {
+				resultados[i] = GestionMedicosException.MEDICO_NO_EXISTE;
+			}
+		}
+		return todas;
+	}
+
+	/**
+	 * buscarMedicos: Busca el identificador de cada médico distinto de las
+	 * peticiones.
+	 *
+	 * @return NIF -> id_medico de los médicos que existen
+	 */
+	private static Map<String, Integer> buscarMedicos(Connection con, List<PeticionConsulta> peticiones)
+			throws SQLException {
+		Map<String, Integer> medicos = new HashMap<String, Integer>();
+		Set<String> buscados = new HashSet<String>();
+		for (PeticionConsulta peticion : peticiones) {
+			if (!buscados.add(peticion.getNifMedico())) {
+				continue;
+			}
+			Integer idMedico = CacheReferencias.idMedico(con, peticion.getNifMedico());
+			if (idMedico != null) {
+				medicos.put(peticion.getNifMedico(), idMedico);
+			}
+		}
+		return medicos;
+	}
+
+	/**
+	 * buscarClientes: Comprueba qué clientes distintos de las peticiones existen.
+	 *
+	 * @return NIF de los clientes que existen
+	 */
+	private static Set<String> buscarClientes(Connection con, List<PeticionConsulta> peticiones)
+			throws SQLException {
+		Set<String> clientes = new HashSet<String>();
+		Set<String> buscados = new HashSet<String>();
+		for (PeticionConsulta peticion : peticiones) {
+			if (buscados.add(peticion.getNifCliente())
+					&& CacheReferencias.existeCliente(con, peticion.getNifCliente())) {
+				clientes.add(peticion.getNifCliente());
+			}
+		}
+		return clientes;
+	}
+
+	/**
+	 * rangosPorMedico: Primera y última fecha (truncadas al día) pedidas a cada
+	 * médico existente.
+	 *
+	 * @return id_medico -> {primera fecha, última fecha}
+	 */
+	private static Map<Integer, Date[]> rangosPorMedico(List<PeticionConsulta> peticiones,
+			Map<String, Integer> medicos) {
+		Map<Integer, Date[]> rangos = new HashMap<Integer, Date[]>();
+		for (PeticionConsulta peticion : peticiones) {
+			Integer idMedico = medicos.get(peticion.getNifMedico());
+			if (idMedico == null) {
+				continue;
+			}
+			Date dia = Misc.truncDate(peticion.getFecha());
+			Date[] rango = rangos.get(idMedico);
+			if (rango == null) {
+				rangos.put(idMedico, new Date[] { dia, dia });
+			} else if (dia.before(rango[0])) {
+				rango[0] = dia;
+			} else if (dia.after(rango[1])) {
+				rango[1] = dia;
+			}
+		}
+		return rangos;
+	}
+
+	/**
+	 * buscarHuecosOcupados: Lee de la tabla ocupacion, con una consulta por
+	 * médico, las fechas ocupadas entre la primera y la última pedidas a ese
+	 * médico.
+	 *
+	 * @return Claves (ver claveHueco) de las fechas ocupadas
+	 */
+	private static Set<String> buscarHuecosOcupados(Connection con, List<PeticionConsulta> peticiones,
+			Map<String, Integer> medicos) throws SQLException {
+		Set<String> ocupados = new HashSet<String>();
+		PreparedStatement pst_sel_ocupacion = SentenciaSQL.SEL_OCUPACION_RANGO.preparar(con);
+		try {
+			for (Map.Entry<Integer, Date[]> rango : rangosPorMedico(peticiones, medicos).entrySet()) {
+				pst_sel_ocupacion.setInt(1, rango.getKey());
+				pst_sel_ocupacion.setDate(2, new java.sql.Date(rango.getValue()[0].getTime()));
+				pst_sel_ocupacion.setDate(3, new java.sql.Date(Misc.addDays(rango.getValue()[1], 1).getTime()));
+				try (ResultSet rs_sel_ocupacion = pst_sel_ocupacion.executeQuery()) {
+					while (rs_sel_ocupacion.next()) {
+						ocupados.add(claveHueco(rango.getKey(), rs_sel_ocupacion.getTimestamp(1)));
+					}
+				}
+			}
+		} finally {
+			pst_sel_ocupacion.close();
+		}
+		return ocupados;
+	}
+
+	/**
+	 * siguientesIdsConsulta: Obtiene de una vez los siguientes valores de
+	 * seq_consulta, para insertar en lote las consultas y sus fechas ocupadas.
+	 *
+	 * @param cuantos Número de identificadores
+	 * @return Identificadores de consulta
+	 */
+	private static List<Integer> siguientesIdsConsulta(Connection con, int cuantos) throws SQLException {
+		List<Integer> ids = new ArrayList<Integer>(cuantos);
+		PreparedStatement pst_sel_ids = SentenciaSQL.SEL_SIGUIENTES_CONSULTAS.preparar(con);
+		try {
+			pst_sel_ids.setInt(1, cuantos);
+			pst_sel_ids.setFetchSize(Math.min(cuantos, TAMANO_LOTE));
+			try (ResultSet rs_sel_ids = pst_sel_ids.executeQuery()) {
+				while (rs_sel_ids.next()) {
+					ids.add(rs_sel_ids.getInt(1));
+				}
+			}
+		} finally {
+			pst_sel_ids.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * buscarConsultas: Lee, con una consulta por médico, las consultas entre la
+	 * primera y la última fecha pedidas a ese médico.
+	 *
+	 * @param activas    Se rellena con clave (ver claveConsulta) -> id_consulta
+	 *                   de las consultas no anuladas
+	 * @param existentes Se rellena con las claves de todas las consultas,
+	 *                   anuladas o no
+	 */
+	private static void buscarConsultas(Connection con, List<PeticionConsulta> peticiones,
+			Map<String, Integer> medicos, Map<String, Integer> activas, Set<String> existentes)
+			throws SQLException {
+		Map<Integer, Date[]> rangos = rangosPorMedico(peticiones, medicos);
+
+		PreparedStatement pst_sel_consultas = SentenciaSQL.SEL_CONSULTAS_RANGO.preparar(con);
+		try {
+			for (Map.Entry<Integer, Date[]> rango : rangos.entrySet()) {
+				pst_sel_consultas.setInt(1, rango.getKey());
+				pst_sel_consultas.setDate(2, new java.sql.Date(rango.getValue()[0].getTime()));
+				pst_sel_consultas.setDate(3, new java.sql.Date(Misc.addDays(rango.getValue()[1], 1).getTime()));
+				try (ResultSet rs_sel_consultas = pst_sel_consultas.executeQuery()) {
+					while (rs_sel_consultas.next()) {
+						String clave = claveConsulta(rango.getKey(), rs_sel_consultas.getString(3),
+								rs_sel_consultas.getTimestamp(2));
+						if (rs_sel_consultas.getInt(4) == 0) {
+							activas.put(clave, rs_sel_consultas.getInt(1));
+						}
+						existentes.add(clave);
+					}
+				}
+			}
+		} finally {
+			pst_sel_consultas.close();
+		}
+	}
+
+	/**
+	 * claveHueco: Clave de la fecha ocupada de un médico en un día.
+	 */
+	private static String claveHueco(int idMedico, Date fecha) {
+		return idMedico + "|" + Misc.truncDate(fecha).getTime();
+	}
+
+	/**
+	 * claveConsulta: Clave de una consulta de un cliente con un médico en un día.
+	 */
+	private static String claveConsulta(int idMedico, String nifCliente, Date fecha) {
+		return idMedico + "|" + nifCliente + "|" + Misc.truncDate(fecha).getTime();
+	}
+
+	/**
+	 * anular_consulta: Método que implementa la transacción para anular una
+	 * consulta. Recibe el NIF del cliente, el NIF del médico, la fecha de la
+	 * consulta que se quiere anular, la fecha en la que se anula y el motivo. Si
+	 * alguno de los datos no se encuentra en la base de datos, la fecha de
+	 * anulación está a menos de dos días de la consulta que se quiere anular o el
+	 * motivo es null, lanza una GestionMedicosException.
+	 * 
+	 * @param m_NIF_cliente     NIF del cliente
+	 * @param m_NIF_medico      NIF del médico
+	 * @param m_Fecha_Consulta  Fecha de la consulta a anular
+	 * @param m_Fecha_Anulacion Fecha en la que se anula
+	 * @param motivo            Motivo de la anulación
+	 * @throws SQLException
+	 */
+	public static void anular_consulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta,
+			Date m_Fecha_Anulacion, String motivo) throws SQLException {
+		ejecutor.ejecutar(
+				() -> anularConsulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo));
+	}
+
+	/* Un intento de anular_consulta, que el ejecutor puede repetir */
+	private static void anularConsulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta,
+			Date m_Fecha_Anulacion, String motivo) throws SQLException {
+
+		// Los NIF que seguro que no existen se rechazan sin pedir conexión
+		if (motivo != null && !CacheReferencias.puedeExistirCliente(m_NIF_cliente)) {
+			throw new GestionMedicosException(1);
+		}
+		if (motivo != null && !CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+
+		// Las reservas y anulaciones del mismo médico y día se esperan en memoria
+		List<String> huecos = Collections.singletonList(claveFranja(m_NIF_medico, m_Fecha_Consulta));
+		if (modoServidor) {
+			CerrojosFranjas.Cierre cierre = bloquearHuecos(huecos);
+			try {
+				ejecutarEnServidor(SentenciaSQL.CALL_ANULAR_CONSULTA, m_NIF_cliente, m_NIF_medico,
+						new java.sql.Date(m_Fecha_Consulta.getTime()), new java.sql.Date(m_Fecha_Anulacion.getTime()),
+						motivo);
+				Integer idConocido = CacheReferencias.idMedicoEnCache(m_NIF_medico);
+				if (idConocido != null)
+					IndiceOcupacion.liberar(idConocido, m_Fecha_Consulta);
+			} finally {
+				cierre.close();
+			}
+			return;
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CerrojosFranjas.Cierre cierre = null;
+		PreparedStatement pst_sel_consulta = null;
+		PreparedStatement pst_ins_anulacion = null;
+		PreparedStatement pst_del_ocupacion = null;
+		ResultSet rs_sel_consulta = null;
+
+		try {
+			cierre = bloquearHuecos(huecos);
+			con = pool.getConnection();
+
+			if (motivo == null) {
+				throw new GestionMedicosException(6);
+			}
+
+			if (!CacheReferencias.existeCliente(con, m_NIF_cliente)) {
+				throw new GestionMedicosException(1);
+			}
+
+			Integer idMedico = CacheReferencias.idMedico(con, m_NIF_medico);
+
+			if (idMedico == null) {
+				throw new GestionMedicosException(2);
+			}
+
+			java.sql.Date m_Fecha_sql = new java.sql.Date(m_Fecha_Consulta.getTime());
+
+			if (Misc.howManyDaysBetween(m_Fecha_Consulta, m_Fecha_Anulacion) < 2) {
+				throw new GestionMedicosException(5);
+			}
+
+			// Se anula la consulta del cliente que ocupa esa fecha, si la hay
+			pst_ins_anulacion = SentenciaSQL.INS_ANULACION_OCUPACION.preparar(con);
+			java.sql.Date m_Fecha_Anulacion_sql = new java.sql.Date(m_Fecha_Anulacion.getTime());
+			pst_ins_anulacion.setDate(1, m_Fecha_Anulacion_sql);
+			pst_ins_anulacion.setString(2, motivo);
+			pst_ins_anulacion.setInt(3, idMedico);
+			pst_ins_anulacion.setDate(4, m_Fecha_sql);
+			pst_ins_anulacion.setString(5, m_NIF_cliente);
+
+			if (pst_ins_anulacion.executeUpdate() == 0) {
+				pst_sel_consulta = SentenciaSQL.SEL_CONSULTA_FECHA.preparar(con);
+				pst_sel_consulta.setDate(1, m_Fecha_sql);
+				rs_sel_consulta = pst_sel_consulta.executeQuery();
+
+				if (!rs_sel_consulta.next()) {
+					throw new GestionMedicosException(4); // No existe consultas para ese día anuladas o no.
+				}
+				throw new GestionMedicosException(5); // Ya está anulada
+			}
+
+			// Libera la fecha; si otra sesión ya la ha liberado, la consulta ya está anulada
+			pst_del_ocupacion = SentenciaSQL.DEL_OCUPACION.preparar(con);
+			pst_del_ocupacion.setInt(1, idMedico);
+			pst_del_ocupacion.setDate(2, m_Fecha_sql);
+			if (pst_del_ocupacion.executeUpdate() == 0) {
+				throw new GestionMedicosException(5);
+			}
+
+			ContadorConsultas.sumar(con, Collections.singletonMap(idMedico, -1));
+
+			EjecutorTransacciones.confirmar(con);
+			IndiceOcupacion.liberar(idMedico, m_Fecha_Consulta);
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+
+			if (e instanceof GestionMedicosException) {
+				throw (GestionMedicosException) e;
+			}
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+			if (OracleSGBDErrorUtil.getInstance().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) {
+				throw new GestionMedicosException(4); // Por si aparece una violacion de FK en el insert por no existir
+														// consulta. Aunque debería de haberse dado cuenta antes.
+			}
+
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (cierre != null)
+				cierre.close();
+			if (rs_sel_consulta != null)
+				rs_sel_consulta.close();
+			if (pst_sel_consulta != null)
+				pst_sel_consulta.close();
+			if (pst_ins_anulacion != null)
+				pst_ins_anulacion.close();
+			if (pst_del_ocupacion != null)
+				pst_del_ocupacion.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * anular_consultas: Método que anula un lote de consultas en una única
+	 * transacción, con la misma fecha y motivo de anulación. Médicos, clientes y
+	 * consultas se buscan igual que en reservar_consultas, las anulaciones se
+	 * insertan con executeBatch y el contador de cada médico se decrementa con
+	 * una única sentencia. Una consulta que no se puede anular no detiene el
+	 * lote: su resultado indica el motivo.
+	 *
+	 * @param consultas         Consultas a anular
+	 * @param m_Fecha_Anulacion Fecha en la que se anulan
+	 * @param motivo            Motivo de la anulación
+	 * @return Resultado de cada anulación, en el mismo orden: RESULTADO_OK o el
+	 *         código de GestionMedicosException (CLIENTE_NO_EXISTE,
+	 *         MEDICO_NO_EXISTE, CONSULTA_NO_EXISTE, CONSULTA_NO_ANULA si es
+	 *         demasiado tarde o ya estaba anulada, MOTIVO_NULL)
+	 * @throws SQLException Si falla la base de datos; en ese caso no se anula
+	 *                      ninguna consulta del lote
+	 */
+	public static int[] anular_consultas(List<PeticionConsulta> consultas, Date m_Fecha_Anulacion, String motivo)
+			throws SQLException {
+		return ejecutor.ejecutar(() -> anularConsultas(consultas, m_Fecha_Anulacion, motivo));
+	}
+
+	/* Un intento de anular_consultas, que el ejecutor puede repetir */
+	private static int[] anularConsultas(List<PeticionConsulta> consultas, Date m_Fecha_Anulacion, String motivo)
+			throws SQLException {
+
+		int[] resultados = new int[consultas.size()];
+		if (motivo == null) {
+			Arrays.fill(resultados, GestionMedicosException.MOTIVO_NULL);
+			return resultados;
+		}
+		if (descartarDesconocidos(consultas, resultados, true)) {
+			return resultados;
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CerrojosFranjas.Cierre cierre = null;
+
+		try {
+			cierre = bloquearHuecos(clavesFranja(consultas));
+			con = pool.getConnection();
+
+			Map<String, Integer> medicos = buscarMedicos(con, consultas);
+			Set<String> clientes = buscarClientes(con, consultas);
+			Map<String, Integer> activas = new HashMap<String, Integer>();
+			Set<String> existentes = new HashSet<String>();
+			buscarConsultas(con, consultas, medicos, activas, existentes);
+
+			List<Integer> anuladas = new ArrayList<Integer>();
+			Map<Integer, Integer> decrementos = new HashMap<Integer, Integer>();
+			for (int i = 0; i < consultas.size(); i++) {
+				PeticionConsulta consulta = consultas.get(i);
+				if (!clientes.contains(consulta.getNifCliente())) {
+					resultados[i] = GestionMedicosException.CLIENTE_NO_EXISTE;
+					continue;
+				}
+				Integer idMedico = medicos.get(consulta.getNifMedico());
+				if (idMedico == null) {
+					resultados[i] = GestionMedicosException.MEDICO_NO_EXISTE;
+					continue;
+				}
+				if (Misc.howManyDaysBetween(consulta.getFecha(), m_Fecha_Anulacion) < 2) {
+					resultados[i] = GestionMedicosException.CONSULTA_NO_ANULA;
+					continue;
+				}
+				String clave = claveConsulta(idMedico, consulta.getNifCliente(), consulta.getFecha());
+				// Se retira de las activas para que una repetición en el lote figure como ya anulada
+				Integer idConsulta = activas.remove(clave);
+				if (idConsulta == null) {
+					resultados[i] = existentes.contains(clave) ? GestionMedicosException.CONSULTA_NO_ANULA
+							: GestionMedicosException.CONSULTA_NO_EXISTE;
+					continue;
+				}
+				anuladas.add(idConsulta);
+				decrementos.merge(idMedico, -1, Integer::sum);
+				resultados[i] = RESULTADO_OK;
+			}
+
+			insertarAnulaciones(con, anuladas, m_Fecha_Anulacion, motivo);
+			ContadorConsultas.sumar(con, decrementos);
+
+			EjecutorTransacciones.confirmar(con);
+			for (int i = 0; i < consultas.size(); i++) {
+				if (resultados[i] == RESULTADO_OK) {
+					PeticionConsulta consulta = consultas.get(i);
+					IndiceOcupacion.liberar(medicos.get(consulta.getNifMedico()), consulta.getFecha());
+				}
+			}
+			return resultados;
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (cierre != null)
+				cierre.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * anular_consultas_medico: Método que anula todas las consultas no anuladas
+	 * de un médico entre dos fechas (ambas incluidas), por ejemplo cuando el
+	 * médico está de baja. Se hace en una única transacción: una búsqueda del
+	 * médico, una lectura de sus consultas en el rango, un executeBatch con las
+	 * anulaciones y una sentencia que decrementa su contador.
+	 *
+	 * @param m_NIF_medico      NIF del médico
+	 * @param m_Fecha_Desde     Primera fecha de consulta a anular
+	 * @param m_Fecha_Hasta     Última fecha de consulta a anular
+	 * @param m_Fecha_Anulacion Fecha en la que se anulan
+	 * @param motivo            Motivo de la anulación
+	 * @return Cada consulta no anulada del rango, en orden de fecha, con su
+	 *         resultado: RESULTADO_OK o CONSULTA_NO_ANULA si está a menos de dos
+	 *         días de la fecha de anulación
+	 * @throws SQLException Si el motivo es null, el médico no existe o falla la
+	 *                      base de datos
+	 */
+	public static Map<PeticionConsulta, Integer> anular_consultas_medico(String m_NIF_medico, Date m_Fecha_Desde,
+			Date m_Fecha_Hasta, Date m_Fecha_Anulacion, String motivo) throws SQLException {
+		return ejecutor.ejecutar(
+				() -> anularConsultasMedico(m_NIF_medico, m_Fecha_Desde, m_Fecha_Hasta, m_Fecha_Anulacion, motivo));
+	}
+
+	/* Un intento de anular_consultas_medico, que el ejecutor puede repetir */
+	private static Map<PeticionConsulta, Integer> anularConsultasMedico(String m_NIF_medico, Date m_Fecha_Desde,
+			Date m_Fecha_Hasta, Date m_Fecha_Anulacion, String motivo) throws SQLException {
+
+		if (motivo != null && !CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Map<PeticionConsulta, Integer> resultados = new LinkedHashMap<PeticionConsulta, Integer>();
+		Connection con = null;
+		CerrojosFranjas.Cierre cierre = null;
+		PreparedStatement pst_sel_consultas = null;
+		ResultSet rs_sel_consultas = null;
+
+		try {
+			cierre = bloquearHuecos(clavesFranja(m_NIF_medico, m_Fecha_Desde, m_Fecha_Hasta));
+			con = pool.getConnection();
+
+			if (motivo == null) {
+				throw new GestionMedicosException(6);
+			}
+
+			Integer idMedico = CacheReferencias.idMedico(con, m_NIF_medico);
+
+			if (idMedico == null) {
+				throw new GestionMedicosException(2);
+			}
+
+			pst_sel_consultas = SentenciaSQL.SEL_CONSULTAS_RANGO.preparar(con);
+			pst_sel_consultas.setInt(1, idMedico);
+			pst_sel_consultas.setDate(2, new java.sql.Date(Misc.truncDate(m_Fecha_Desde).getTime()));
+			pst_sel_consultas.setDate(3, new java.sql.Date(Misc.addDays(m_Fecha_Hasta, 1).getTime()));
+			rs_sel_consultas = pst_sel_consultas.executeQuery();
+
+			List<Integer> anuladas = new ArrayList<Integer>();
+			while (rs_sel_consultas.next()) {
+				if (rs_sel_consultas.getInt(4) > 0) {
+					continue; // Ya anulada
+				}
+				Date fecha = rs_sel_consultas.getTimestamp(2);
+				PeticionConsulta consulta = new PeticionConsulta(rs_sel_consultas.getString(3), m_NIF_medico, fecha);
+				if (Misc.howManyDaysBetween(fecha, m_Fecha_Anulacion) < 2) {
+					resultados.put(consulta, GestionMedicosException.CONSULTA_NO_ANULA);
+				} else {
+					anuladas.add(rs_sel_consultas.getInt(1));
+					resultados.put(consulta, RESULTADO_OK);
+				}
+			}
+
+			insertarAnulaciones(con, anuladas, m_Fecha_Anulacion, motivo);
+			if (!anuladas.isEmpty()) {
+				ContadorConsultas.sumar(con, Collections.singletonMap(idMedico, -anuladas.size()));
+			}
+
+			EjecutorTransacciones.confirmar(con);
+			for (Map.Entry<PeticionConsulta, Integer> resultado : resultados.entrySet()) {
+				if (resultado.getValue() == RESULTADO_OK) {
+					IndiceOcupacion.liberar(idMedico, resultado.getKey().getFecha());
+				}
+			}
+			return resultados;
+
+		} catch (SQLException e) {
+
+			if (con != null)
+				con.rollback();
+
+			if (e instanceof GestionMedicosException) {
+				throw (GestionMedicosException) e;
+			}
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (cierre != null)
+				cierre.close();
+			if (rs_sel_consultas != null)
+				rs_sel_consultas.close();
+			if (pst_sel_consultas != null)
+				pst_sel_consultas.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * insertarAnulaciones: Inserta una anulación por consulta y libera su fecha
+	 * en la tabla ocupacion, con executeBatch en bloques de TAMANO_LOTE.
+	 *
+	 * @param idsConsulta Consultas a anular
+	 */
+	private static void insertarAnulaciones(Connection con, List<Integer> idsConsulta, Date m_Fecha_Anulacion,
+			String motivo) throws SQLException {
+		if (idsConsulta.isEmpty()) {
+			return;
+		}
+		java.sql.Date m_Fecha_Anulacion_sql = new java.sql.Date(m_Fecha_Anulacion.getTime());
+		PreparedStatement pst_ins_anulacion = SentenciaSQL.INS_ANULACION.preparar(con);
+		PreparedStatement pst_del_ocupacion = null;
+		try {
+			pst_del_ocupacion = SentenciaSQL.DEL_OCUPACION_ID.preparar(con);
+			int pendientes = 0;
+			for (int idConsulta : idsConsulta) {
+				pst_ins_anulacion.setInt(1, idConsulta);
+				pst_ins_anulacion.setDate(2, m_Fecha_Anulacion_sql);
+				pst_ins_anulacion.setString(3, motivo);
+				pst_ins_anulacion.addBatch();
+				pst_del_ocupacion.setInt(1, idConsulta);
+				pst_del_ocupacion.addBatch();
+				if (++pendientes == TAMANO_LOTE) {
+					pst_ins_anulacion.executeBatch();
+					pst_del_ocupacion.executeBatch();
+					pendientes = 0;
+				}
+			}
+			if (pendientes > 0) {
+				pst_ins_anulacion.executeBatch();
+				pst_del_ocupacion.executeBatch();
+			}
+		} finally {
+			pst_ins_anulacion.close();
+			if (pst_del_ocupacion != null)
+				pst_del_ocupacion.close();
+		}
+	}
+
+	/**
+	 * consulta_medico: Método que imprime en pantalla las consultas no anuladas
+	 * para un médico. Se le pasa el NIF del médico. Si el NIF no está en la base de
+	 * datos lanza una GestionMedicosException. Imprime una consulta en cada línea.
+	 * Como solo lee datos, usa el pool de lectura. La salida por consola es un
+	 * consumidor más de las consultas que entrega el cursor.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @throws SQLException
+	 */
+	public static void consulta_medico(String m_NIF_medico) throws SQLException {
+		try (CursorConsultas cursor = CursorConsultas.abrir(m_NIF_medico, TAMANO_FETCH)) {
+			System.out.println("Consultas para el médico " + cursor.getIdMedico());
+			cursor.recorrer(System.out::println);
+		}
+	}
+
+	/**
+	 * consulta_medico: Variante que entrega cada consulta no anulada del médico,
+	 * en orden de fecha, a un consumidor, sin acumularlas en memoria. Las filas
+	 * se traen del servidor de tamanoFetch en tamanoFetch, y la conexión se
+	 * devuelve al pool nada más leer la última.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @param tamanoFetch  Filas que se traen en cada viaje al servidor
+	 * @param consumidor   Receptor de cada consulta; no debe bloquearse, ya que
+	 *                     mientras tanto se mantiene la conexión prestada
+	 * @return Número de consultas entregadas
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
+	 */
+	public static int consulta_medico(String m_NIF_medico, int tamanoFetch, Consumer<? super ConsultaMedico> consumidor)
+			throws SQLException {
+		try (CursorConsultas cursor = CursorConsultas.abrir(m_NIF_medico, tamanoFetch)) {
+			return cursor.recorrer(consumidor);
+		}
+	}
+
+	/**
+	 * consultas_medico: Variante que devuelve las consultas no anuladas del
+	 * médico, en orden de fecha, como un Stream perezoso: cada fila se lee al
+	 * consumirla y se traen del servidor de tamanoFetch en tamanoFetch. La
+	 * conexión se devuelve al pool al leer la última fila o al cerrar el Stream,
+	 * por lo que debe usarse con try-with-resources si no se recorre entero. Un
+	 * error de lectura durante el recorrido se lanza como IllegalStateException
+	 * con la SQLException como causa.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @param tamanoFetch  Filas que se traen en cada viaje al servidor
+	 * @return Consultas del médico
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
+	 */
+	public static Stream<ConsultaMedico> consultas_medico(String m_NIF_medico, int tamanoFetch) throws SQLException {
+		CursorConsultas cursor = CursorConsultas.abrir(m_NIF_medico, tamanoFetch);
+		return StreamSupport.stream(cursor, false).onClose(cursor::close);
+	}
+
+	/**
+	 * consultas_medico_pagina: Devuelve una página de las consultas no anuladas
+	 * de un médico, en orden de (fecha, id de consulta), opcionalmente limitadas
+	 * a una ventana de fechas. Usa paginación por clave: cada página empieza
+	 * después de la última consulta de la anterior, indicada por el testigo, y
+	 * recorre el índice de la clave primaria de ocupacion (id_medico,
+	 * fecha_consulta), por lo que la página N cuesta lo mismo que la primera. La
+	 * conexión solo se mantiene mientras se lee la página.
+	 * 
+	 * @param m_NIF_medico  NIF del médico
+	 * @param m_Fecha_Desde Primera fecha de consulta, o null para no limitar
+	 * @param m_Fecha_Hasta Última fecha de consulta (incluida), o null para no
+	 *                      limitar
+	 * @param tamanoPagina  Número máximo de consultas de la página
+	 * @param testigo       getSiguiente() de la página anterior, o null para la
+	 *                      primera
+	 * @return Página de consultas
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
+	 */
+	public static PaginaConsultas consultas_medico_pagina(String m_NIF_medico, Date m_Fecha_Desde,
+			Date m_Fecha_Hasta, int tamanoPagina, String testigo) throws SQLException {
+		return ejecutor.ejecutar(
+				() -> consultasMedicoPagina(m_NIF_medico, m_Fecha_Desde, m_Fecha_Hasta, tamanoPagina, testigo));
+	}
+
+	/* Un intento de consultas_medico_pagina, que el ejecutor puede repetir */
+	private static PaginaConsultas consultasMedicoPagina(String m_NIF_medico, Date m_Fecha_Desde,
+			Date m_Fecha_Hasta, int tamanoPagina, String testigo) throws SQLException {
+
+		if (tamanoPagina <= 0) {
+			throw new IllegalArgumentException("Tamaño de página no válido: " + tamanoPagina);
+		}
 
-		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		// Sin testigo se empieza antes de la primera consulta de la ventana. Las
+		// fechas se enlazan como DATE: un TIMESTAMP obligaría a convertir la
+		// columna y el índice ocupacion_pagina no acotaría el recorrido
+		java.sql.Date ultimaFecha = new java.sql.Date(
+				testigo != null ? PaginaConsultas.fechaTestigo(testigo).getTime()
+						: m_Fecha_Desde != null ? Misc.truncDate(m_Fecha_Desde).getTime() : FECHA_MINIMA.getTime());
+		int ultimoId = testigo != null ? PaginaConsultas.idTestigo(testigo) : 0;
+		java.sql.Date limite = m_Fecha_Hasta != null ? new java.sql.Date(Misc.addDays(m_Fecha_Hasta, 1).getTime())
+				: FECHA_MAXIMA;
+
+		if (!CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
 		Connection con = null;
-		PreparedStatement pst_sel_cliente = null;
-		PreparedStatement pst_sel_medico = null;
-		PreparedStatement pst_sel_consulta = null;
-		PreparedStatement pst_sel_anulacion = null;
-		PreparedStatement pst_ins_consulta = null;
-		PreparedStatement pst_upd_medico = null;
-		ResultSet rs_sel_cliente = null;
-		ResultSet rs_sel_medico = null;
-		ResultSet rs_sel_consulta = null;
-		ResultSet rs_sel_anulacion = null;
+		PreparedStatement pst_sel_pagina = null;
+		ResultSet rs_sel_pagina = null;
 
 		try {
 			con = pool.getConnection();
 
-			pst_sel_medico = con.prepareStatement("select id_medico from medico where NIF=?");
-			pst_sel_medico.setString(1, m_NIF_medico);
-			rs_sel_medico = pst_sel_medico.executeQuery();
-			if (!rs_sel_medico.next()) {
+			Integer idMedico = CacheReferencias.idMedico(con, m_NIF_medico);
+
+			if (idMedico == null) {
 				throw new GestionMedicosException(2);
 			}
 
-			int idMedico = rs_sel_medico.getInt(1);
-			java.sql.Date m_Fecha_sql = new java.sql.Date(m_Fecha_Consulta.getTime());
-
-			pst_ins_consulta = con.prepareStatement("insert into consulta " + "values (seq_consulta.nextval, ?, ?, ?)");
-			pst_ins_consulta.setDate(1, m_Fecha_sql);
-			pst_ins_consulta.setInt(2, idMedico);
-			pst_ins_consulta.setString(3, m_NIF_cliente);
-			pst_ins_consulta.executeUpdate();
-			pst_upd_medico = con.prepareStatement("update medico set consultas = consultas + ? where id_medico = ?"
-					+ " and (select count(*) from consulta join anulacion on consulta.id_consulta=anulacion.id_consulta"
-					+ " where fecha_consulta=? and consulta.id_medico = ? and consulta.NIF = ?)+1"
-					+ "=(select count(*) from consulta where fecha_consulta=? and id_medico=? and NIF = ?)");
-			pst_upd_medico.setInt(1, 1);
-			pst_upd_medico.setInt(2, idMedico);
-			pst_upd_medico.setDate(3, m_Fecha_sql);
-			pst_upd_medico.setInt(4, idMedico);
-			pst_upd_medico.setString(5, m_NIF_cliente);
-			pst_upd_medico.setDate(6, m_Fecha_sql);
-			pst_upd_medico.setInt(7, idMedico);
-			pst_upd_medico.setString(8, m_NIF_cliente);
-
-			int numUpd = pst_upd_medico.executeUpdate();
-			if (numUpd == 0) {
-				throw new GestionMedicosException(3);
+			// Se pide una consulta de más para saber si hay página siguiente
+			pst_sel_pagina = SentenciaSQL.SEL_PAGINA_CONSULTAS_MEDICO.preparar(con);
+			pst_sel_pagina.setFetchSize(Math.min(tamanoPagina + 1, TAMANO_FETCH));
+			pst_sel_pagina.setInt(1, idMedico);
+			pst_sel_pagina.setDate(2, ultimaFecha);
+			pst_sel_pagina.setDate(3, ultimaFecha);
+			pst_sel_pagina.setInt(4, ultimoId);
+			pst_sel_pagina.setDate(5, limite);
+			pst_sel_pagina.setInt(6, tamanoPagina + 1);
+			rs_sel_pagina = pst_sel_pagina.executeQuery();
+
+			List<ConsultaMedico> consultas = new ArrayList<ConsultaMedico>(tamanoPagina);
+			boolean hayMas = false;
+			while (rs_sel_pagina.next()) {
+				if (consultas.size() == tamanoPagina) {
+					hayMas = true;
+					break;
+				}
+				consultas.add(new ConsultaMedico(rs_sel_pagina.getInt(1), rs_sel_pagina.getTimestamp(2),
+						rs_sel_pagina.getInt(3), rs_sel_pagina.getString(4)));
 			}
 
 			con.commit();
+			return new PaginaConsultas(consultas, hayMas);
 
 		} catch (SQLException e) {
 
-			con.rollback();
+			if (con != null)
+				con.rollback();
 
 			if (e instanceof GestionMedicosException) {
 				throw (GestionMedicosException) e;
 			}
-			if (new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) {
-				throw new GestionMedicosException(1);
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
 			}
-
 			logger.error(e.getMessage());
 			throw e;
 
 		} finally {
-			/* Se liberan todos los recursos que sean necesarios */
-			if (rs_sel_cliente != null)
-				rs_sel_cliente.close();
-			if (rs_sel_medico != null)
-				rs_sel_medico.close();
-			if (rs_sel_consulta != null)
-				rs_sel_consulta.close();
-			if (rs_sel_anulacion != null)
-				rs_sel_anulacion.close();
-			if (pst_sel_cliente != null)
-				pst_sel_cliente.close();
-			if (pst_sel_medico != null)
-				pst_sel_medico.close();
-			if (pst_sel_consulta != null)
-				pst_sel_consulta.close();
-			if (pst_sel_anulacion != null)
-				pst_sel_anulacion.close();
-			if (pst_ins_consulta != null)
-				pst_ins_consulta.close();
-			if (pst_upd_medico != null)
-				pst_upd_medico.close();
+			/* Liberar recursos */
+			if (rs_sel_pagina != null)
+				rs_sel_pagina.close();
+			if (pst_sel_pagina != null)
+				pst_sel_pagina.close();
 			if (con != null)
 				con.close();
 		}
-
 	}
 
 	/**
-	 * anular_consulta: Método que implementa la transacción para anular una
-	 * consulta. Recibe el NIF del cliente, el NIF del médico, la fecha de la
-	 * consulta que se quiere anular, la fecha en la que se anula y el motivo. Si
-	 * alguno de los datos no se encuentra en la base de datos, la fecha de
-	 * anulación está a menos de dos días de la consulta que se quiere anular o el
-	 * motivo es null, lanza una GestionMedicosException.
-	 * 
-	 * @param m_NIF_cliente     NIF del cliente
-	 * @param m_NIF_medico      NIF del médico
-	 * @param m_Fecha_Consulta  Fecha de la consulta a anular
-	 * @param m_Fecha_Anulacion Fecha en la que se anula
-	 * @param motivo            Motivo de la anulación
-	 * @throws SQLException
+	 * total_consultas: Devuelve el número de consultas no anuladas de un
+	 * médico. Con el contador repartido suma medico.consultas y las filas de
+	 * medico_consultas que aún no se han plegado.
+	 *
+	 * @param m_NIF_medico NIF del médico
+	 * @return Total de consultas
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
 	 */
-	public static void anular_consulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta,
-			Date m_Fecha_Anulacion, String motivo) throws SQLException {
+	public static int total_consultas(String m_NIF_medico) throws SQLException {
+		return ejecutor.ejecutar(() -> totalConsultas(m_NIF_medico));
+	}
 
-		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+	/* Un intento de total_consultas, que el ejecutor puede repetir */
+	private static int totalConsultas(String m_NIF_medico) throws SQLException {
+
+		if (!CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
 		Connection con = null;
-		PreparedStatement pst_sel_cliente = null;
-		PreparedStatement pst_sel_medico = null;
-		PreparedStatement pst_sel_consulta = null;
-		PreparedStatement pst_sel_anulacion = null;
-		PreparedStatement pst_upd_medico = null;
-		PreparedStatement pst_ins_anulacion = null;
-		ResultSet rs_sel_cliente = null;
-		ResultSet rs_sel_medico = null;
-		ResultSet rs_sel_consulta = null;
-		ResultSet rs_sel_anulacion = null;
 
 		try {
 			con = pool.getConnection();
 
-			if (motivo == null) {
-				throw new GestionMedicosException(6);
+			Integer idMedico = CacheReferencias.idMedico(con, m_NIF_medico);
+
+			if (idMedico == null) {
+				throw new GestionMedicosException(2);
 			}
 
-			pst_sel_cliente = con.prepareStatement("select NIF from cliente where NIF=?");
-			pst_sel_cliente.setString(1, m_NIF_cliente);
-			rs_sel_cliente = pst_sel_cliente.executeQuery();
+			int total = ContadorConsultas.total(con, idMedico);
+			con.commit();
+			return total;
 
-			if (!rs_sel_cliente.next()) {
-				throw new GestionMedicosException(1);
-			}
+		} catch (SQLException e) {
 
-			pst_sel_medico = con.prepareStatement("select id_medico " + "from medico " + "where NIF=?");
-			pst_sel_medico.setString(1, m_NIF_medico);
-			rs_sel_medico = pst_sel_medico.executeQuery();
+			if (con != null)
+				con.rollback();
 
-			if (!rs_sel_medico.next()) {
-				throw new GestionMedicosException(2);
+			if (e instanceof GestionMedicosException) {
+				throw (GestionMedicosException) e;
 			}
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
+			logger.error(e.getMessage());
+			throw e;
 
-			int idMedico = rs_sel_medico.getInt(1);
-			java.sql.Date m_Fecha_sql = new java.sql.Date(m_Fecha_Consulta.getTime());
+		} finally {
+			/* Liberar recursos */
+			if (con != null)
+				con.close();
+		}
+	}
 
-			if (Misc.howManyDaysBetween(m_Fecha_Consulta, m_Fecha_Anulacion) < 2) {
-				throw new GestionMedicosException(5);
-			}
+	/**
+	 * huecos_libres: Devuelve los siguientes días libres de un médico a partir
+	 * de una fecha (incluida). Lee los días ocupados de la tabla ocupacion por
+	 * ventanas de días con una consulta de rango, los marca en un BitSet y
+	 * recorre los bits libres; normalmente basta con una ventana.
+	 *
+	 * @param m_NIF_medico  NIF del médico
+	 * @param m_Fecha_Desde Primer día que se mira
+	 * @param cuantos       Número de días libres que se quieren
+	 * @return Días libres en orden, truncados al día
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
+	 */
+	public static List<Date> huecos_libres(String m_NIF_medico, Date m_Fecha_Desde, int cuantos)
+			throws SQLException {
+		return ejecutor.ejecutar(() -> huecosLibres(m_NIF_medico, m_Fecha_Desde, cuantos));
+	}
+
+	/* Un intento de huecos_libres, que el ejecutor puede repetir */
+	private static List<Date> huecosLibres(String m_NIF_medico, Date m_Fecha_Desde, int cuantos)
+			throws SQLException {
+
+		if (cuantos <= 0) {
+			throw new IllegalArgumentException("Número de días libres no válido: " + cuantos);
+		}
+		if (!CacheReferencias.puedeExistirMedico(m_NIF_medico)) {
+			throw new GestionMedicosException(2);
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
+		Connection con = null;
+		PreparedStatement pst_sel_ocupacion = null;
+
+		try {
+			con = pool.getConnection();
 
-			pst_sel_consulta = con.prepareStatement("select id_consulta from consulta where fecha_consulta=?");
-			pst_sel_consulta.setDate(1, m_Fecha_sql);
-			rs_sel_consulta = pst_sel_consulta.executeQuery();
+			Integer idMedico = CacheReferencias.idMedico(con, m_NIF_medico);
 
-			if (!rs_sel_consulta.next()) {
-				throw new GestionMedicosException(4); // No existe consultas para ese día anuladas o no.
+			if (idMedico == null) {
+				throw new GestionMedicosException(2);
 			}
 
-			int idConsulta = rs_sel_consulta.getInt(1);
-			pst_ins_anulacion = con.prepareStatement("insert into anulacion values (seq_anulacion.nextval, ?, ?, ?)");
-			java.sql.Date m_Fecha_Anulacion_sql = new java.sql.Date(m_Fecha_Anulacion.getTime());
-			pst_ins_anulacion.setInt(1, idConsulta);
-			pst_ins_anulacion.setDate(2, m_Fecha_Anulacion_sql);
-			pst_ins_anulacion.setString(3, motivo);
-			pst_ins_anulacion.executeUpdate();
-
-			pst_upd_medico = con.prepareStatement("update medico set consultas = consultas + ? where id_medico = ?"
-					+ " and (select count(*) from consulta join anulacion on consulta.id_consulta=anulacion.id_consulta"
-					+ " where fecha_consulta=? and consulta.id_medico = ? and consulta.NIF = ?)"
-					+ "=(select count(*) from consulta where fecha_consulta=? and id_medico=? and NIF = ?)");
-			pst_upd_medico.setInt(1, -1);
-			pst_upd_medico.setInt(2, idMedico);
-			pst_upd_medico.setDate(3, m_Fecha_sql);
-			pst_upd_medico.setInt(4, idMedico);
-			pst_upd_medico.setString(5,m_NIF_cliente);
-			pst_upd_medico.setDate(6, m_Fecha_sql);
-			pst_upd_medico.setInt(7, idMedico);
-			pst_upd_medico.setString(8,m_NIF_cliente);
-			int numUpd = pst_upd_medico.executeUpdate();
-
-			if (numUpd == 0) {
-				throw new GestionMedicosException(5); // Ya está anulada
+			pst_sel_ocupacion = SentenciaSQL.SEL_OCUPACION_RANGO.preparar(con);
+			List<Date> libres = new ArrayList<Date>(cuantos);
+			Date inicio = Misc.truncDate(m_Fecha_Desde);
+			int ventana = Math.max(VENTANA_HUECOS, 2 * cuantos);
+			while (libres.size() < cuantos) {
+				BitSet ocupados = diasOcupados(pst_sel_ocupacion, idMedico, inicio, ventana);
+				int dia = ocupados.nextClearBit(0);
+				while (dia < ventana && libres.size() < cuantos) {
+					libres.add(Misc.addDays(inicio, dia));
+					dia = ocupados.nextClearBit(dia + 1);
+				}
+				inicio = Misc.addDays(inicio, ventana);
 			}
 
 			con.commit();
+			return libres;
 
 		} catch (SQLException e) {
 
-			con.rollback();
+			if (con != null)
+				con.rollback();
 
 			if (e instanceof GestionMedicosException) {
 				throw (GestionMedicosException) e;
 			}
-			if (new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) {
-				throw new GestionMedicosException(4); // Por si aparece una violacion de FK en el insert por no existir
-														// consulta. Aunque debería de haberse dado cuenta antes.
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
 			}
-
 			logger.error(e.getMessage());
 			throw e;
 
 		} finally {
 			/* Liberar recursos */
-			if (rs_sel_cliente != null)
-				rs_sel_cliente.close();
-			if (rs_sel_medico != null)
-				rs_sel_medico.close();
-			if (rs_sel_consulta != null)
-				rs_sel_consulta.close();
-			if (rs_sel_anulacion != null)
-				rs_sel_anulacion.close();
-			if (pst_sel_cliente != null)
-				pst_sel_cliente.close();
-			if (pst_sel_medico != null)
-				pst_sel_medico.close();
-			if (pst_sel_consulta != null)
-				pst_sel_consulta.close();
-			if (pst_sel_anulacion != null)
-				pst_sel_anulacion.close();
-			if (pst_ins_anulacion != null)
-				pst_ins_anulacion.close();
-			if (pst_upd_medico != null)
-				pst_upd_medico.close();
+			if (pst_sel_ocupacion != null)
+				pst_sel_ocupacion.close();
 			if (con != null)
 				con.close();
 		}
 	}
 
 	/**
-	 * consulta_medico: Método que imprime en pantalla las consultas no anuladas
-	 * para un médico. Se le pasa el NIF del médico. Si el NIF no está en la base de
-	 * datos lanza una GestionMedicosException. Imprime una consulta en cada línea.
-	 * 
-	 * @param m_NIF_medico NIF del médico
+	 * huecos_libres: Devuelve los días libres de un médico entre dos fechas
+	 * (ambas incluidas).
+	 *
+	 * @param m_NIF_medico  NIF del médico
+	 * @param m_Fecha_Desde Primer día que se mira
+	 * @param m_Fecha_Hasta Último día que se mira
+	 * @return Días libres en orden, truncados al día
+	 * @throws SQLException MEDICO_NO_EXISTE si no existe el médico
+	 */
+	public static List<Date> huecos_libres(String m_NIF_medico, Date m_Fecha_Desde, Date m_Fecha_Hasta)
+			throws SQLException {
+		List<Date> libres = huecos_libres(Collections.singletonList(m_NIF_medico), m_Fecha_Desde, m_Fecha_Hasta)
+				.get(m_NIF_medico);
+		if (libres == null) {
+			throw new GestionMedicosException(2);
+		}
+		return libres;
+	}
+
+	/**
+	 * huecos_libres: Devuelve los días libres de varios médicos entre dos fechas
+	 * (ambas incluidas), con una conexión y una sola consulta que trae los días
+	 * ocupados de LOTE_MEDICOS médicos a la vez (por su NIF, sin buscar antes
+	 * su id_medico); los días de cada médico se separan en memoria.
+	 *
+	 * @param nifsMedicos   NIF de los médicos
+	 * @param m_Fecha_Desde Primer día que se mira
+	 * @param m_Fecha_Hasta Último día que se mira
+	 * @return NIF -> días libres en orden, en el orden de nifsMedicos; los
+	 *         médicos que no existen no aparecen
 	 * @throws SQLException
 	 */
-	public static void consulta_medico(String m_NIF_medico) throws SQLException {
+	public static Map<String, List<Date>> huecos_libres(List<String> nifsMedicos, Date m_Fecha_Desde,
+			Date m_Fecha_Hasta) throws SQLException {
+		return ejecutor.ejecutar(() -> huecosLibres(nifsMedicos, m_Fecha_Desde, m_Fecha_Hasta));
+	}
 
-		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+	/* Un intento de huecos_libres, que el ejecutor puede repetir */
+	private static Map<String, List<Date>> huecosLibres(List<String> nifsMedicos, Date m_Fecha_Desde,
+			Date m_Fecha_Hasta) throws SQLException {
+
+		Map<String, List<Date>> libres = new LinkedHashMap<String, List<Date>>();
+		Date inicio = Misc.truncDate(m_Fecha_Desde);
+		int dias = diaHueco(inicio, m_Fecha_Hasta) + 1;
+		if (dias <= 0) {
+			for (String nif : nifsMedicos) {
+				if (CacheReferencias.puedeExistirMedico(nif))
+					libres.put(nif, Collections.<Date>emptyList());
+			}
+			return libres;
+		}
+
+		// Los NIF que seguro que no existen no se buscan
+		List<String> buscados = new ArrayList<String>();
+		for (String nif : new LinkedHashSet<String>(nifsMedicos)) {
+			if (CacheReferencias.puedeExistirMedico(nif))
+				buscados.add(nif);
+		}
+		if (buscados.isEmpty()) {
+			return libres;
+		}
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
 		Connection con = null;
-		java.util.Date fecha;
-		int consulta;
-		int medico;
-		String paciente;
-		PreparedStatement pst_sel_medico = null;
-		PreparedStatement pst_sel_consulta = null;
-		ResultSet rs_sel_consulta = null;
-		ResultSet rs_sel_medico = null;
+		PreparedStatement pst_sel_ocupacion = null;
+		ResultSet rs_sel_ocupacion = null;
 
 		try {
-
 			con = pool.getConnection();
 
-			pst_sel_medico = con.prepareStatement("select id_medico " + "from medico " + "where NIF=?");
-			pst_sel_medico.setString(1, m_NIF_medico);
-			rs_sel_medico = pst_sel_medico.executeQuery();
+			pst_sel_ocupacion = SentenciaSQL.SEL_OCUPACION_MEDICOS.preparar(con);
+			pst_sel_ocupacion.setFetchSize(TAMANO_FETCH);
+			pst_sel_ocupacion.setDate(1, new java.sql.Date(inicio.getTime()));
+			pst_sel_ocupacion.setDate(2, new java.sql.Date(Misc.addDays(inicio, dias).getTime()));
+
+			// Una fila por día ocupado, o una sin fecha si el médico no tiene ninguno
+			Map<String, BitSet> ocupados = new HashMap<String, BitSet>();
+			for (int desde = 0; desde < buscados.size(); desde += LOTE_MEDICOS) {
+				List<String> lote = buscados.subList(desde, Math.min(desde + LOTE_MEDICOS, buscados.size()));
+				for (int i = 0; i < LOTE_MEDICOS; i++) {
+					pst_sel_ocupacion.setString(3 + i, lote.get(Math.min(i, lote.size() - 1)));
+				}
+				rs_sel_ocupacion = pst_sel_ocupacion.executeQuery();
+				while (rs_sel_ocupacion.next()) {
+					BitSet diasMedico = ocupados.computeIfAbsent(rs_sel_ocupacion.getString(1), k -> new BitSet(dias));
+					Timestamp fecha = rs_sel_ocupacion.getTimestamp(2);
+					if (fecha != null) {
+						diasMedico.set(diaHueco(inicio, fecha));
+					}
+				}
+				rs_sel_ocupacion.close();
+				rs_sel_ocupacion = null;
+			}
 
-			if (!rs_sel_medico.next()) {
-				throw new GestionMedicosException(2);
+			// Los médicos que no existen no traen ninguna fila
+			for (String nif : buscados) {
+				BitSet diasMedico = ocupados.get(nif);
+				if (diasMedico == null) {
+					continue;
+				}
+				List<Date> libresMedico = new ArrayList<Date>(dias - diasMedico.cardinality());
+				for (int dia = diasMedico.nextClearBit(0); dia < dias; dia = diasMedico.nextClearBit(dia + 1)) {
+					libresMedico.add(Misc.addDays(inicio, dia));
+				}
+				libres.put(nif, libresMedico);
 			}
 
-			medico = rs_sel_medico.getInt(1);
+			con.commit();
+			return libres;
 
-			pst_sel_consulta = con.prepareStatement("SELECT id_consulta, fecha_consulta, id_medico, NIF "
-					+ "FROM consulta " + "WHERE id_medico = ? " + "AND NOT EXISTS ( " + "SELECT * " + "FROM anulacion "
-					+ "WHERE anulacion.id_consulta = consulta.id_consulta " + ") " + "ORDER BY fecha_consulta");
+		} catch (SQLException e) {
 
-			pst_sel_consulta.setInt(1, medico);
-			rs_sel_consulta = pst_sel_consulta.executeQuery();
+			if (con != null)
+				con.rollback();
 
-			System.out.println("Consultas para el médico " + medico);
-			
-			while (rs_sel_consulta.next()) {				
-				fecha = rs_sel_consulta.getDate(2);
-				consulta = rs_sel_consulta.getInt(1);
-				paciente = new String(rs_sel_consulta.getString(4));
-				System.out.println("*Fecha: " + fecha + "   *Consulta: " + consulta + "   *NIF Paciente: " + paciente);
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
 			}
-			
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (rs_sel_ocupacion != null)
+				rs_sel_ocupacion.close();
+			if (pst_sel_ocupacion != null)
+				pst_sel_ocupacion.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * medicos_especialidad: Devuelve los médicos de una especialidad con su
+	 * primer día libre a partir de una fecha (incluida), ordenados por ese día.
+	 * Una sola consulta trae los médicos de la especialidad (por el índice
+	 * medico_especialidad) junto con sus días ocupados en una ventana de
+	 * VENTANA_HUECOS días, y el primer día libre de cada uno se busca en
+	 * memoria. Solo si algún médico tiene ocupada toda la ventana se repite la
+	 * consulta con la ventana siguiente, para esos médicos.
+	 *
+	 * @param especialidad  Especialidad, por ejemplo "Oncologia"
+	 * @param m_Fecha_Desde Primer día que se mira
+	 * @return Médicos con su primer día libre; vacía si no hay ninguno
+	 * @throws SQLException
+	 */
+	public static List<MedicoLibre> medicos_especialidad(String especialidad, Date m_Fecha_Desde)
+			throws SQLException {
+		return ejecutor.ejecutar(() -> medicosEspecialidad(especialidad, m_Fecha_Desde));
+	}
+
+	/* Un intento de medicos_especialidad, que el ejecutor puede repetir */
+	private static List<MedicoLibre> medicosEspecialidad(String especialidad, Date m_Fecha_Desde)
+			throws SQLException {
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
+		Connection con = null;
+		PreparedStatement pst_sel_ocupacion = null;
+		ResultSet rs_sel_ocupacion = null;
+
+		try {
+			con = pool.getConnection();
+
+			pst_sel_ocupacion = SentenciaSQL.SEL_OCUPACION_ESPECIALIDAD.preparar(con);
+			pst_sel_ocupacion.setFetchSize(TAMANO_FETCH);
+			List<MedicoLibre> medicos = new ArrayList<MedicoLibre>();
+			Set<String> pendientes = null;
+			Date inicio = Misc.truncDate(m_Fecha_Desde);
+			do {
+				pst_sel_ocupacion.setDate(1, new java.sql.Date(inicio.getTime()));
+				pst_sel_ocupacion.setDate(2, new java.sql.Date(Misc.addDays(inicio, VENTANA_HUECOS).getTime()));
+				pst_sel_ocupacion.setString(3, especialidad);
+				rs_sel_ocupacion = pst_sel_ocupacion.executeQuery();
+
+				// Una fila por día ocupado, o una sin fecha si el médico no tiene ninguno
+				Map<String, BitSet> ocupados = new HashMap<String, BitSet>();
+				Map<String, String[]> nombres = new HashMap<String, String[]>();
+				while (rs_sel_ocupacion.next()) {
+					String nif = rs_sel_ocupacion.getString(1);
+					if (pendientes != null && !pendientes.contains(nif)) {
+						continue;
+					}
+					BitSet dias = ocupados.computeIfAbsent(nif, k -> new BitSet(VENTANA_HUECOS));
+					if (!nombres.containsKey(nif)) {
+						nombres.put(nif, new String[] { rs_sel_ocupacion.getString(2), rs_sel_ocupacion.getString(3),
+								rs_sel_ocupacion.getString(4) });
+					}
+					Timestamp fecha = rs_sel_ocupacion.getTimestamp(5);
+					if (fecha != null) {
+						dias.set(diaHueco(inicio, fecha));
+					}
+				}
+				rs_sel_ocupacion.close();
+				rs_sel_ocupacion = null;
+
+				pendientes = new HashSet<String>();
+				for (Map.Entry<String, BitSet> medico : ocupados.entrySet()) {
+					int dia = medico.getValue().nextClearBit(0);
+					if (dia < VENTANA_HUECOS) {
+						String[] nombre = nombres.get(medico.getKey());
+						medicos.add(new MedicoLibre(medico.getKey(), nombre[0], nombre[1], nombre[2],
+								Misc.addDays(inicio, dia)));
+					} else {
+						pendientes.add(medico.getKey());
+					}
+				}
+				inicio = Misc.addDays(inicio, VENTANA_HUECOS);
+			} while (!pendientes.isEmpty());
+
 			con.commit();
-			
+			medicos.sort(MedicoLibre.POR_DIA_LIBRE);
+			return medicos;
+
 		} catch (SQLException e) {
 
-			con.rollback();
+			if (con != null)
+				con.rollback();
+
+			if (e instanceof PoolSaturadoException) {
+				throw new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+			}
 			logger.error(e.getMessage());
 			throw e;
 
 		} finally {
 			/* Liberar recursos */
+			if (rs_sel_ocupacion != null)
+				rs_sel_ocupacion.close();
+			if (pst_sel_ocupacion != null)
+				pst_sel_ocupacion.close();
+			if (con != null)
+				con.close();
+		}
+	}
 
-			if (rs_sel_medico != null)
-				rs_sel_medico.close();
-			if (rs_sel_consulta != null)
-				rs_sel_consulta.close();
-			if (pst_sel_medico != null)
-				pst_sel_medico.close();
-			if (pst_sel_consulta != null)
-				pst_sel_consulta.close();
+	/**
+	 * diasOcupados: Lee los días ocupados de un médico desde inicio (truncado al
+	 * día) durante el número de días indicado.
+	 *
+	 * @return BitSet con el bit i activo si está ocupado el día inicio + i
+	 */
+	private static BitSet diasOcupados(PreparedStatement pst_sel_ocupacion, int idMedico, Date inicio, int dias)
+			throws SQLException {
+		BitSet ocupados = new BitSet(dias);
+		pst_sel_ocupacion.setInt(1, idMedico);
+		pst_sel_ocupacion.setDate(2, new java.sql.Date(inicio.getTime()));
+		pst_sel_ocupacion.setDate(3, new java.sql.Date(Misc.addDays(inicio, dias).getTime()));
+		try (ResultSet rs_sel_ocupacion = pst_sel_ocupacion.executeQuery()) {
+			while (rs_sel_ocupacion.next()) {
+				ocupados.set(diaHueco(inicio, rs_sel_ocupacion.getTimestamp(1)));
+			}
+		}
+		return ocupados;
+	}
+
+	/**
+	 * diaHueco: Días entre inicio (truncado al día) y fecha. Se redondea porque
+	 * con el cambio de hora no todos los días duran 24 horas.
+	 */
+	private static int diaHueco(Date inicio, Date fecha) {
+		long diferencia = Misc.truncDate(fecha).getTime() - inicio.getTime();
+		return (int) Math.round(diferencia / (double) TimeUnit.DAYS.toMillis(1));
+	}
+
+	/**
+	 * setModoServidor: Elige si las transacciones reservar_consulta,
+	 * anular_consulta y consulta_medico se ejecutan en el cliente (varias
+	 * sentencias) o en el servidor (una llamada a un procedimiento almacenado de
+	 * gestion_medicos.sql). Por defecto se toma de la propiedad de sistema
+	 * PROPIEDAD_MODO.
+	 * 
+	 * @param servidor true para usar los procedimientos almacenados
+	 */
+	public static void setModoServidor(boolean servidor) {
+		modoServidor = servidor;
+	}
+
+	public static boolean isModoServidor() {
+		return modoServidor;
+	}
+
+	/**
+	 * ejecutarEnServidor: Ejecuta una transacción con una única llamada a su
+	 * procedimiento almacenado, que la confirma o la deshace él mismo. Si se
+	 * pierde la conexión una vez enviada la llamada no se sabe si se confirmó, y
+	 * se lanza ConfirmacionInciertaException para que no se repita.
+	 * 
+	 * @param llamada Llamada al procedimiento
+	 * @param parametros Parámetros de la llamada, en orden
+	 * @throws SQLException
+	 */
+	private static void ejecutarEnServidor(SentenciaSQL llamada, Object... parametros) throws SQLException {
+
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CallableStatement cll_transaccion = null;
+		boolean enviada = false;
+
+		try {
+			con = pool.getConnection();
+
+			cll_transaccion = llamada.prepararLlamada(con);
+			for (int i = 0; i < parametros.length; i++) {
+				cll_transaccion.setObject(i + 1, parametros[i]);
+			}
+			enviada = true;
+			cll_transaccion.execute();
+
+		} catch (SQLException e) {
+
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (SQLException ignorada) {
+					// Con la conexión perdida no hay nada que deshacer: vale el error original
+				}
+			}
+
+			// El procedimiento confirma él mismo: si se pierde la conexión durante la
+			// llamada puede haberse confirmado, y repetirla la vería como ocupada
+			if (enviada && OracleSGBDErrorUtil.getInstance().classify(e) == SGBDError.CONNECTION_LOST) {
+				logger.error(e.getMessage());
+				throw new ConfirmacionInciertaException(e);
+			}
+			throw traducirErrorServidor(e);
+
+		} finally {
+			/* Liberar recursos */
+			if (cll_transaccion != null)
+				cll_transaccion.close();
 			if (con != null)
 				con.close();
 		}
 	}
-	
+
+	/**
+	 * traducirErrorServidor: Convierte el error de un procedimiento almacenado
+	 * en la GestionMedicosException equivalente.
+	 * 
+	 * @param e Error recibido
+	 * @return Excepción a lanzar
+	 */
+	static SQLException traducirErrorServidor(SQLException e) {
+		if (e instanceof PoolSaturadoException) {
+			return new GestionMedicosException(GestionMedicosException.SISTEMA_OCUPADO);
+		}
+		int codigo = e.getErrorCode() - ERROR_APLICACION;
+		if (codigo >= GestionMedicosException.CLIENTE_NO_EXISTE && codigo <= GestionMedicosException.MOTIVO_NULL) {
+			return new GestionMedicosException(codigo);
+		}
+		logger.error(e.getMessage());
+		return e;
+	}
+
+	/**
+	 * calentarPool: Método que abre en paralelo las conexiones iniciales del pool
+	 * y prepara en cada una las sentencias del catálogo SentenciaSQL, para que las
+	 * primeras peticiones no paguen la apertura de conexiones ni el análisis de
+	 * las sentencias. Por defecto la caché de sentencias se dimensiona para el
+	 * catálogo completo.
+	 */
+	public static void calentarPool() {
+		PoolDeConexiones.getInstance().calentar(SentenciaSQL.textos());
+	}
+
 	/**
 	 * crearTablas: Método que ejecuta el script gestion_medicos.sql.
 	 * El script crea las tablas y secuencias de la base de datos.
@@ -387,6 +1762,8 @@ public class GestionMedicos {
 	 */
 	static void tests() throws SQLException {
 		creaTablas();
+		calentarPool();
+		CacheReferencias.precargar();
 
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 
@@ -549,31 +1926,83 @@ public class GestionMedicos {
 			rs_consultas_medico = pst_consultas_medico.executeQuery();
 			rs_consultas_medico.next();
 			consultasFin = rs_consultas_medico.getInt(1);
-			if (consultasFin - consultasIni == 1) {
-				consultas = true;
-			}
+			if (consultasFin - consultasIni == 1) {
+				consultas = true;
+			}
+
+			if (consultas && insertBien) {
+				System.out
+						.println("RESERVA-OK. Inserta la anulación y incrementa el contador de consultas del médico.");
+			} else {
+				System.out.println("RESERVA-Mal. No inserta la fila o no incrementa el contador correctamente.");
+			}
+
+		} catch (SQLException e) {
+			System.out.println("RESERVA-Mal. Algo no ha ido bien en la transacción. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+
+			if (rs_consultas_medico != null)
+				rs_consultas_medico.close();
+			if (rs_sel_reservas != null)
+				rs_sel_reservas.close();
+			if (pst_consultas_medico != null)
+				pst_consultas_medico.close();			
+			if (pst_sel_reservas != null)
+				pst_sel_reservas.close();
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Reservar un lote de consultas. La primera es correcta, las siguientes
+		// tienen médico inexistente, cliente inexistente, fecha ocupada y la última
+		// repite la primera. Solo debe reservarse la primera.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			String nifMed = "222222B";
+			pst_consultas_medico = conn.prepareStatement("select consultas from medico where NIF =?");
+			pst_consultas_medico.setString(1, nifMed);
+			rs_consultas_medico = pst_consultas_medico.executeQuery();
+			rs_consultas_medico.next();
+			consultasIni = rs_consultas_medico.getInt(1);
+			rs_consultas_medico.close();
+
+			int[] resultados = reservar_consultas(Arrays.asList(
+					new PeticionConsulta("12345678A", nifMed, fechaBien),
+					new PeticionConsulta("12345678A", "222288B", fechaBien),
+					new PeticionConsulta("12341234G", nifMed, fechaBien),
+					new PeticionConsulta("87654321B", "8766788Y", fechaOcupada),
+					new PeticionConsulta("12345678A", nifMed, fechaBien)));
+			int[] esperados = { RESULTADO_OK, GestionMedicosException.MEDICO_NO_EXISTE,
+					GestionMedicosException.CLIENTE_NO_EXISTE, GestionMedicosException.MEDICO_OCUPADO,
+					GestionMedicosException.MEDICO_OCUPADO };
+
+			rs_consultas_medico = pst_consultas_medico.executeQuery();
+			rs_consultas_medico.next();
+			consultasFin = rs_consultas_medico.getInt(1);
 
-			if (consultas && insertBien) {
-				System.out
-						.println("RESERVA-OK. Inserta la anulación y incrementa el contador de consultas del médico.");
+			if (Arrays.equals(esperados, resultados) && consultasFin - consultasIni == 1) {
+				System.out.println("RESERVA-LOTE-OK. Reserva solo las consultas válidas e indica el motivo del resto.");
 			} else {
-				System.out.println("RESERVA-Mal. No inserta la fila o no incrementa el contador correctamente.");
+				System.out.println("RESERVA-LOTE-Mal. Resultados: " + Arrays.toString(resultados)
+						+ ", incremento del contador: " + (consultasFin - consultasIni));
 			}
-
 		} catch (SQLException e) {
-			System.out.println("RESERVA-Mal. Algo no ha ido bien en la transacción. Cod. error:" + e.getErrorCode());
+			System.out.println("RESERVA-LOTE-Mal. Algo no ha ido bien en la transacción. Cod. error:" + e.getErrorCode());
 			logger.error(e.getMessage());
 
 		} finally {
-
 			if (rs_consultas_medico != null)
 				rs_consultas_medico.close();
-			if (rs_sel_reservas != null)
-				rs_sel_reservas.close();
 			if (pst_consultas_medico != null)
-				pst_consultas_medico.close();			
-			if (pst_sel_reservas != null)
-				pst_sel_reservas.close();
+				pst_consultas_medico.close();
 			if (cll_reinicia != null)
 				cll_reinicia.close();
 			if (conn != null)
@@ -762,6 +2191,82 @@ public class GestionMedicos {
 				conn.close();
 		}
 
+		// Anular un lote de consultas. La primera es correcta, la segunda la repite,
+		// la tercera ya estaba anulada y la cuarta no existe. Solo debe anularse la
+		// primera.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			String nifMedico = "8766788Y";
+			pst_consultas_medico = conn.prepareStatement("select consultas from medico where NIF =?");
+			pst_consultas_medico.setString(1, nifMedico);
+			rs_consultas_medico = pst_consultas_medico.executeQuery();
+			rs_consultas_medico.next();
+			consultasIni = rs_consultas_medico.getInt(1);
+			rs_consultas_medico.close();
+
+			int[] resultados = anular_consultas(Arrays.asList(
+					new PeticionConsulta("87654321B", nifMedico, fechaOcupada),
+					new PeticionConsulta("87654321B", nifMedico, fechaOcupada),
+					new PeticionConsulta("12345678A", "222222B", fechaAnulada),
+					new PeticionConsulta("87654321B", nifMedico, fechaInexistente)), fechaAnulacionBien, motivoBien);
+			int[] esperados = { RESULTADO_OK, GestionMedicosException.CONSULTA_NO_ANULA,
+					GestionMedicosException.CONSULTA_NO_ANULA, GestionMedicosException.CONSULTA_NO_EXISTE };
+
+			rs_consultas_medico = pst_consultas_medico.executeQuery();
+			rs_consultas_medico.next();
+			consultasFin = rs_consultas_medico.getInt(1);
+
+			if (Arrays.equals(esperados, resultados) && consultasIni - consultasFin == 1) {
+				System.out.println("ANULA-LOTE-OK. Anula solo las consultas válidas e indica el motivo del resto.");
+			} else {
+				System.out.println("ANULA-LOTE-Mal. Resultados: " + Arrays.toString(resultados)
+						+ ", decremento del contador: " + (consultasIni - consultasFin));
+			}
+		} catch (SQLException e) {
+			System.out.println("ANULA-LOTE-Mal. Algo no ha ido bien en la transacción. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (rs_consultas_medico != null)
+				rs_consultas_medico.close();
+			if (pst_consultas_medico != null)
+				pst_consultas_medico.close();
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Anular las consultas de un médico en un rango de fechas. El médico
+		// 8766788Y solo tiene la consulta del 25/03/2022.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			Map<PeticionConsulta, Integer> resultados = anular_consultas_medico("8766788Y", fechaOcupada,
+					Misc.addDays(fechaOcupada, 7), fechaAnulacionBien, motivoBien);
+			if (resultados.size() == 1 && resultados.containsValue(RESULTADO_OK)) {
+				System.out.println("ANULA-RANGO-OK. Anula la consulta del médico en el rango de fechas.");
+			} else {
+				System.out.println("ANULA-RANGO-Mal. Resultados: " + resultados);
+			}
+		} catch (SQLException e) {
+			System.out.println("ANULA-RANGO-Mal. Algo no ha ido bien en la transacción. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
 		// Consultar médico con NIF medico inexistente
 		try {
 			// Reinicio filas
@@ -821,6 +2326,353 @@ public class GestionMedicos {
 				conn.close();
 		}
 
+		// Consultar médico entregando las filas a un consumidor y como Stream, con
+		// fetch de una fila. Debe entregar la única consulta no anulada del médico.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			List<ConsultaMedico> recibidas = new ArrayList<ConsultaMedico>();
+			int entregadas = consulta_medico("8766788Y", 1, recibidas::add);
+			long enStream;
+			try (Stream<ConsultaMedico> stream = consultas_medico("8766788Y", 1)) {
+				enStream = stream.filter(c -> c.getIdConsulta() == 2).count();
+			}
+			if (entregadas == 1 && recibidas.get(0).getIdConsulta() == 2
+					&& "87654321B".equals(recibidas.get(0).getNifCliente()) && enStream == 1) {
+				System.out.println("CONSULTA-STREAM-OK. Entrega las consultas al consumidor y en el Stream.");
+			} else {
+				System.out.println("CONSULTA-STREAM-Mal. Consumidor: " + recibidas + ", Stream: " + enStream);
+			}
+		} catch (SQLException e) {
+			System.out.println("CONSULTA-STREAM-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Paginar las consultas de un médico de una en una. Tras reservar una
+		// segunda consulta, la primera página debe traer la del 25/03/2022 y un
+		// testigo, y la segunda la nueva consulta y ningún testigo.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			reservar_consulta("12345678A", "8766788Y", fechaBien);
+			PaginaConsultas primera = consultas_medico_pagina("8766788Y", null, null, 1, null);
+			PaginaConsultas segunda = consultas_medico_pagina("8766788Y", null, null, 1, primera.getSiguiente());
+			if (primera.getConsultas().size() == 1 && primera.getConsultas().get(0).getIdConsulta() == 2
+					&& primera.hayMas() && segunda.getConsultas().size() == 1
+					&& "12345678A".equals(segunda.getConsultas().get(0).getNifCliente()) && !segunda.hayMas()) {
+				System.out.println("CONSULTA-PAGINA-OK. Pagina las consultas con el testigo de continuación.");
+			} else {
+				System.out.println("CONSULTA-PAGINA-Mal. Páginas: " + primera.getConsultas() + " / "
+						+ segunda.getConsultas());
+			}
+		} catch (SQLException e) {
+			System.out.println("CONSULTA-PAGINA-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Los filtros de Bloom, construidos por precargar, deben dejar pasar los
+		// NIF existentes y rechazar un NIF mal tecleado sin acceder a la base de
+		// datos, con el mismo código de error.
+		try {
+			if (CacheReferencias.puedeExistirCliente("12345678A") && CacheReferencias.puedeExistirMedico("8766788Y")
+					&& !CacheReferencias.puedeExistirMedico("8766788T")) {
+				reservar_consulta("12345678A", "8766788T", fechaBien);
+				System.out.println("BLOOM-Mal. No se da cuenta de que el NIF del médico no existe.");
+			} else {
+				System.out.println("BLOOM-Mal. Los filtros no distinguen los NIF.");
+			}
+		} catch (SQLException e) {
+			if (e.getErrorCode() == GestionMedicosException.MEDICO_NO_EXISTE) {
+				System.out.println("BLOOM-OK. Rechaza el NIF mal tecleado con el filtro.");
+			} else {
+				System.out.println("BLOOM-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+				logger.error(e.getMessage());
+			}
+		}
+
+		// Las mismas transacciones en modo servidor deben dar los mismos códigos de
+		// error: médico ocupado al reservar, motivo null al anular y médico
+		// inexistente al consultar.
+		boolean modoAnterior = isModoServidor();
+		setModoServidor(true);
+		int[] codigosServidor = new int[3];
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			try {
+				reservar_consulta("87654321B", "8766788Y", fechaOcupada);
+			} catch (SQLException e) {
+				codigosServidor[0] = e.getErrorCode();
+			}
+			try {
+				anular_consulta("87654321B", "8766788Y", fechaOcupada, fechaAnulacionBien, motivoMal);
+			} catch (SQLException e) {
+				codigosServidor[1] = e.getErrorCode();
+			}
+			try {
+				consulta_medico("121212B");
+			} catch (SQLException e) {
+				codigosServidor[2] = e.getErrorCode();
+			}
+			if (Arrays.equals(new int[] { 3, 6, 2 }, codigosServidor)) {
+				System.out.println("SERVIDOR-OK. Los procedimientos devuelven los mismos códigos de error.");
+			} else {
+				System.out.println("SERVIDOR-Mal. Códigos: " + Arrays.toString(codigosServidor));
+			}
+		} catch (SQLException e) {
+			System.out.println("SERVIDOR-Mal. Algo no ha ido bien en la transacción. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			setModoServidor(modoAnterior);
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Días libres: a partir del 24/03/2022 el médico con id = 2 tiene libres
+		// el 24, el 26 y el 27, porque el 25 está ocupado. En el lote el otro
+		// médico tiene libres los tres días y el NIF inexistente no aparece.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			Date dia24 = Misc.addDays(fechaOcupada, -1);
+			Date dia26 = Misc.addDays(fechaOcupada, 1);
+			List<Date> siguientes = huecos_libres("8766788Y", dia24, 3);
+			Map<String, List<Date>> lote = huecos_libres(Arrays.asList("8766788Y", "222222B", "00000000X"), dia24,
+					dia26);
+			if (siguientes.equals(Arrays.asList(dia24, dia26, Misc.addDays(fechaOcupada, 2)))
+					&& lote.get("8766788Y").equals(Arrays.asList(dia24, dia26)) && lote.get("222222B").size() == 3
+					&& !lote.containsKey("00000000X")) {
+				System.out.println("HUECOS-OK. Devuelve los días libres de uno y de varios médicos.");
+			} else {
+				System.out.println("HUECOS-Mal. Siguientes: " + siguientes + ", lote: " + lote);
+			}
+		} catch (SQLException e) {
+			System.out.println("HUECOS-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Médicos por especialidad: el único de Oncologia (id = 2) tiene ocupado
+		// el 25/03/2022, así que su primer día libre desde entonces es el 26.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			List<MedicoLibre> oncologos = medicos_especialidad("Oncologia", fechaOcupada);
+			if (oncologos.size() == 1 && "8766788Y".equals(oncologos.get(0).getNif())
+					&& oncologos.get(0).getPrimerDiaLibre().equals(Misc.addDays(fechaOcupada, 1))
+					&& medicos_especialidad("Pediatria", fechaOcupada).isEmpty()) {
+				System.out.println("ESPECIALIDAD-OK. Devuelve cada médico con su primer día libre.");
+			} else {
+				System.out.println("ESPECIALIDAD-Mal. Médicos: " + oncologos);
+			}
+		} catch (SQLException e) {
+			System.out.println("ESPECIALIDAD-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Dos reservas simultáneas del mismo médico y día: se esperan en el
+		// cerrojo de su franja y solo la primera consigue la fecha.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			int[] codigos = new int[2];
+			Thread[] hilos = new Thread[2];
+			for (int i = 0; i < hilos.length; i++) {
+				final int hilo = i;
+				hilos[i] = new Thread(() -> {
+					try {
+						reservar_consulta(hilo == 0 ? "12345678A" : "87654321B", "222222B", fechaBien);
+					} catch (SQLException e) {
+						codigos[hilo] = e.getErrorCode();
+					}
+				});
+				hilos[i].start();
+			}
+			for (Thread hilo : hilos) {
+				hilo.join();
+			}
+			Arrays.sort(codigos);
+			if (codigos[0] == RESULTADO_OK && codigos[1] == GestionMedicosException.MEDICO_OCUPADO) {
+				System.out.println("FRANJAS-OK. Solo una de las reservas simultáneas consigue la fecha.");
+			} else {
+				System.out.println("FRANJAS-Mal. Códigos: " + Arrays.toString(codigos));
+			}
+		} catch (SQLException | InterruptedException e) {
+			System.out.println("FRANJAS-Mal. Algo no ha ido bien: " + e.getMessage());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Contador repartido: el médico con id = 2 empieza con 1 consulta. Tras
+		// reservar una el total es 2 aunque medico.consultas no haya cambiado,
+		// plegar no cambia el total y al anularla vuelve a 1.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			ContadorConsultas.setRepartido(true);
+			ContadorConsultas.prepararFilas();
+			reservar_consulta("12345678A", "8766788Y", fechaBien);
+			int trasReservar = total_consultas("8766788Y");
+			ContadorConsultas.plegar();
+			int trasPlegar = total_consultas("8766788Y");
+			anular_consulta("12345678A", "8766788Y", fechaBien, fechaAnulacionBien, "Motivo");
+			int trasAnular = total_consultas("8766788Y");
+			if (trasReservar == 2 && trasPlegar == 2 && trasAnular == 1) {
+				System.out.println("CONTADOR-OK. El total del contador repartido es correcto.");
+			} else {
+				System.out.println("CONTADOR-Mal. Totales: " + trasReservar + ", " + trasPlegar + ", " + trasAnular);
+			}
+		} catch (SQLException e) {
+			System.out.println("CONTADOR-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			ContadorConsultas.setRepartido(false);
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Con el índice de ocupación cargado, la fecha ocupada del médico con
+		// id = 2 se rechaza sin ir a la base de datos, y el índice sigue a las
+		// reservas y anulaciones confirmadas. Se descarga al terminar porque los
+		// demás tests reinician las tablas por debajo.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			IndiceOcupacion.cargar();
+			int codigo = 0;
+			try {
+				reservar_consulta("12345678A", "8766788Y", fechaOcupada);
+			} catch (GestionMedicosException e) {
+				codigo = e.getErrorCode();
+			}
+			reservar_consulta("12345678A", "8766788Y", fechaBien);
+			boolean reservada = IndiceOcupacion.ocupado(2, fechaBien);
+			anular_consulta("12345678A", "8766788Y", fechaBien, fechaAnulacionBien, "Motivo");
+			if (codigo == GestionMedicosException.MEDICO_OCUPADO && reservada && !IndiceOcupacion.ocupado(2, fechaBien)) {
+				System.out.println("OCUPACION-OK. El índice rechaza la fecha ocupada y sigue las transacciones.");
+			} else {
+				System.out.println("OCUPACION-Mal. Código: " + codigo + ", reservada: " + reservada);
+			}
+		} catch (SQLException e) {
+			System.out.println("OCUPACION-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			logger.info(IndiceOcupacion.informe());
+			IndiceOcupacion.descargar();
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		// Un interbloqueo (ORA-00060) en el primer intento se reintenta y la
+		// reserva se hace una sola vez; un error no transitorio (clave primaria
+		// violada) no se reintenta.
+		try {
+			// Reinicio filas
+
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test}");
+			cll_reinicia.execute();
+			EjecutorTransacciones prueba = new EjecutorTransacciones(3, 1, 10, 1000);
+			int[] intentos = new int[2];
+			prueba.ejecutar(() -> {
+				if (intentos[0]++ == 0) {
+					throw new SQLException("ORA-00060: deadlock detected while waiting for resource", "61000", 60);
+				}
+				reservar_consulta("12345678A", "8766788Y", fechaBien);
+			});
+			int codigo = 0;
+			try {
+				prueba.ejecutar(() -> {
+					intentos[1]++;
+					reservar_consulta("87654321B", "8766788Y", fechaBien);
+				});
+			} catch (GestionMedicosException e) {
+				codigo = e.getErrorCode();
+			}
+			if (intentos[0] == 2 && intentos[1] == 1 && codigo == GestionMedicosException.MEDICO_OCUPADO
+					&& prueba.getReintentos(SGBDError.DEADLOCK) == 1 && prueba.getRecuperadas() == 1
+					&& total_consultas("8766788Y") == 2) {
+				System.out.println("REINTENTO-OK. Se reintenta el interbloqueo y no el error de la transacción.");
+			} else {
+				System.out.println("REINTENTO-Mal. Intentos: " + intentos[0] + ", " + intentos[1] + ", código: "
+						+ codigo + ", ejecutor: " + prueba);
+			}
+		} catch (SQLException e) {
+			System.out.println("REINTENTO-Mal. Algo no ha ido bien. Cod. error:" + e.getErrorCode());
+			logger.error(e.getMessage());
+
+		} finally {
+			if (cll_reinicia != null)
+				cll_reinicia.close();
+			if (conn != null)
+				conn.close();
+		}
+
+		logger.info(SentenciaSQL.informe());
+		logger.info(CacheReferencias.informe());
+		logger.info("Cerrojos de huecos: " + franjas);
+		logger.info("Ejecutor de transacciones: " + ejecutor);
 	}
 
 }
@@ -0,0 +1,277 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * IndiceOcupacion: Índice en memoria de los días ocupados de cada médico, un
+ * BitSet por id_medico con un bit por día desde DIA_BASE. Permite rechazar sin
+ * ir a la base de datos las reservas de fechas que ya se sabe que están
+ * ocupadas; si el índice dice que la fecha está libre se reserva como siempre
+ * y la base de datos sigue decidiendo. Se carga con una lectura de las
+ * consultas no anuladas y las transacciones lo actualizan después de
+ * confirmar. Hasta que se carga, o tras descargar, no rechaza nada.
+ * <p>
+ * Los cambios hechos fuera de la aplicación (por ejemplo inicializa_test) no
+ * se ven hasta la siguiente carga, por lo que hay que volver a cargarlo o
+ * descargarlo tras ellos. Para que una fecha liberada fuera no se rechace
+ * indefinidamente, el índice caduca a los TIEMPO_VIDA_MS de empezar a
+ * leerlo: a partir de entonces no rechaza nada (decide la base de datos) y se
+ * vuelve a cargar en segundo plano.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class IndiceOcupacion {
+
+	/** Primer día del índice; las fechas anteriores no se indexan. */
+	public static final LocalDate DIA_BASE = LocalDate.of(2000, 1, 1);
+
+	/**
+	 * Tiempo durante el que se confía en el índice, contado desde que se empezó
+	 * a leer; es lo más que se rechaza una fecha liberada fuera de la
+	 * aplicación.
+	 */
+	public static final long TIEMPO_VIDA_MS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final String SEL_OCUPADAS = "select c.id_medico, c.fecha_consulta from consulta c"
+			+ " left join anulacion a on a.id_consulta = c.id_consulta where a.id_consulta is null";
+
+	private static Logger logger = LoggerFactory.getLogger(IndiceOcupacion.class);
+
+	/** Índice en uso, o null si no está cargado. */
+	private static volatile Map<Integer, BitSet> ocupados;
+
+	/* Cambios confirmados mientras se carga, que se aplican al terminar */
+	private static List<Object[]> pendientes;
+
+	private static final Object cerrojo = new Object();
+
+	/* Momento (System.nanoTime) en que caduca el índice en uso */
+	private static volatile long caducidad;
+
+	/* Hay una recarga en segundo plano en marcha */
+	private static final AtomicBoolean recargando = new AtomicBoolean();
+
+	private static final LongAdder rechazos = new LongAdder();
+
+	private IndiceOcupacion() {
+	}
+
+	/**
+	 * cargar: Construye el índice con una lectura de las consultas no anuladas
+	 * en el pool de lectura y lo sustituye por el anterior. Los cambios que se
+	 * confirman durante la lectura se aplican después, en orden.
+	 *
+	 * @return Número de consultas indexadas
+	 * @throws SQLException
+	 */
+	public static int cargar() throws SQLException {
+		synchronized (cerrojo) {
+			pendientes = new ArrayList<Object[]>();
+		}
+		Map<Integer, BitSet> nuevo = new ConcurrentHashMap<Integer, BitSet>();
+		PoolDeConexiones pool = PoolDeConexiones.getInstanceLectura();
+		Connection con = null;
+		PreparedStatement pst_sel_ocupadas = null;
+		ResultSet rs_sel_ocupadas = null;
+		int indexadas = 0;
+		long caducidadNuevo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIEMPO_VIDA_MS);
+
+		try {
+			con = pool.getConnection();
+
+			pst_sel_ocupadas = con.prepareStatement(SEL_OCUPADAS);
+			pst_sel_ocupadas.setFetchSize(GestionMedicos.TAMANO_FETCH);
+			rs_sel_ocupadas = pst_sel_ocupadas.executeQuery();
+			while (rs_sel_ocupadas.next()) {
+				if (cambiar(nuevo, rs_sel_ocupadas.getInt(1), rs_sel_ocupadas.getTimestamp(2), true)) {
+					indexadas++;
+				}
+			}
+			con.commit();
+
+			synchronized (cerrojo) {
+				for (Object[] cambio : pendientes) {
+					cambiar(nuevo, (Integer) cambio[0], (Date) cambio[1], (Boolean) cambio[2]);
+				}
+				pendientes = null;
+				caducidad = caducidadNuevo;
+				ocupados = nuevo;
+			}
+			logger.info("Índice de ocupación cargado con {} consultas de {} médicos", indexadas, nuevo.size());
+			return indexadas;
+
+		} catch (SQLException e) {
+
+			synchronized (cerrojo) {
+				pendientes = null;
+			}
+			if (con != null)
+				con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+
+		} finally {
+			/* Liberar recursos */
+			if (rs_sel_ocupadas != null)
+				rs_sel_ocupadas.close();
+			if (pst_sel_ocupadas != null)
+				pst_sel_ocupadas.close();
+			if (con != null)
+				con.close();
+		}
+	}
+
+	/**
+	 * descargar: Deja de usar el índice; hasta la siguiente carga no rechaza
+	 * nada.
+	 */
+	public static void descargar() {
+		synchronized (cerrojo) {
+			ocupados = null;
+		}
+	}
+
+	public static boolean isCargado() {
+		return ocupados != null;
+	}
+
+	/**
+	 * ocupado: Indica si se sabe que el médico tiene ocupada la fecha.
+	 *
+	 * @param idMedico Identificador del médico
+	 * @param fecha    Fecha de la consulta
+	 * @return true si está ocupada según el índice; false si está libre o no se
+	 *         sabe
+	 */
+	public static boolean ocupado(int idMedico, Date fecha) {
+		Map<Integer, BitSet> indice = ocupados;
+		int dia = dia(fecha);
+		if (indice == null || dia < 0) {
+			return false;
+		}
+		BitSet dias = indice.get(idMedico);
+		if (dias == null) {
+			return false;
+		}
+		boolean ocupado;
+		synchronized (dias) {
+			ocupado = dias.get(dia);
+		}
+		if (ocupado && System.nanoTime() - caducidad > 0) {
+			// Pueden haberla liberado fuera de la aplicación: lo decide la base de datos
+			recargar();
+			return false;
+		}
+		if (ocupado) {
+			rechazos.increment();
+		}
+		return ocupado;
+	}
+
+	/**
+	 * recargar: Lanza cargar en un hilo aparte, salvo que ya haya una recarga
+	 * en marcha.
+	 */
+	private static void recargar() {
+		if (!recargando.compareAndSet(false, true)) {
+			return;
+		}
+		Thread hilo = new Thread(() -> {
+			try {
+				cargar();
+			} catch (SQLException e) {
+				logger.warn("No se ha podido recargar el índice de ocupación: " + e.getMessage());
+			} finally {
+				recargando.set(false);
+			}
+		}, "recarga-indice-ocupacion");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	/**
+	 * marcar: Se llama tras confirmar la reserva de la fecha.
+	 */
+	public static void marcar(int idMedico, Date fecha) {
+		registrar(idMedico, fecha, true);
+	}
+
+	/**
+	 * liberar: Se llama tras confirmar la anulación de la consulta de la fecha.
+	 */
+	public static void liberar(int idMedico, Date fecha) {
+		registrar(idMedico, fecha, false);
+	}
+
+	private static void registrar(int idMedico, Date fecha, boolean ocupar) {
+		synchronized (cerrojo) {
+			if (ocupados != null) {
+				cambiar(ocupados, idMedico, fecha, ocupar);
+			}
+			if (pendientes != null) {
+				pendientes.add(new Object[] { idMedico, fecha, ocupar });
+			}
+		}
+	}
+
+	private static boolean cambiar(Map<Integer, BitSet> indice, int idMedico, Date fecha, boolean ocupar) {
+		int dia = dia(fecha);
+		if (dia < 0) {
+			return false;
+		}
+		BitSet dias = indice.computeIfAbsent(idMedico, id -> new BitSet());
+		synchronized (dias) {
+			dias.set(dia, ocupar);
+		}
+		return true;
+	}
+
+	/**
+	 * dia: Posición de la fecha en el BitSet, o -1 si es anterior a DIA_BASE.
+	 */
+	private static int dia(Date fecha) {
+		LocalDate local = Instant.ofEpochMilli(fecha.getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
+		long dia = local.toEpochDay() - DIA_BASE.toEpochDay();
+		return dia < 0 || dia > Integer.MAX_VALUE ? -1 : (int) dia;
+	}
+
+	/**
+	 * informe: Tamaño del índice y reservas rechazadas con él.
+	 */
+	public static String informe() {
+		Map<Integer, BitSet> indice = ocupados;
+		if (indice == null) {
+			return "Índice de ocupación: no cargado, " + rechazos.sum() + " reservas rechazadas";
+		}
+		long dias = 0;
+		for (BitSet b : indice.values()) {
+			synchronized (b) {
+				dias += b.cardinality();
+			}
+		}
+		return "Índice de ocupación: " + indice.size() + " médicos, " + dias + " días ocupados, " + rechazos.sum()
+				+ " reservas rechazadas";
+	}
+}
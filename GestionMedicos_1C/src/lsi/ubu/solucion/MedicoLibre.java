@@ -0,0 +1,68 @@
+package lsi.ubu.solucion;
+
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * MedicoLibre: Médico de una especialidad junto con su primer día libre, tal
+ * como lo devuelve medicos_especialidad.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class MedicoLibre {
+
+	/** Orden por primer día libre y, a igual día, por NIF. */
+	public static final Comparator<MedicoLibre> POR_DIA_LIBRE = Comparator
+			.comparing(MedicoLibre::getPrimerDiaLibre).thenComparing(MedicoLibre::getNif);
+
+	private final String nif;
+	private final String nombre;
+	private final String ape1;
+	private final String ape2;
+	private final Date primerDiaLibre;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nif            NIF del médico
+	 * @param nombre         Nombre
+	 * @param ape1           Primer apellido
+	 * @param ape2           Segundo apellido
+	 * @param primerDiaLibre Primer día sin consulta
+	 */
+	public MedicoLibre(String nif, String nombre, String ape1, String ape2, Date primerDiaLibre) {
+		this.nif = nif;
+		this.nombre = nombre;
+		this.ape1 = ape1;
+		this.ape2 = ape2;
+		this.primerDiaLibre = primerDiaLibre;
+	}
+
+	public String getNif() {
+		return nif;
+	}
+
+	public String getNombre() {
+		return nombre;
+	}
+
+	public String getApe1() {
+		return ape1;
+	}
+
+	public String getApe2() {
+		return ape2;
+	}
+
+	public Date getPrimerDiaLibre() {
+		return primerDiaLibre;
+	}
+
+	@Override
+	public String toString() {
+		return "*Libre: " + new java.sql.Date(primerDiaLibre.getTime()) + "   *NIF: " + nif + "   *Médico: " + nombre
+				+ " " + ape1 + " " + ape2;
+	}
+}
@@ -0,0 +1,87 @@
+package lsi.ubu.solucion;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * PaginaConsultas: Página de consultas de un médico obtenida por paginación
+ * por clave (keyset). El testigo de continuación identifica la última consulta
+ * devuelta por su (fecha_consulta, id_consulta), de modo que la siguiente
+ * página empieza justo después sin recorrer las anteriores.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class PaginaConsultas {
+
+	private static final char SEPARADOR = '.';
+
+	private final List<ConsultaMedico> consultas;
+	private final String siguiente;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param consultas Consultas de la página
+	 * @param hayMas    Si hay más consultas después de la última de la página
+	 */
+	PaginaConsultas(List<ConsultaMedico> consultas, boolean hayMas) {
+		this.consultas = Collections.unmodifiableList(consultas);
+		this.siguiente = hayMas ? testigo(consultas.get(consultas.size() - 1)) : null;
+	}
+
+	/**
+	 * getConsultas: Consultas de la página, en orden de fecha.
+	 */
+	public List<ConsultaMedico> getConsultas() {
+		return consultas;
+	}
+
+	/**
+	 * getSiguiente: Testigo para pedir la página siguiente.
+	 *
+	 * @return Testigo, o null si es la última página
+	 */
+	public String getSiguiente() {
+		return siguiente;
+	}
+
+	public boolean hayMas() {
+		return siguiente != null;
+	}
+
+	/**
+	 * testigo: Testigo de continuación tras una consulta.
+	 */
+	static String testigo(ConsultaMedico ultima) {
+		return Long.toString(ultima.getFecha().getTime()) + SEPARADOR + ultima.getIdConsulta();
+	}
+
+	/**
+	 * fechaTestigo: Fecha de la última consulta vista según un testigo.
+	 *
+	 * @throws IllegalArgumentException si el testigo no es válido
+	 */
+	static Date fechaTestigo(String testigo) {
+		try {
+			return new Date(Long.parseLong(testigo.substring(0, testigo.indexOf(SEPARADOR))));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Testigo de página no válido: " + testigo);
+		}
+	}
+
+	/**
+	 * idTestigo: Identificador de la última consulta vista según un testigo.
+	 *
+	 * @throws IllegalArgumentException si el testigo no es válido
+	 */
+	static int idTestigo(String testigo) {
+		try {
+			return Integer.parseInt(testigo.substring(testigo.indexOf(SEPARADOR) + 1));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Testigo de página no válido: " + testigo);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package lsi.ubu.solucion;
+
+import java.util.Date;
+
+/**
+ * PeticionConsulta: Datos que identifican una consulta dentro de una operación
+ * por lotes: NIF del cliente, NIF del médico y fecha de la consulta.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class PeticionConsulta {
+
+	private final String nifCliente;
+	private final String nifMedico;
+	private final Date fecha;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nifCliente NIF del cliente
+	 * @param nifMedico  NIF del médico
+	 * @param fecha      Fecha de la consulta
+	 */
+	public PeticionConsulta(String nifCliente, String nifMedico, Date fecha) {
+		this.nifCliente = nifCliente;
+		this.nifMedico = nifMedico;
+		this.fecha = fecha;
+	}
+
+	public String getNifCliente() {
+		return nifCliente;
+	}
+
+	public String getNifMedico() {
+		return nifMedico;
+	}
+
+	public Date getFecha() {
+		return fecha;
+	}
+
+	@Override
+	public String toString() {
+		return "(" + nifCliente + ", " + nifMedico + ", " + fecha + ")";
+	}
+}
@@ -0,0 +1,199 @@
+package lsi.ubu.solucion;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import lsi.ubu.util.CacheSentencias;
+
+/**
+ * SentenciaSQL: Catálogo de las sentencias SQL, con nombre y texto constante,
+ * que usan las transacciones de GestionMedicos. Al preparar una sentencia del
+ * catálogo se anota si se ha obtenido de la caché de sentencias del pool
+ * (acierto) o ha habido que analizarla de nuevo (fallo).
+ * 
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public enum SentenciaSQL {
+
+	SEL_CLIENTE("select NIF from cliente where NIF=?"),
+
+	SEL_MEDICO("select id_medico from medico where NIF=?"),
+
+	SEL_CONSULTA_FECHA("select id_consulta from consulta where fecha_consulta=?"),
+
+	INS_CONSULTA("insert into consulta values (seq_consulta.nextval, ?, ?, ?)"),
+
+	INS_ANULACION("insert into anulacion values (seq_anulacion.nextval, ?, ?, ?)"),
+
+	INS_OCUPACION("insert into ocupacion values (?, ?, seq_consulta.currval)"),
+
+	INS_ANULACION_OCUPACION("insert into anulacion select seq_anulacion.nextval, id_consulta, ?, ? from ocupacion"
+			+ " where id_medico = ? and fecha_consulta = ?"
+			+ " and id_consulta in (select id_consulta from consulta where NIF = ?)"),
+
+	DEL_OCUPACION("delete from ocupacion where id_medico = ? and fecha_consulta = ?"),
+
+	SEL_CONSULTAS_MEDICO("SELECT id_consulta, fecha_consulta, id_medico, NIF "
+			+ "FROM consulta WHERE id_medico = ? AND NOT EXISTS ( SELECT * FROM anulacion "
+			+ "WHERE anulacion.id_consulta = consulta.id_consulta ) ORDER BY fecha_consulta"),
+
+	SEL_PAGINA_CONSULTAS_MEDICO("select * from (select ocupacion.id_consulta, ocupacion.fecha_consulta,"
+			+ " ocupacion.id_medico, consulta.NIF from ocupacion join consulta"
+			+ " on consulta.id_consulta = ocupacion.id_consulta where ocupacion.id_medico = ?"
+			+ " and (ocupacion.fecha_consulta > ? or (ocupacion.fecha_consulta = ? and ocupacion.id_consulta > ?))"
+			+ " and ocupacion.fecha_consulta < ? order by ocupacion.fecha_consulta, ocupacion.id_consulta)"
+			+ " where rownum <= ?"),
+
+	SEL_CONSULTAS_RANGO("select id_consulta, fecha_consulta, NIF, (select count(*) from anulacion"
+			+ " where anulacion.id_consulta = consulta.id_consulta) from consulta where id_medico = ?"
+			+ " and fecha_consulta >= ? and fecha_consulta < ? order by fecha_consulta"),
+
+	SEL_OCUPACION_RANGO("select fecha_consulta from ocupacion where id_medico = ?"
+			+ " and fecha_consulta >= ? and fecha_consulta < ?"),
+
+	SEL_OCUPACION_MEDICOS("select medico.NIF, ocupacion.fecha_consulta from medico left join ocupacion"
+			+ " on ocupacion.id_medico = medico.id_medico and ocupacion.fecha_consulta >= ?"
+			+ " and ocupacion.fecha_consulta < ? where medico.NIF in ("
+			+ String.join(", ", Collections.nCopies(GestionMedicos.LOTE_MEDICOS, "?")) + ")"),
+
+	SEL_OCUPACION_ESPECIALIDAD("select medico.NIF, medico.nombre, medico.ape1, medico.ape2,"
+			+ " ocupacion.fecha_consulta from medico left join ocupacion on ocupacion.id_medico = medico.id_medico"
+			+ " and ocupacion.fecha_consulta >= ? and ocupacion.fecha_consulta < ?"
+			+ " where medico.especialidad = ?"),
+
+	SEL_SIGUIENTES_CONSULTAS("select seq_consulta.nextval from dual connect by level <= ?"),
+
+	INS_CONSULTA_ID("insert into consulta values (?, ?, ?, ?)"),
+
+	INS_OCUPACION_ID("insert into ocupacion values (?, ?, ?)"),
+
+	DEL_OCUPACION_ID("delete from ocupacion where id_consulta = ?"),
+
+	UPD_MEDICO_CONSULTAS("update medico set consultas = consultas + ? where id_medico = ?"),
+
+	UPD_CONTADOR_FILA("update medico_consultas set delta = delta + ? where id_medico = ? and fila = ?"),
+
+	SEL_TOTAL_CONSULTAS("select consultas + nvl((select sum(delta) from medico_consultas"
+			+ " where medico_consultas.id_medico = medico.id_medico), 0) from medico where id_medico = ?"),
+
+	SEL_MEDICO_BLOQUEO("select id_medico from medico where id_medico = ? for update"),
+
+	INS_FILAS_CONTADOR("insert into medico_consultas (id_medico, fila, delta)"
+			+ " select medico.id_medico, filas.fila, 0 from medico"
+			+ " cross join (select level - 1 fila from dual connect by level <= ?) filas"
+			+ " where not exists (select * from medico_consultas where medico_consultas.id_medico = medico.id_medico"
+			+ " and medico_consultas.fila = filas.fila)"),
+
+	SEL_FILAS_PLEGAR("select id_medico, fila, delta from medico_consultas where delta <> 0 for update"),
+
+	CALL_RESERVAR_CONSULTA("{call pr_reservar_consulta(?, ?, ?)}"),
+
+	CALL_ANULAR_CONSULTA("{call pr_anular_consulta(?, ?, ?, ?, ?)}"),
+
+	CALL_CONSULTA_MEDICO("{call pr_consulta_medico(?, ?, ?)}");
+
+	private final String sql;
+	private final LongAdder aciertos = new LongAdder();
+	private final LongAdder fallos = new LongAdder();
+
+	private SentenciaSQL(String sql) {
+		this.sql = sql;
+	}
+
+	/**
+	 * getSql: Texto SQL de la sentencia.
+	 * 
+	 * @return texto SQL
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * preparar: Prepara la sentencia en la conexión y anota el acierto o fallo
+	 * en la caché de sentencias.
+	 * 
+	 * @param con conexión
+	 * @return sentencia preparada
+	 * @throws SQLException
+	 */
+	public PreparedStatement preparar(Connection con) throws SQLException {
+		PreparedStatement pst = isLlamada() ? con.prepareCall(sql) : con.prepareStatement(sql);
+		if (CacheSentencias.esAcierto(con, sql)) {
+			aciertos.increment();
+		} else {
+			fallos.increment();
+		}
+		return pst;
+	}
+
+	/**
+	 * prepararLlamada: Prepara la llamada a un procedimiento almacenado del
+	 * catálogo y anota el acierto o fallo en la caché de sentencias.
+	 * 
+	 * @param con conexión
+	 * @return llamada preparada
+	 * @throws SQLException
+	 */
+	public CallableStatement prepararLlamada(Connection con) throws SQLException {
+		return (CallableStatement) preparar(con);
+	}
+
+	/**
+	 * isLlamada: Indica si la sentencia es la llamada a un procedimiento
+	 * almacenado.
+	 * 
+	 * @return true si es una llamada
+	 */
+	public boolean isLlamada() {
+		return sql.startsWith("{call");
+	}
+
+	public long getAciertos() {
+		return aciertos.sum();
+	}
+
+	public long getFallos() {
+		return fallos.sum();
+	}
+
+	/**
+	 * textos: Texto de las sentencias del catálogo que no son llamadas a
+	 * procedimientos (el calentamiento del pool las prepara con
+	 * prepareStatement).
+	 * 
+	 * @return lista con el SQL de cada sentencia
+	 */
+	public static List<String> textos() {
+		List<String> textos = new ArrayList<String>();
+		for (SentenciaSQL sentencia : values()) {
+			if (!sentencia.isLlamada()) {
+				textos.add(sentencia.sql);
+			}
+		}
+		return textos;
+	}
+
+	/**
+	 * informe: Aciertos y fallos en la caché de sentencias de cada sentencia del
+	 * catálogo.
+	 * 
+	 * @return texto con una línea por sentencia
+	 */
+	public static String informe() {
+		StringBuilder sb = new StringBuilder("Caché de sentencias (aciertos/fallos):");
+		for (SentenciaSQL sentencia : values()) {
+			sb.append('\n').append(sentencia.name()).append(": ").append(sentencia.getAciertos()).append('/')
+					.append(sentencia.getFallos());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,328 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.RollingFileAppender;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Appender de log4j que escribe en un fichero rotativo desde un hilo propio.
+ * Los hilos que registran eventos solo los dejan en una {@link ColaAnillo} de
+ * <code>TamanoCola</code> eventos, sin bloqueos ni esperas por el disco; el
+ * hilo escritor los saca, los escribe y vuelca el fichero cuando vacia la
+ * cola. Con la cola llena se aplica la <code>Politica</code>: DESCARTAR (por
+ * defecto) pierde el evento y lo cuenta, y el escritor anota en el fichero
+ * cuantos se han perdido; BLOQUEAR espera a que haya sitio. La memoria queda
+ * acotada por el tamano de la cola.
+ * <p>
+ * Antes de encolar el evento se copian en el hilo que lo registra el mensaje,
+ * el nombre del hilo, el NDC, el MDC y la traza de la excepcion; la
+ * localizacion (%l, %L, %M, %F) solo si <code>LocationInfo</code> es true,
+ * porque obliga a recorrer la pila en cada evento. Se configura como
+ * RollingFileAppender, con estas tres propiedades mas; ImmediateFlush no se
+ * usa. Publica sus metricas por JMX con el nombre del appender.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class AppenderAsincrono extends RollingFileAppender implements AppenderAsincronoMBean {
+
+	/** Politica con la cola llena que descarta el evento. */
+	public static final String DESCARTAR = "DESCARTAR";
+
+	/** Politica con la cola llena que espera a que haya sitio. */
+	public static final String BLOQUEAR = "BLOQUEAR";
+
+	/** Dominio JMX. */
+	private static final String DOMINIO_JMX = "lsi.ubu.util";
+
+	private static final int TAMANO_COLA_POR_DEFECTO = 8192;
+
+	/** Espera del productor entre intentos con la politica BLOQUEAR. */
+	private static final long ESPERA_PRODUCTOR_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/** Espera maxima del escritor con la cola vacia si no se le despierta. */
+	private static final long ESPERA_ESCRITOR_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/** Espera maxima al cerrar a que el escritor vacie la cola. */
+	private static final long ESPERA_CIERRE_MS = 5000;
+
+	private int tamanoCola = TAMANO_COLA_POR_DEFECTO;
+	private volatile boolean bloquear;
+	private boolean locationInfo;
+
+	private ColaAnillo<LoggingEvent> cola;
+	private Thread escritor;
+
+	/** El escritor va a dormir; los productores lo despiertan. */
+	private volatile boolean esperando;
+	private volatile boolean cerrando;
+	private final AtomicBoolean cerrado = new AtomicBoolean();
+
+	private final LongAdder encolados = new LongAdder();
+	private final LongAdder escritos = new LongAdder();
+	private final LongAdder descartados = new LongAdder();
+	private final LongAdder bloqueos = new LongAdder();
+
+	/* Descartados ya anotados en el fichero; solo lo usa el escritor */
+	private long descartadosAnotados;
+
+	public void setTamanoCola(int tamanoCola) {
+		this.tamanoCola = tamanoCola;
+	}
+
+	public int getTamanoCola() {
+		return tamanoCola;
+	}
+
+	/**
+	 * Politica con la cola llena: DESCARTAR o BLOQUEAR.
+	 *
+	 * @param politica
+	 *            nombre de la politica, sin distinguir mayusculas
+	 */
+	public void setPolitica(String politica) {
+		if (BLOQUEAR.equalsIgnoreCase(politica)) {
+			bloquear = true;
+		} else if (DESCARTAR.equalsIgnoreCase(politica)) {
+			bloquear = false;
+		} else {
+			LogLog.warn("Politica " + politica + " del appender " + name + " no valida, se usa " + DESCARTAR);
+			bloquear = false;
+		}
+	}
+
+	@Override
+	public String getPolitica() {
+		return bloquear ? BLOQUEAR : DESCARTAR;
+	}
+
+	public void setLocationInfo(boolean locationInfo) {
+		this.locationInfo = locationInfo;
+	}
+
+	public boolean getLocationInfo() {
+		return locationInfo;
+	}
+
+	/**
+	 * Abre el fichero, crea la cola y arranca el hilo escritor.
+	 */
+	@Override
+	public void activateOptions() {
+		super.activateOptions();
+		// El escritor vuelca el fichero cuando vacia la cola
+		setImmediateFlush(false);
+		cola = new ColaAnillo<LoggingEvent>(Math.max(1, tamanoCola));
+		escritor = new Thread(this::escribir, "log-" + name);
+		escritor.setDaemon(true);
+		escritor.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "cierre-log-" + name));
+		registrarJMX();
+	}
+
+	/**
+	 * Como el de AppenderSkeleton pero sin sincronizar: los hilos que registran
+	 * eventos no se esperan entre si.
+	 */
+	@Override
+	public void doAppend(LoggingEvent evento) {
+		if (closed || cerrando) {
+			return;
+		}
+		if (!isAsSevereAsThreshold(evento.getLevel())) {
+			return;
+		}
+		Filter filtro = getFirstFilter();
+		while (filtro != null) {
+			int decision = filtro.decide(evento);
+			if (decision == Filter.DENY) {
+				return;
+			}
+			if (decision == Filter.ACCEPT) {
+				break;
+			}
+			filtro = filtro.getNext();
+		}
+		append(evento);
+	}
+
+	/**
+	 * Deja el evento en la cola, aplicando la politica si esta llena.
+	 */
+	@Override
+	public void append(LoggingEvent evento) {
+		if (cola == null) {
+			// Sin activar no hay escritor: se escribe directamente
+			super.append(evento);
+			return;
+		}
+		// Lo que depende del hilo o del momento se fija antes de encolar
+		evento.getNDC();
+		evento.getThreadName();
+		evento.getMDCCopy();
+		if (locationInfo) {
+			evento.getLocationInformation();
+		}
+		evento.getRenderedMessage();
+		evento.getThrowableStrRep();
+
+		if (!cola.ofrecer(evento)) {
+			// El escritor no puede esperarse a si mismo
+			if (!bloquear || Thread.currentThread() == escritor) {
+				descartados.increment();
+				return;
+			}
+			bloqueos.increment();
+			do {
+				LockSupport.unpark(escritor);
+				LockSupport.parkNanos(this, ESPERA_PRODUCTOR_NS);
+				if (cerrando) {
+					descartados.increment();
+					return;
+				}
+			} while (!cola.ofrecer(evento));
+		}
+		encolados.increment();
+		if (esperando) {
+			LockSupport.unpark(escritor);
+		}
+	}
+
+	/**
+	 * Bucle del hilo escritor: escribe los eventos en orden y vuelca el fichero
+	 * cada vez que vacia la cola.
+	 */
+	private void escribir() {
+		while (true) {
+			LoggingEvent evento = cola.sacar();
+			if (evento != null) {
+				escribir(evento);
+				continue;
+			}
+			anotarDescartados();
+			if (qw != null) {
+				qw.flush();
+			}
+			if (cerrando) {
+				// Ya no se encola nada: lo que quede se escribe antes de salir
+				while ((evento = cola.sacar()) != null) {
+					escribir(evento);
+				}
+				anotarDescartados();
+				return;
+			}
+			esperando = true;
+			// Se vuelve a mirar tras avisar, por si se encolo algo entretanto
+			if (cola.getTamano() == 0) {
+				LockSupport.parkNanos(this, ESPERA_ESCRITOR_NS);
+			}
+			esperando = false;
+		}
+	}
+
+	private void escribir(LoggingEvent evento) {
+		try {
+			super.append(evento);
+			escritos.increment();
+		} catch (RuntimeException e) {
+			LogLog.error("Error escribiendo en el appender " + name, e);
+		}
+	}
+
+	private void anotarDescartados() {
+		long total = descartados.sum();
+		if (total > descartadosAnotados) {
+			escribir(new LoggingEvent(AppenderAsincrono.class.getName(), Logger.getLogger(AppenderAsincrono.class),
+					Level.WARN, "Descartados " + (total - descartadosAnotados)
+							+ " eventos de log con la cola llena (" + total + " en total)",
+					null));
+			descartadosAnotados = total;
+		}
+	}
+
+	/**
+	 * Deja de aceptar eventos, espera a que el escritor vacie la cola y cierra
+	 * el fichero. No se sincroniza para no bloquear al escritor mientras rota
+	 * el fichero.
+	 */
+	@Override
+	public void close() {
+		if (!cerrado.compareAndSet(false, true)) {
+			return;
+		}
+		cerrando = true;
+		if (escritor != null && escritor != Thread.currentThread()) {
+			LockSupport.unpark(escritor);
+			try {
+				escritor.join(ESPERA_CIERRE_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		super.close();
+	}
+
+	private void registrarJMX() {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombreJMX = new ObjectName(DOMINIO_JMX + ":type=AppenderAsincrono,name=" + name);
+			if (servidor.isRegistered(nombreJMX)) {
+				// Al reconfigurar log4j se sustituye el appender anterior
+				servidor.unregisterMBean(nombreJMX);
+			}
+			servidor.registerMBean(this, nombreJMX);
+		} catch (Exception e) {
+			LogLog.warn("No se han podido publicar las metricas del appender " + name + " por JMX", e);
+		}
+	}
+
+	@Override
+	public int getCapacidad() {
+		return cola == null ? 0 : cola.getCapacidad();
+	}
+
+	@Override
+	public int getPendientes() {
+		return cola == null ? 0 : cola.getTamano();
+	}
+
+	@Override
+	public long getEncolados() {
+		return encolados.sum();
+	}
+
+	@Override
+	public long getEscritos() {
+		return escritos.sum();
+	}
+
+	@Override
+	public long getDescartados() {
+		return descartados.sum();
+	}
+
+	@Override
+	public long getBloqueos() {
+		return bloqueos.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "politica=" + getPolitica() + " capacidad=" + getCapacidad() + " pendientes=" + getPendientes()
+				+ " encolados=" + getEncolados() + " escritos=" + getEscritos() + " descartados="
+				+ getDescartados() + " bloqueos=" + getBloqueos();
+	}
+}
@@ -0,0 +1,25 @@
+package lsi.ubu.util;
+
+/**
+ * Interfaz JMX de las metricas del appender asincrono de log4j.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public interface AppenderAsincronoMBean {
+
+	String getPolitica();
+
+	int getCapacidad();
+
+	int getPendientes();
+
+	long getEncolados();
+
+	long getEscritos();
+
+	long getDescartados();
+
+	long getBloqueos();
+}
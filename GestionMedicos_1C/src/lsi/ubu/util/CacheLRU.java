@@ -0,0 +1,197 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache en memoria de tamano acotado: al llenarse expulsa la entrada usada
+ * hace mas tiempo (LRU) y cada entrada caduca al cumplir su tiempo de vida
+ * desde que se guardo. Cuenta aciertos, fallos, expulsiones y caducidades, que
+ * se publican por JMX con {@link #registrarJMX(String)}. Es segura entre
+ * hilos; las operaciones son muy cortas, por lo que se sincronizan sobre la
+ * propia cache.
+ *
+ * @param <K>
+ *            tipo de las claves
+ * @param <V>
+ *            tipo de los valores
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class CacheLRU<K, V> implements CacheLRUMBean {
+
+	/** Dominio JMX. */
+	private static final String DOMINIO_JMX = "lsi.ubu.util";
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(CacheLRU.class);
+
+	/** Valor guardado junto con el instante en que caduca. */
+	private static final class Entrada<V> {
+		final V valor;
+		final long caduca;
+
+		Entrada(V valor, long caduca) {
+			this.valor = valor;
+			this.caduca = caduca;
+		}
+	}
+
+	private final int tamanoMaximo;
+	private final long tiempoVidaNanos;
+	private final LinkedHashMap<K, Entrada<V>> entradas;
+	private final LongAdder aciertos = new LongAdder();
+	private final LongAdder fallos = new LongAdder();
+	private final LongAdder expulsiones = new LongAdder();
+	private final LongAdder caducadas = new LongAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tamanoMaximo
+	 *            numero maximo de entradas
+	 * @param tiempoVidaMs
+	 *            tiempo de vida de cada entrada en milisegundos
+	 */
+	public CacheLRU(int tamanoMaximo, long tiempoVidaMs) {
+		if (tamanoMaximo <= 0 || tiempoVidaMs <= 0) {
+			throw new IllegalArgumentException("Tamano y tiempo de vida de la cache deben ser positivos");
+		}
+		this.tamanoMaximo = tamanoMaximo;
+		this.tiempoVidaNanos = TimeUnit.MILLISECONDS.toNanos(tiempoVidaMs);
+		// Orden de acceso: la primera entrada es la usada hace mas tiempo
+		this.entradas = new LinkedHashMap<K, Entrada<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entrada<V>> mayor) {
+				if (size() > CacheLRU.this.tamanoMaximo) {
+					expulsiones.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Publica los contadores en el servidor JMX de la plataforma.
+	 *
+	 * @param nombre
+	 *            nombre de la cache
+	 */
+	public void registrarJMX(String nombre) {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombreJMX = new ObjectName(DOMINIO_JMX + ":type=CacheLRU,name=" + nombre);
+			if (!servidor.isRegistered(nombreJMX)) {
+				servidor.registerMBean(this, nombreJMX);
+			}
+		} catch (Exception e) {
+			logger.warn("No se han podido publicar los contadores de la cache por JMX");
+			logger.warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Valor de una clave, si esta en la cache y no ha caducado.
+	 *
+	 * @param clave
+	 *            clave
+	 * @return valor, o null si no esta (fallo)
+	 */
+	public synchronized V get(K clave) {
+		Entrada<V> entrada = entradas.get(clave);
+		if (entrada != null && entrada.caduca - System.nanoTime() <= 0) {
+			entradas.remove(clave);
+			caducadas.increment();
+			entrada = null;
+		}
+		if (entrada == null) {
+			fallos.increment();
+			return null;
+		}
+		aciertos.increment();
+		return entrada.valor;
+	}
+
+	/**
+	 * Guarda un valor, expulsando la entrada menos usada si la cache esta
+	 * llena.
+	 *
+	 * @param clave
+	 *            clave
+	 * @param valor
+	 *            valor (no nulo)
+	 */
+	public synchronized void put(K clave, V valor) {
+		entradas.put(clave, new Entrada<V>(valor, System.nanoTime() + tiempoVidaNanos));
+	}
+
+	/**
+	 * Elimina una clave, por ejemplo al cambiar la fila de la que procede.
+	 *
+	 * @param clave
+	 *            clave
+	 */
+	public synchronized void invalidar(K clave) {
+		entradas.remove(clave);
+	}
+
+	@Override
+	public synchronized void vaciar() {
+		entradas.clear();
+	}
+
+	@Override
+	public long getAciertos() {
+		return aciertos.sum();
+	}
+
+	@Override
+	public long getFallos() {
+		return fallos.sum();
+	}
+
+	@Override
+	public long getExpulsiones() {
+		return expulsiones.sum();
+	}
+
+	@Override
+	public long getCaducadas() {
+		return caducadas.sum();
+	}
+
+	@Override
+	public synchronized int getTamano() {
+		return entradas.size();
+	}
+
+	@Override
+	public int getTamanoMaximo() {
+		return tamanoMaximo;
+	}
+
+	@Override
+	public long getTiempoVidaMs() {
+		return TimeUnit.NANOSECONDS.toMillis(tiempoVidaNanos);
+	}
+
+	@Override
+	public String toString() {
+		return "aciertos=" + getAciertos() + ", fallos=" + getFallos() + ", expulsiones=" + getExpulsiones()
+				+ ", caducadas=" + getCaducadas() + ", tamano=" + getTamano() + "/" + tamanoMaximo;
+	}
+}
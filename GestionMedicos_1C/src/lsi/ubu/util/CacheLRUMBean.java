@@ -0,0 +1,27 @@
+package lsi.ubu.util;
+
+/**
+ * Interfaz JMX de los contadores de una {@link CacheLRU}.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public interface CacheLRUMBean {
+
+	long getAciertos();
+
+	long getFallos();
+
+	long getExpulsiones();
+
+	long getCaducadas();
+
+	int getTamano();
+
+	int getTamanoMaximo();
+
+	long getTiempoVidaMs();
+
+	void vaciar();
+}
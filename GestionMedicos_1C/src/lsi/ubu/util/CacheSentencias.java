@@ -0,0 +1,143 @@
+package lsi.ubu.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import oracle.jdbc.OracleConnection;
+
+/**
+ * Utilidad para estimar los aciertos de la cache implicita de sentencias del
+ * driver de Oracle que activa el pool con <code>setMaxStatements</code>. El
+ * driver no ofrece estadisticas de esa cache (la unica pista,
+ * <code>OracleStatement.creationState()</code>, esta obsoleta), asi que se
+ * estima: por cada conexion fisica se guardan los textos SQL ya preparados en
+ * ella, incluidos los del calentamiento, y preparar uno que ya esta es un
+ * acierto mientras quepan todos en su cache. Si en una conexion se preparan
+ * mas textos distintos de los que caben, los siguientes se cuentan como
+ * fallos, porque el driver habra tenido que expulsar alguno.
+ * <p>
+ * No toma cerrojos: los mapas son concurrentes y cada conexion solo la usa un
+ * hilo a la vez. Las entradas desaparecen cuando UCP descarta la conexion
+ * fisica. Si el pool no deja llegar a ella los aciertos se cuentan como
+ * fallos.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class CacheSentencias {
+
+	/* Textos preparados en cada conexion fisica, con claves debiles */
+	private static final Map<Clave, Map<String, Boolean>> preparadas =
+			new ConcurrentHashMap<Clave, Map<String, Boolean>>();
+
+	/* Claves de conexiones fisicas ya descartadas, pendientes de quitar */
+	private static final ReferenceQueue<OracleConnection> descartadas = new ReferenceQueue<OracleConnection>();
+
+	private CacheSentencias() {
+	}
+
+	/**
+	 * Anota que se ha preparado una sentencia en la conexion e indica si se
+	 * habra obtenido de la cache implicita (acierto) o creado de nuevo
+	 * (fallo).
+	 *
+	 * @param con
+	 *            conexion en la que se ha preparado
+	 * @param sql
+	 *            texto SQL de la sentencia
+	 * @return true si procede de la cache, false si es nueva o no se puede
+	 *         determinar
+	 */
+	public static boolean esAcierto(Connection con, String sql) {
+		try {
+			OracleConnection fisica = conexionFisica(con);
+			if (fisica == null || !fisica.getImplicitCachingEnabled()) {
+				return false;
+			}
+			int tamano = fisica.getStatementCacheSize();
+			Map<String, Boolean> textos = textos(fisica);
+			return textos.putIfAbsent(sql, Boolean.TRUE) != null && textos.size() <= tamano;
+		} catch (SQLException e) {
+			// Driver sin soporte: se cuenta como fallo
+			return false;
+		}
+	}
+
+	/**
+	 * Anota una sentencia preparada fuera de la aplicacion (al calentar el
+	 * pool), que ya queda en la cache de la conexion, sin contarla.
+	 *
+	 * @param con
+	 *            conexion en la que se ha preparado
+	 * @param sql
+	 *            texto SQL de la sentencia
+	 */
+	static void anotar(Connection con, String sql) {
+		try {
+			OracleConnection fisica = conexionFisica(con);
+			if (fisica != null) {
+				textos(fisica).putIfAbsent(sql, Boolean.TRUE);
+			}
+		} catch (SQLException e) {
+			// Driver sin soporte: no hay nada que anotar
+		}
+	}
+
+	private static OracleConnection conexionFisica(Connection con) throws SQLException {
+		// El envoltorio del pool se desenvuelve a si mismo: se pregunta a UCP
+		Connection prestada = ConexionMedida.envuelta(con);
+		if (!prestada.isWrapperFor(OracleConnection.class)) {
+			return null;
+		}
+		return prestada.unwrap(OracleConnection.class);
+	}
+
+	private static Map<String, Boolean> textos(OracleConnection fisica) {
+		Map<String, Boolean> textos = preparadas.get(new Clave(fisica, null));
+		if (textos == null) {
+			Reference<? extends OracleConnection> descartada;
+			while ((descartada = descartadas.poll()) != null) {
+				preparadas.remove(descartada);
+			}
+			textos = preparadas.computeIfAbsent(new Clave(fisica, descartadas),
+					c -> new ConcurrentHashMap<String, Boolean>());
+		}
+		return textos;
+	}
+
+	/**
+	 * Referencia debil a una conexion fisica que la identifica por identidad.
+	 */
+	private static final class Clave extends WeakReference<OracleConnection> {
+
+		private final int hash;
+
+		Clave(OracleConnection conexion, ReferenceQueue<OracleConnection> cola) {
+			super(conexion, cola);
+			this.hash = System.identityHashCode(conexion);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object otra) {
+			if (this == otra) {
+				return true;
+			}
+			if (!(otra instanceof Clave)) {
+				return false;
+			}
+			OracleConnection conexion = get();
+			return conexion != null && conexion == ((Clave) otra).get();
+		}
+	}
+}
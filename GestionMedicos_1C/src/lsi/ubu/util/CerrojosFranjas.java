@@ -0,0 +1,281 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cerrojos por franjas: un numero fijo de ReentrantLock entre los que se
+ * reparten las claves por su hash. Dos operaciones con la misma clave se
+ * esperan en memoria; con claves distintas solo coinciden si caen en la misma
+ * franja. Varias claves se bloquean siempre en orden creciente de franja, por
+ * lo que no hay interbloqueos entre hilos. Mide las adquisiciones, las que han
+ * tenido que esperar (contenciones) y el tiempo de espera, en total y por
+ * franja, y los publica por JMX con {@link #registrarJMX(String)}.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class CerrojosFranjas implements CerrojosFranjasMBean {
+
+	/** Dominio JMX. */
+	private static final String DOMINIO_JMX = "lsi.ubu.util";
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(CerrojosFranjas.class);
+
+	/**
+	 * Cerrojos adquiridos por una llamada a bloquear; close() los libera y se
+	 * debe llamar desde el mismo hilo.
+	 */
+	public final class Cierre implements AutoCloseable {
+		private final int[] franjas;
+		private boolean cerrado;
+
+		private Cierre(int[] franjas) {
+			this.franjas = franjas;
+		}
+
+		@Override
+		public void close() {
+			if (cerrado) {
+				return;
+			}
+			cerrado = true;
+			for (int i = franjas.length - 1; i >= 0; i--) {
+				cerrojos[franjas[i]].unlock();
+			}
+		}
+	}
+
+	private final ReentrantLock[] cerrojos;
+	private final int mascara;
+	private final LongAdder adquisiciones = new LongAdder();
+	private final LongAdder tiemposAgotados = new LongAdder();
+	private final LongAdder[] contenciones;
+	private final LongAdder[] esperaNanos;
+	private final HistogramaLatencias esperas = new HistogramaLatencias();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param numeroFranjas
+	 *            numero de cerrojos; se redondea a la siguiente potencia de dos
+	 */
+	public CerrojosFranjas(int numeroFranjas) {
+		if (numeroFranjas <= 0) {
+			throw new IllegalArgumentException("El numero de franjas debe ser positivo");
+		}
+		int n = 1;
+		while (n < numeroFranjas) {
+			n <<= 1;
+		}
+		this.cerrojos = new ReentrantLock[n];
+		this.contenciones = new LongAdder[n];
+		this.esperaNanos = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			cerrojos[i] = new ReentrantLock();
+			contenciones[i] = new LongAdder();
+			esperaNanos[i] = new LongAdder();
+		}
+		this.mascara = n - 1;
+	}
+
+	/**
+	 * Franja de una clave.
+	 *
+	 * @param clave
+	 *            clave, con equals y hashCode coherentes
+	 * @return indice del cerrojo
+	 */
+	public int franja(Object clave) {
+		int h = clave.hashCode();
+		return (h ^ (h >>> 16)) & mascara;
+	}
+
+	/**
+	 * Bloquea las franjas de todas las claves, en orden creciente de franja.
+	 *
+	 * @param claves
+	 *            claves que se bloquean; las repetidas o que caen en la misma
+	 *            franja se bloquean una sola vez
+	 * @param esperaMaximaMs
+	 *            tiempo maximo de espera por cada franja
+	 * @return cierre que libera los cerrojos, o null si se agota el tiempo o se
+	 *         interrumpe el hilo; en ese caso no queda ninguno bloqueado
+	 */
+	public Cierre bloquear(Collection<?> claves, long esperaMaximaMs) {
+		TreeSet<Integer> distintas = new TreeSet<Integer>();
+		for (Object clave : claves) {
+			distintas.add(franja(clave));
+		}
+		int[] franjas = new int[distintas.size()];
+		int i = 0;
+		for (int f : distintas) {
+			franjas[i++] = f;
+		}
+		return bloquearFranjas(franjas, esperaMaximaMs);
+	}
+
+	/**
+	 * Bloquea la franja de una clave.
+	 *
+	 * @see #bloquear(Collection, long)
+	 */
+	public Cierre bloquear(Object clave, long esperaMaximaMs) {
+		return bloquear(Collections.singleton(clave), esperaMaximaMs);
+	}
+
+	/**
+	 * Bloquea todas las franjas, para operaciones cuyas claves no se conocen o
+	 * son demasiadas.
+	 *
+	 * @see #bloquear(Collection, long)
+	 */
+	public Cierre bloquearTodas(long esperaMaximaMs) {
+		int[] franjas = new int[cerrojos.length];
+		for (int f = 0; f < franjas.length; f++) {
+			franjas[f] = f;
+		}
+		return bloquearFranjas(franjas, esperaMaximaMs);
+	}
+
+	/**
+	 * Bloquea las franjas indicadas, que deben estar en orden creciente. Si no
+	 * lo consigue libera las que ya tenia.
+	 */
+	private Cierre bloquearFranjas(int[] franjas, long esperaMaximaMs) {
+		int adquiridas = 0;
+		try {
+			for (int f : franjas) {
+				if (!adquirir(f, esperaMaximaMs)) {
+					tiemposAgotados.increment();
+					return null;
+				}
+				adquiridas++;
+			}
+			Cierre cierre = new Cierre(franjas);
+			adquiridas = -1;
+			return cierre;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			for (int i = adquiridas - 1; i >= 0; i--) {
+				cerrojos[franjas[i]].unlock();
+			}
+		}
+	}
+
+	private boolean adquirir(int f, long esperaMaximaMs) throws InterruptedException {
+		ReentrantLock cerrojo = cerrojos[f];
+		adquisiciones.increment();
+		if (cerrojo.tryLock()) {
+			return true;
+		}
+		contenciones[f].increment();
+		long inicio = System.nanoTime();
+		try {
+			return cerrojo.tryLock(esperaMaximaMs, TimeUnit.MILLISECONDS);
+		} finally {
+			long espera = System.nanoTime() - inicio;
+			esperaNanos[f].add(espera);
+			esperas.registrar(espera);
+		}
+	}
+
+	/**
+	 * Publica las metricas por JMX con el nombre
+	 * lsi.ubu.util:type=CerrojosFranjas,name=nombre.
+	 *
+	 * @param nombre
+	 *            nombre de los cerrojos
+	 */
+	public void registrarJMX(String nombre) {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombreJMX = new ObjectName(DOMINIO_JMX + ":type=CerrojosFranjas,name=" + nombre);
+			if (!servidor.isRegistered(nombreJMX)) {
+				servidor.registerMBean(this, nombreJMX);
+			}
+		} catch (Exception e) {
+			logger.warn("No se han podido publicar las metricas de los cerrojos por JMX");
+			logger.warn(e.getMessage());
+		}
+	}
+
+	@Override
+	public int getNumeroFranjas() {
+		return cerrojos.length;
+	}
+
+	@Override
+	public long getAdquisiciones() {
+		return adquisiciones.sum();
+	}
+
+	@Override
+	public long getContenciones() {
+		long total = 0;
+		for (LongAdder c : contenciones) {
+			total += c.sum();
+		}
+		return total;
+	}
+
+	@Override
+	public long getTiemposAgotados() {
+		return tiemposAgotados.sum();
+	}
+
+	@Override
+	public double getEsperaMediaMs() {
+		return esperas.getMediaMs();
+	}
+
+	@Override
+	public double getEsperaP99Ms() {
+		return esperas.getPercentilMs(99);
+	}
+
+	@Override
+	public double getEsperaMaximaMs() {
+		return esperas.getMaximoMs();
+	}
+
+	@Override
+	public long[] getContencionesPorFranja() {
+		long[] valores = new long[contenciones.length];
+		for (int i = 0; i < valores.length; i++) {
+			valores[i] = contenciones[i].sum();
+		}
+		return valores;
+	}
+
+	@Override
+	public long[] getEsperaPorFranjaMs() {
+		long[] valores = new long[esperaNanos.length];
+		for (int i = 0; i < valores.length; i++) {
+			valores[i] = TimeUnit.NANOSECONDS.toMillis(esperaNanos[i].sum());
+		}
+		return valores;
+	}
+
+	@Override
+	public String toString() {
+		return "franjas=" + getNumeroFranjas() + " adquisiciones=" + getAdquisiciones() + " contenciones="
+				+ getContenciones() + " agotados=" + getTiemposAgotados()
+				+ String.format(" esperaMedia=%.3fms esperaP99=%.3fms", getEsperaMediaMs(), getEsperaP99Ms());
+	}
+}
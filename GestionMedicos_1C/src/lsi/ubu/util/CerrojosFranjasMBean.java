@@ -0,0 +1,30 @@
+package lsi.ubu.util;
+
+/**
+ * Interfaz JMX de las metricas de los cerrojos por franjas. Los tiempos se
+ * expresan en milisegundos.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public interface CerrojosFranjasMBean {
+
+	int getNumeroFranjas();
+
+	long getAdquisiciones();
+
+	long getContenciones();
+
+	long getTiemposAgotados();
+
+	double getEsperaMediaMs();
+
+	double getEsperaP99Ms();
+
+	double getEsperaMaximaMs();
+
+	long[] getContencionesPorFranja();
+
+	long[] getEsperaPorFranjaMs();
+}
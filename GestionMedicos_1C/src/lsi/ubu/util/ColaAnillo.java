@@ -0,0 +1,125 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cola acotada sobre un anillo de posiciones, segura entre hilos y sin
+ * bloqueos. Cada posicion lleva un numero de secuencia que indica si esta
+ * libre para la vuelta actual de los productores o llena para la de los
+ * consumidores, de modo que productores y consumidores solo compiten por el
+ * contador de su extremo. Cuando esta llena, {@link #ofrecer(Object)} devuelve
+ * false en lugar de esperar: quien la usa decide si descarta o reintenta.
+ *
+ * @param <E>
+ *            tipo de los elementos
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class ColaAnillo<E> {
+
+	private final AtomicReferenceArray<E> elementos;
+	private final AtomicLongArray secuencias;
+	private final int mascara;
+
+	/** Siguiente posicion en la que se anade. */
+	private final AtomicLong cola = new AtomicLong();
+
+	/** Siguiente posicion de la que se saca. */
+	private final AtomicLong cabeza = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacidad
+	 *            numero minimo de elementos; se redondea a una potencia de dos
+	 */
+	public ColaAnillo(int capacidad) {
+		if (capacidad < 1 || capacidad > (1 << 30)) {
+			throw new IllegalArgumentException("Capacidad de la cola no valida: " + capacidad);
+		}
+		int potencia = Integer.highestOneBit(capacidad);
+		if (potencia < capacidad) {
+			potencia <<= 1;
+		}
+		this.elementos = new AtomicReferenceArray<E>(potencia);
+		this.secuencias = new AtomicLongArray(potencia);
+		this.mascara = potencia - 1;
+		for (int i = 0; i < potencia; i++) {
+			secuencias.set(i, i);
+		}
+	}
+
+	/**
+	 * Anade un elemento si hay sitio.
+	 *
+	 * @param elemento
+	 *            elemento, no nulo
+	 * @return true si se ha anadido, false si la cola esta llena
+	 */
+	public boolean ofrecer(E elemento) {
+		long posicion = cola.get();
+		while (true) {
+			int i = (int) posicion & mascara;
+			long diferencia = secuencias.get(i) - posicion;
+			if (diferencia == 0) {
+				if (cola.compareAndSet(posicion, posicion + 1)) {
+					elementos.lazySet(i, elemento);
+					// Publica el elemento a los consumidores
+					secuencias.set(i, posicion + 1);
+					return true;
+				}
+				posicion = cola.get();
+			} else if (diferencia < 0) {
+				// La posicion aun tiene el elemento de la vuelta anterior
+				return false;
+			} else {
+				posicion = cola.get();
+			}
+		}
+	}
+
+	/**
+	 * Saca el elemento mas antiguo.
+	 *
+	 * @return elemento, o null si la cola esta vacia
+	 */
+	public E sacar() {
+		long posicion = cabeza.get();
+		while (true) {
+			int i = (int) posicion & mascara;
+			long diferencia = secuencias.get(i) - (posicion + 1);
+			if (diferencia == 0) {
+				if (cabeza.compareAndSet(posicion, posicion + 1)) {
+					E elemento = elementos.get(i);
+					elementos.lazySet(i, null);
+					// Deja la posicion libre para la siguiente vuelta
+					secuencias.set(i, posicion + mascara + 1);
+					return elemento;
+				}
+				posicion = cabeza.get();
+			} else if (diferencia < 0) {
+				return null;
+			} else {
+				posicion = cabeza.get();
+			}
+		}
+	}
+
+	/**
+	 * Numero aproximado de elementos (exacto si no hay operaciones en curso).
+	 *
+	 * @return elementos en la cola
+	 */
+	public int getTamano() {
+		long tamano = cola.get() - cabeza.get();
+		return (int) Math.max(0, Math.min(tamano, mascara + 1));
+	}
+
+	public int getCapacidad() {
+		return mascara + 1;
+	}
+}
@@ -0,0 +1,172 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+import oracle.ucp.jdbc.ValidConnection;
+
+/**
+ * Envoltorio de una conexion prestada que, cuando se cierra, anota en las
+ * metricas del pool el tiempo que se ha retenido y la devuelve a la
+ * generacion del pool que la presto. Si una llamada falla porque se ha
+ * perdido la conexion, la marca como no valida para que UCP la descarte al
+ * devolverla y el siguiente prestamo (por ejemplo el reintento de la
+ * transaccion) reciba una conexion nueva.
+ * <p>
+ * El envoltorio implementa las mismas interfaces publicas que la conexion de
+ * UCP (OracleConnection, ValidConnection...), y unwrap devuelve el propio
+ * envoltorio para cualquiera de ellas, de modo que cerrar la conexion
+ * desenvuelta tambien pasa por las metricas.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+class ConexionMedida implements InvocationHandler {
+
+	/* Interfaces que implementa el envoltorio de cada clase de conexion */
+	private static final Map<Class<?>, Class<?>[]> interfaces = new ConcurrentHashMap<Class<?>, Class<?>[]>();
+
+	private final Connection conexion;
+	private final MetricasPool metricas;
+	private final GeneracionPool generacion;
+	private final long inicio;
+	private boolean cerrada;
+
+	private ConexionMedida(Connection conexion, MetricasPool metricas, GeneracionPool generacion) {
+		this.conexion = conexion;
+		this.metricas = metricas;
+		this.generacion = generacion;
+		this.inicio = System.nanoTime();
+	}
+
+	/**
+	 * Envuelve una conexion recien prestada.
+	 *
+	 * @param conexion
+	 *            conexion del pool
+	 * @param metricas
+	 *            metricas donde anotar la retencion, o null si el prestamo no
+	 *            se ha anotado en ellas (calentamiento)
+	 * @param generacion
+	 *            generacion del pool que la ha prestado
+	 * @return conexion envuelta
+	 */
+	static Connection envolver(Connection conexion, MetricasPool metricas, GeneracionPool generacion) {
+		return (Connection) Proxy.newProxyInstance(ConexionMedida.class.getClassLoader(),
+				interfaces.computeIfAbsent(conexion.getClass(), ConexionMedida::interfaces),
+				new ConexionMedida(conexion, metricas, generacion));
+	}
+
+	/**
+	 * Conexion de UCP que hay dentro de un envoltorio, o la misma conexion si
+	 * no esta envuelta. Solo para consultarla: cerrarla se saltaria las
+	 * metricas.
+	 *
+	 * @param con
+	 *            conexion prestada por el pool
+	 * @return conexion de UCP
+	 */
+	static Connection envuelta(Connection con) {
+		if (Proxy.isProxyClass(con.getClass()) && Proxy.getInvocationHandler(con) instanceof ConexionMedida) {
+			return ((ConexionMedida) Proxy.getInvocationHandler(con)).conexion;
+		}
+		return con;
+	}
+
+	/**
+	 * Interfaces publicas de la clase de conexion (y de sus superclases) que se
+	 * pueden ver desde este cargador de clases.
+	 */
+	private static Class<?>[] interfaces(Class<?> clase) {
+		Set<Class<?>> encontradas = new LinkedHashSet<Class<?>>();
+		encontradas.add(Connection.class);
+		for (Class<?> c = clase; c != null; c = c.getSuperclass()) {
+			anadirInterfaces(encontradas, c);
+		}
+		return encontradas.toArray(new Class<?>[encontradas.size()]);
+	}
+
+	private static void anadirInterfaces(Set<Class<?>> encontradas, Class<?> clase) {
+		for (Class<?> interfaz : clase.getInterfaces()) {
+			if (Modifier.isPublic(interfaz.getModifiers()) && esVisible(interfaz)
+					&& encontradas.add(interfaz)) {
+				anadirInterfaces(encontradas, interfaz);
+			}
+		}
+	}
+
+	private static boolean esVisible(Class<?> interfaz) {
+		try {
+			return Class.forName(interfaz.getName(), false, ConexionMedida.class.getClassLoader()) == interfaz;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+		if ("equals".equals(metodo.getName()) && metodo.getParameterCount() == 1) {
+			return proxy == args[0];
+		}
+		if ("hashCode".equals(metodo.getName()) && metodo.getParameterCount() == 0) {
+			return System.identityHashCode(proxy);
+		}
+		if ("unwrap".equals(metodo.getName()) && metodo.getParameterCount() == 1
+				&& ((Class<?>) args[0]).isInstance(proxy)) {
+			// La conexion desenvuelta tambien debe cerrarse a traves del envoltorio
+			return proxy;
+		}
+		if ("isWrapperFor".equals(metodo.getName()) && metodo.getParameterCount() == 1
+				&& ((Class<?>) args[0]).isInstance(proxy)) {
+			return true;
+		}
+		boolean devolver = false;
+		if ("close".equals(metodo.getName()) && metodo.getParameterCount() == 0) {
+			synchronized (this) {
+				if (!cerrada) {
+					cerrada = true;
+					devolver = true;
+					if (metricas != null)
+						metricas.devolucion(System.nanoTime() - inicio);
+				}
+			}
+		}
+		try {
+			return metodo.invoke(conexion, args);
+		} catch (InvocationTargetException e) {
+			Throwable causa = e.getCause();
+			if (causa instanceof SQLException) {
+				invalidarSiPerdida((SQLException) causa);
+			}
+			throw causa;
+		} finally {
+			if (devolver) {
+				generacion.devolver();
+			}
+		}
+	}
+
+	private void invalidarSiPerdida(SQLException e) {
+		if (conexion instanceof ValidConnection
+				&& OracleSGBDErrorUtil.getInstance().classify(e) == SGBDError.CONNECTION_LOST) {
+			try {
+				((ValidConnection) conexion).setInvalid();
+			} catch (SQLException ignorada) {
+				// La conexion ya esta cerrada: UCP no la volvera a prestar
+			}
+		}
+	}
+}
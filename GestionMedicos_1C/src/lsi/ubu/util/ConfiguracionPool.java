@@ -0,0 +1,333 @@
+package lsi.ubu.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import oracle.ucp.jdbc.PoolDataSource;
+import oracle.ucp.jdbc.PoolDataSourceFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Configuracion del pool de conexiones. Se lee de un fichero de propiedades
+ * (por defecto <code>res/pool.properties</code>, o el indicado en la
+ * propiedad de sistema <code>pool.config</code>) y las propiedades de
+ * sistema con prefijo <code>pool.</code> prevalecen sobre las del fichero.
+ * Las claves no indicadas toman los valores por defecto de la configuracion
+ * original publicada por JNDI.
+ * <p>
+ * Un pool adicional (por ejemplo el de lectura) se configura en una seccion
+ * con claves <code>pool.&lt;seccion&gt;.xxx</code>; las que no se indiquen en
+ * la seccion se toman de las generales <code>pool.xxx</code>.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class ConfiguracionPool {
+
+	/** Propiedad de sistema con la ruta del fichero de configuracion. */
+	public static final String PROPIEDAD_FICHERO = "pool.config";
+	/** Fichero de configuracion por defecto. */
+	public static final String FICHERO_POR_DEFECTO = "res/pool.properties";
+
+	/**
+	 * Tamano de la cache de sentencias si no se configura: cabe el catalogo de
+	 * sentencias de la aplicacion, que ademas la amplia al calentar el pool.
+	 */
+	public static final int MAX_SENTENCIAS_POR_DEFECTO = 32;
+
+	/** Prefijo de todas las claves. */
+	static final String PREFIJO = "pool.";
+
+	// Claves de configuracion
+	public static final String ARRANQUE = PREFIJO + "arranque";
+	public static final String URL = PREFIJO + "url";
+	public static final String HOST = PREFIJO + "host";
+	public static final String PORT = PREFIJO + "port";
+	public static final String SID = PREFIJO + "sid";
+	public static final String USER = PREFIJO + "user";
+	public static final String PASSWORD = PREFIJO + "password";
+	public static final String TAMANO_INICIAL = PREFIJO + "tamanoInicial";
+	public static final String TAMANO_MINIMO = PREFIJO + "tamanoMinimo";
+	public static final String TAMANO_MAXIMO = PREFIJO + "tamanoMaximo";
+	public static final String TIEMPO_VIDA = PREFIJO + "tiempoVida";
+	public static final String MAX_SENTENCIAS = PREFIJO + "maxSentencias";
+	public static final String RECARGA_AUTOMATICA = PREFIJO + "recargaAutomatica";
+	public static final String DRENAJE_MAXIMO = PREFIJO + "drenajeMaximo";
+	public static final String ESPERA_MAXIMA = PREFIJO + "esperaMaxima";
+	public static final String COLA_MAXIMA = PREFIJO + "colaMaxima";
+	public static final String SOLO_LECTURA = PREFIJO + "soloLectura";
+	public static final String CONTROLADOR_MAXIMO_INFERIOR = PREFIJO + "controlador.maximoInferior";
+	public static final String CONTROLADOR_MAXIMO_SUPERIOR = PREFIJO + "controlador.maximoSuperior";
+	public static final String CONTROLADOR_PASO = PREFIJO + "controlador.paso";
+	public static final String CONTROLADOR_PERIODO = PREFIJO + "controlador.periodo";
+
+	/** Valor de {@link #ARRANQUE} que fuerza la busqueda JNDI. */
+	public static final String ARRANQUE_JNDI = "jndi";
+
+	// Valores por defecto
+	private static final String DRIVER_TYPE = "thin";
+	private static final int DEFAULT_PORT = 1521;
+	private static final String DEFAULT_SID = "xe";
+	private static final String DEFAULT_HOST = "localhost";
+	private static final String DEFAULT_USER = "hr";
+	// Tip: si hay problemas de conexion, comprueba que en la BD el password esta en minusculas,
+	// prueba desde SQL*Plus o SQLDeveloper que efectivamente puedes conectarte con hr/hr.
+	private static final String DEFAULT_PASSWORD = "hr";
+	private static final String CONNECTION_FACTORY = "oracle.jdbc.pool.OracleDataSource";
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(ConfiguracionPool.class);
+
+	/** Propiedades leidas. */
+	private final Properties propiedades;
+
+	/** Indica si se ha encontrado configuracion externa (fichero o sistema). */
+	private final boolean externa;
+
+	/** Seccion de la configuracion, o null para la general. */
+	private final String seccion;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param propiedades
+	 *            propiedades de configuracion
+	 * @param externa
+	 *            si proceden de un fichero o de propiedades de sistema
+	 * @param seccion
+	 *            seccion de la configuracion, o null para la general
+	 */
+	ConfiguracionPool(Properties propiedades, boolean externa, String seccion) {
+		this.propiedades = propiedades;
+		this.externa = externa;
+		this.seccion = seccion;
+	}
+
+	/**
+	 * Configuracion con los valores por defecto.
+	 *
+	 * @return configuracion por defecto
+	 */
+	public static ConfiguracionPool porDefecto() {
+		return new ConfiguracionPool(new Properties(), false, null);
+	}
+
+	/**
+	 * Carga la configuracion del fichero y de las propiedades de sistema.
+	 *
+	 * @return configuracion leida
+	 */
+	public static ConfiguracionPool cargar() {
+		Properties propiedades = new Properties();
+		boolean externa = false;
+
+		Path fichero = getFichero();
+		if (Files.isRegularFile(fichero)) {
+			try (InputStream in = new FileInputStream(fichero.toFile())) {
+				propiedades.load(in);
+				externa = true;
+			} catch (IOException e) {
+				logger.error("No se puede leer la configuracion del pool de " + fichero);
+				logger.error(e.getMessage());
+			}
+		}
+
+		for (String clave : System.getProperties().stringPropertyNames()) {
+			if (clave.startsWith(PREFIJO) && !clave.equals(PROPIEDAD_FICHERO)) {
+				propiedades.setProperty(clave, System.getProperty(clave));
+				externa = true;
+			}
+		}
+		return new ConfiguracionPool(propiedades, externa, null);
+	}
+
+	/**
+	 * Configuracion de una seccion (pool adicional), que hereda las claves
+	 * generales que no redefina.
+	 *
+	 * @param nombre
+	 *            nombre de la seccion, o null para la general
+	 * @return configuracion de la seccion
+	 */
+	public ConfiguracionPool getSeccion(String nombre) {
+		return new ConfiguracionPool(propiedades, externa, nombre);
+	}
+
+	/**
+	 * Indica si existe alguna clave propia de una seccion.
+	 *
+	 * @param nombre
+	 *            nombre de la seccion
+	 * @return true si hay claves <code>pool.&lt;nombre&gt;.xxx</code>
+	 */
+	public boolean defineSeccion(String nombre) {
+		String prefijo = PREFIJO + nombre + ".";
+		for (String clave : propiedades.stringPropertyNames()) {
+			if (clave.startsWith(prefijo)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Valor de una clave, buscando primero en la seccion y luego en la general.
+	 */
+	private String valor(String clave) {
+		if (seccion != null) {
+			String propio = propiedades.getProperty(PREFIJO + seccion + "." + clave.substring(PREFIJO.length()));
+			if (propio != null) {
+				return propio;
+			}
+		}
+		return propiedades.getProperty(clave);
+	}
+
+	/**
+	 * Ruta del fichero de configuracion.
+	 *
+	 * @return ruta del fichero
+	 */
+	public static Path getFichero() {
+		return Paths.get(System.getProperty(PROPIEDAD_FICHERO, FICHERO_POR_DEFECTO));
+	}
+
+	/**
+	 * Indica si el pool debe construirse directamente con esta configuracion
+	 * en lugar de buscarse por JNDI.
+	 *
+	 * @return true si hay configuracion externa y no se fuerza JNDI
+	 */
+	public boolean isArranqueDirecto() {
+		return externa && !ARRANQUE_JNDI.equalsIgnoreCase(valor(ARRANQUE));
+	}
+
+	/**
+	 * Indica si se debe vigilar el fichero y recargar la configuracion cuando
+	 * cambie.
+	 *
+	 * @return true si la recarga automatica esta activada
+	 */
+	public boolean isRecargaAutomatica() {
+		return Boolean.parseBoolean(getString(RECARGA_AUTOMATICA, "false"));
+	}
+
+	/**
+	 * Indica si se debe ajustar el tamano maximo del pool con un
+	 * {@link ControladorTamanoPool}: basta con configurar
+	 * {@link #CONTROLADOR_MAXIMO_SUPERIOR}.
+	 *
+	 * @return true si el controlador esta configurado
+	 */
+	public boolean isControladorActivo() {
+		return contiene(CONTROLADOR_MAXIMO_SUPERIOR);
+	}
+
+	/**
+	 * Indica si las conexiones del pool son de solo lectura.
+	 *
+	 * @param porDefecto
+	 *            valor si no esta configurado
+	 * @return true si son de solo lectura
+	 */
+	public boolean isSoloLectura(boolean porDefecto) {
+		return Boolean.parseBoolean(getString(SOLO_LECTURA, String.valueOf(porDefecto)));
+	}
+
+	/**
+	 * URL de conexion.
+	 *
+	 * @return URL JDBC
+	 */
+	public String getUrl() {
+		String url = valor(URL);
+		if (url != null) {
+			return url;
+		}
+		return "jdbc:oracle:" + DRIVER_TYPE + ":" + getString(USER, DEFAULT_USER) + "/"
+				+ getString(PASSWORD, DEFAULT_PASSWORD) + "@" + getString(HOST, DEFAULT_HOST) + ":"
+				+ getInt(PORT, DEFAULT_PORT) + ":" + getString(SID, DEFAULT_SID);
+	}
+
+	/**
+	 * Indica si una clave tiene valor configurado explicitamente.
+	 *
+	 * @param clave
+	 *            clave
+	 * @return true si esta en el fichero o en las propiedades de sistema
+	 */
+	public boolean contiene(String clave) {
+		return valor(clave) != null;
+	}
+
+	/**
+	 * Valor de texto.
+	 *
+	 * @param clave
+	 *            clave
+	 * @param porDefecto
+	 *            valor si no esta configurada
+	 * @return valor
+	 */
+	public String getString(String clave, String porDefecto) {
+		String valor = valor(clave);
+		return (valor != null ? valor : porDefecto).trim();
+	}
+
+	/**
+	 * Valor entero.
+	 *
+	 * @param clave
+	 *            clave
+	 * @param porDefecto
+	 *            valor si no esta configurada
+	 * @return valor
+	 * @throws IllegalArgumentException
+	 *             si el valor no es un entero
+	 */
+	public int getInt(String clave, int porDefecto) {
+		String valor = valor(clave);
+		if (valor == null) {
+			return porDefecto;
+		}
+		try {
+			return Integer.parseInt(valor.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Valor no numerico para " + clave + ": " + valor);
+		}
+	}
+
+	/**
+	 * Crea un PoolDataSource de UCP con esta configuracion.
+	 *
+	 * @return DataSource del pool
+	 * @throws SQLException
+	 *             si algun valor no es admitido por UCP
+	 */
+	public PoolDataSource crearDataSource() throws SQLException {
+		PoolDataSource pds = PoolDataSourceFactory.getPoolDataSource();
+		pds.setConnectionFactoryClassName(CONNECTION_FACTORY);
+		pds.setURL(getUrl());
+
+		//// Configuracion del pool
+		pds.setMinPoolSize(getInt(TAMANO_MINIMO, 3));
+		pds.setMaxPoolSize(getInt(TAMANO_MAXIMO, 10));
+		pds.setInitialPoolSize(getInt(TAMANO_INICIAL, 5));
+		pds.setTimeToLiveConnectionTimeout(getInt(TIEMPO_VIDA, 18000));
+		pds.setConnectionWaitTimeout(getInt(ESPERA_MAXIMA, 3));
+
+		////Activacion de la cache de sentencias preparadas
+		pds.setMaxStatements(getInt(MAX_SENTENCIAS, MAX_SENTENCIAS_POR_DEFECTO));
+
+		return pds;
+	}
+}
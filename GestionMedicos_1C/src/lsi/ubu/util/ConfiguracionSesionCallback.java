@@ -0,0 +1,133 @@
+package lsi.ubu.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+
+import oracle.ucp.ConnectionLabelingCallback;
+import oracle.ucp.jdbc.LabelableConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Callback de etiquetado de UCP que configura la sesion de cada conexion
+ * fisica una unica vez (autocommit desactivado, nivel de aislamiento y, en los
+ * pools de lectura, modo solo lectura), y la marca con una etiqueta para que
+ * los siguientes prestamos no repitan la configuracion.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+class ConfiguracionSesionCallback implements ConnectionLabelingCallback {
+
+	/** Clave de la etiqueta de sesion. */
+	static final String ETIQUETA_SESION = "sesion";
+
+	/** Valor de la etiqueta para sesiones READ_COMMITTED sin autocommit. */
+	static final String SESION_TRANSACCIONAL = "rc_noautocommit";
+
+	/** Valor de la etiqueta para sesiones de solo lectura. */
+	static final String SESION_SOLO_LECTURA = "rc_noautocommit_ro";
+
+	/** Coste de reutilizar una conexion sin configurar (menor que crear una nueva). */
+	private static final int COSTE_CONFIGURAR = 10;
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(ConfiguracionSesionCallback.class);
+
+	/** Indica si las sesiones se configuran como de solo lectura. */
+	private final boolean soloLectura;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param soloLectura
+	 *            si las sesiones son de solo lectura
+	 */
+	ConfiguracionSesionCallback(boolean soloLectura) {
+		this.soloLectura = soloLectura;
+	}
+
+	/**
+	 * Etiquetas solicitadas en cada prestamo.
+	 *
+	 * @param soloLectura
+	 *            si la sesion es de solo lectura
+	 * @return etiquetas de la sesion
+	 */
+	static Properties etiquetasSesion(boolean soloLectura) {
+		Properties etiquetas = new Properties();
+		etiquetas.setProperty(ETIQUETA_SESION, soloLectura ? SESION_SOLO_LECTURA : SESION_TRANSACCIONAL);
+		return etiquetas;
+	}
+
+	/**
+	 * Coste de adaptar una conexion con ciertas etiquetas a las solicitadas.
+	 *
+	 * @param solicitadas
+	 *            etiquetas solicitadas
+	 * @param actuales
+	 *            etiquetas que ya tiene la conexion
+	 * @return 0 si coinciden, un coste fijo si hay que configurar la sesion
+	 */
+	@Override
+	public int cost(Properties solicitadas, Properties actuales) {
+		if (actuales == null || actuales.isEmpty()) {
+			return COSTE_CONFIGURAR;
+		}
+		for (Map.Entry<Object, Object> etiqueta : solicitadas.entrySet()) {
+			if (!etiqueta.getValue().equals(actuales.get(etiqueta.getKey()))) {
+				return COSTE_CONFIGURAR;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Configura la sesion de la conexion y le aplica las etiquetas solicitadas.
+	 *
+	 * @param solicitadas
+	 *            etiquetas solicitadas
+	 * @param conexion
+	 *            conexion a configurar
+	 * @return true si se ha configurado correctamente
+	 */
+	@Override
+	public boolean configure(Properties solicitadas, Object conexion) {
+		try {
+			Connection conn = (Connection) conexion;
+			configurarSesion(conn, soloLectura);
+
+			LabelableConnection etiquetable = (LabelableConnection) conexion;
+			for (String clave : solicitadas.stringPropertyNames()) {
+				etiquetable.applyConnectionLabel(clave, solicitadas.getProperty(clave));
+			}
+			return true;
+		} catch (SQLException e) {
+			logger.error("No se ha podido configurar la sesion de la conexion");
+			logger.error(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Aplica la configuracion de sesion a una conexion.
+	 *
+	 * @param conn
+	 *            conexion
+	 * @param soloLectura
+	 *            si la sesion es de solo lectura
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	static void configurarSesion(Connection conn, boolean soloLectura) throws SQLException {
+		conn.setAutoCommit(false);
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		if (soloLectura) {
+			conn.setReadOnly(true);
+		}
+	}
+}
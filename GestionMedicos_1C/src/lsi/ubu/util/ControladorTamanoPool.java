@@ -0,0 +1,235 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controlador opcional que ajusta periodicamente el tamano maximo del pool
+ * mediante {@link PoolDeConexiones#resizePool(int, int, int)}, a partir de la
+ * espera media en los prestamos y de la utilizacion observadas en cada
+ * intervalo. Aplica histeresis: solo crece tras varias muestras seguidas con
+ * presion, solo decrece tras bastantes mas muestras seguidas con holgura, y
+ * tras cada cambio espera un periodo de enfriamiento.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class ControladorTamanoPool {
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(ControladorTamanoPool.class);
+
+	private final PoolDeConexiones pool;
+	private final int maximoInferior;
+	private final int maximoSuperior;
+	private final int paso;
+	private final long periodoMs;
+
+	/** Espera media (ms) a partir de la cual se considera que hay presion. */
+	private double umbralEsperaMs = 20;
+	/** Utilizacion a partir de la cual se considera que hay presion. */
+	private double utilizacionAlta = 0.85;
+	/** Utilizacion por debajo de la cual se considera que hay holgura. */
+	private double utilizacionBaja = 0.4;
+	/** Muestras seguidas con presion necesarias para crecer. */
+	private int muestrasParaCrecer = 2;
+	/** Muestras seguidas con holgura necesarias para decrecer. */
+	private int muestrasParaReducir = 20;
+	/** Muestras a ignorar tras un cambio de tamano. */
+	private int muestrasEnfriamiento = 3;
+
+	private ScheduledExecutorService planificador;
+	private InstantaneaMetricasPool anterior;
+	private int conPresion;
+	private int conHolgura;
+	private int enfriamiento;
+
+	/** Ultimo tamano maximo aplicado por el controlador, o 0 si ninguno. */
+	private volatile int maximoAjustado;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool
+	 *            pool a controlar
+	 * @param maximoInferior
+	 *            menor tamano maximo permitido
+	 * @param maximoSuperior
+	 *            mayor tamano maximo permitido
+	 * @param paso
+	 *            conexiones que se anaden o quitan en cada ajuste
+	 * @param periodoMs
+	 *            periodo de muestreo en milisegundos
+	 */
+	public ControladorTamanoPool(PoolDeConexiones pool, int maximoInferior, int maximoSuperior, int paso,
+			long periodoMs) {
+		if (maximoInferior < 1 || maximoSuperior < maximoInferior || paso < 1 || periodoMs < 1) {
+			throw new IllegalArgumentException("Limites del controlador de tamano no validos");
+		}
+		this.pool = pool;
+		this.maximoInferior = maximoInferior;
+		this.maximoSuperior = maximoSuperior;
+		this.paso = paso;
+		this.periodoMs = periodoMs;
+	}
+
+	/**
+	 * Configura los umbrales de decision.
+	 *
+	 * @param umbralEsperaMs
+	 *            espera media (ms) que indica presion
+	 * @param utilizacionAlta
+	 *            utilizacion (0-1) que indica presion
+	 * @param utilizacionBaja
+	 *            utilizacion (0-1) que indica holgura
+	 */
+	public synchronized void setUmbrales(double umbralEsperaMs, double utilizacionAlta, double utilizacionBaja) {
+		if (utilizacionBaja >= utilizacionAlta) {
+			throw new IllegalArgumentException("La utilizacion baja debe ser menor que la alta");
+		}
+		this.umbralEsperaMs = umbralEsperaMs;
+		this.utilizacionAlta = utilizacionAlta;
+		this.utilizacionBaja = utilizacionBaja;
+	}
+
+	/**
+	 * Configura la histeresis.
+	 *
+	 * @param muestrasParaCrecer
+	 *            muestras seguidas con presion para crecer
+	 * @param muestrasParaReducir
+	 *            muestras seguidas con holgura para decrecer
+	 * @param muestrasEnfriamiento
+	 *            muestras que se ignoran tras un cambio
+	 */
+	public synchronized void setHisteresis(int muestrasParaCrecer, int muestrasParaReducir,
+			int muestrasEnfriamiento) {
+		this.muestrasParaCrecer = Math.max(1, muestrasParaCrecer);
+		this.muestrasParaReducir = Math.max(1, muestrasParaReducir);
+		this.muestrasEnfriamiento = Math.max(0, muestrasEnfriamiento);
+	}
+
+	/**
+	 * Arranca el muestreo periodico en un hilo demonio.
+	 */
+	public synchronized void iniciar() {
+		if (planificador != null) {
+			return;
+		}
+		planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "controlador-tamano-pool");
+			t.setDaemon(true);
+			return t;
+		});
+		anterior = pool.getMetricas().instantanea();
+		pool.getMetricas().reiniciarPicoEnUso();
+		planificador.scheduleWithFixedDelay(this::muestrear, periodoMs, periodoMs, TimeUnit.MILLISECONDS);
+		logger.info("Controlador de tamano del pool iniciado entre {} y {} conexiones", maximoInferior, maximoSuperior);
+	}
+
+	/**
+	 * Detiene el muestreo.
+	 */
+	public synchronized void detener() {
+		if (planificador != null) {
+			planificador.shutdownNow();
+			planificador = null;
+		}
+	}
+
+	/**
+	 * Ultimo tamano maximo aplicado por el controlador, para mantenerlo si se
+	 * recarga la configuracion del pool.
+	 *
+	 * @return tamano maximo, o 0 si aun no ha hecho ningun ajuste
+	 */
+	public int getMaximoAjustado() {
+		return maximoAjustado;
+	}
+
+	/**
+	 * Aplica al pool un tamano maximo ajustado antes (por otro controlador o
+	 * antes de recargar la configuracion), acotado a los limites de este.
+	 *
+	 * @param maximo
+	 *            tamano maximo a aplicar
+	 * @throws SQLException
+	 *             si UCP no admite el nuevo tamano
+	 */
+	public synchronized void reaplicar(int maximo) throws SQLException {
+		int acotado = Math.max(maximoInferior, Math.min(maximoSuperior, maximo));
+		int actual = pool.getTamanoMaximo();
+		if (acotado != actual) {
+			pool.resizePool(Math.min(pool.getTamanoInicial(), acotado), Math.min(pool.getTamanoMinimo(), acotado),
+					acotado);
+			logger.info("Pool redimensionado de {} a {} conexiones al recargar la configuracion", actual, acotado);
+		}
+		maximoAjustado = acotado;
+	}
+
+	/**
+	 * Toma una muestra y ajusta el tamano si procede.
+	 */
+	synchronized void muestrear() {
+		try {
+			MetricasPool metricas = pool.getMetricas();
+			InstantaneaMetricasPool actual = metricas.instantanea();
+			int picoEnUso = metricas.reiniciarPicoEnUso();
+
+			long prestamos = actual.getPrestamos() - anterior.getPrestamos();
+			long agotado = actual.getPoolAgotado() - anterior.getPoolAgotado()
+					+ actual.getTimeouts() - anterior.getTimeouts();
+			double esperaMediaMs = prestamos == 0 ? 0
+					: (actual.getEsperaAcumuladaMicros() - anterior.getEsperaAcumuladaMicros()) / 1000.0 / prestamos;
+			anterior = actual;
+
+			int maximo = pool.getTamanoMaximo();
+			double utilizacion = (double) picoEnUso / maximo;
+
+			if (enfriamiento > 0) {
+				enfriamiento--;
+				return;
+			}
+
+			boolean presion = agotado > 0 || esperaMediaMs >= umbralEsperaMs || utilizacion >= utilizacionAlta;
+			boolean holgura = agotado == 0 && esperaMediaMs < umbralEsperaMs / 2 && utilizacion <= utilizacionBaja;
+			conPresion = presion ? conPresion + 1 : 0;
+			conHolgura = holgura ? conHolgura + 1 : 0;
+
+			if (conPresion >= muestrasParaCrecer && maximo < maximoSuperior) {
+				ajustar(maximo, Math.min(maximo + paso, maximoSuperior), esperaMediaMs, utilizacion);
+			} else if (conHolgura >= muestrasParaReducir && maximo > maximoInferior) {
+				ajustar(maximo, Math.max(maximo - paso, Math.max(maximoInferior, picoEnUso)), esperaMediaMs,
+						utilizacion);
+			}
+		} catch (RuntimeException | SQLException e) {
+			logger.error("Error en el controlador de tamano del pool");
+			logger.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Aplica un nuevo tamano maximo manteniendo inicial y minimo por debajo.
+	 */
+	private void ajustar(int maximo, int nuevoMaximo, double esperaMediaMs, double utilizacion)
+			throws SQLException {
+		if (nuevoMaximo == maximo) {
+			return;
+		}
+		int minimo = Math.min(pool.getTamanoMinimo(), nuevoMaximo);
+		int inicial = Math.min(pool.getTamanoInicial(), nuevoMaximo);
+		pool.resizePool(inicial, minimo, nuevoMaximo);
+		maximoAjustado = nuevoMaximo;
+		conPresion = 0;
+		conHolgura = 0;
+		enfriamiento = muestrasEnfriamiento;
+		logger.info("Pool redimensionado de {} a {} conexiones (espera media {} ms, utilizacion {})", maximo,
+				nuevoMaximo, esperaMediaMs, utilizacion);
+	}
+}
@@ -0,0 +1,289 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lsi.ubu.util.exceptions.ConfirmacionInciertaException;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ejecutor de transacciones que repite las que fallan por un error transitorio
+ * (interbloqueo, fallo de serializacion, conexion perdida o recurso ocupado,
+ * segun {@link SGBDError#isTransient()}). Cada intento debe pedir su propia
+ * conexion al pool y confirmarla o deshacerla entero, de modo que repetirlo
+ * sea seguro; el resto de errores se propagan sin reintentar.
+ * <p>
+ * Entre intentos espera un tiempo que se duplica en cada reintento, hasta
+ * esperaMaximaMs, con una parte aleatoria para que las transacciones que han
+ * chocado no vuelvan a coincidir. Deja de reintentar tras maxIntentos o si la
+ * siguiente espera acabaria despues del plazo, y entonces lanza el ultimo
+ * error. Cuenta los reintentos por tipo de error y los publica por JMX con
+ * {@link #registrarJMX(String)}.
+ * <p>
+ * Si se pierde la conexion durante el commit no se sabe si la transaccion se
+ * confirmo, y al repetirla podria encontrarse sus propios cambios (una reserva
+ * ya hecha se veria como fecha ocupada). Por eso las transacciones confirman
+ * con {@link #confirmar(Connection)}, cuyos errores nunca se reintentan.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class EjecutorTransacciones implements EjecutorTransaccionesMBean {
+
+	/** Dominio JMX. */
+	private static final String DOMINIO_JMX = "lsi.ubu.util";
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(EjecutorTransacciones.class);
+
+	/**
+	 * Transaccion completa que se puede repetir.
+	 *
+	 * @param <T>
+	 *            tipo del resultado
+	 */
+	@FunctionalInterface
+	public interface Transaccion<T> {
+		T ejecutar() throws SQLException;
+	}
+
+	/**
+	 * Transaccion completa sin resultado que se puede repetir.
+	 */
+	@FunctionalInterface
+	public interface TransaccionSinResultado {
+		void ejecutar() throws SQLException;
+	}
+
+	private final int maxIntentos;
+	private final long esperaInicialMs;
+	private final long esperaMaximaMs;
+	private final long plazoMs;
+	private final SGBDErrorUtil traductor = OracleSGBDErrorUtil.getInstance();
+
+	/* Solo se crean en el constructor: despues el mapa unicamente se lee */
+	private final Map<SGBDError, LongAdder> reintentos = new EnumMap<SGBDError, LongAdder>(SGBDError.class);
+
+	private final LongAdder transacciones = new LongAdder();
+	private final LongAdder recuperadas = new LongAdder();
+	private final LongAdder agotadas = new LongAdder();
+	private final LongAdder esperaTotalMs = new LongAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxIntentos
+	 *            numero maximo de intentos de cada transaccion (al menos 1)
+	 * @param esperaInicialMs
+	 *            espera antes del primer reintento
+	 * @param esperaMaximaMs
+	 *            tope de la espera entre intentos
+	 * @param plazoMs
+	 *            tiempo maximo desde el primer intento dentro del que se
+	 *            puede empezar otro
+	 */
+	public EjecutorTransacciones(int maxIntentos, long esperaInicialMs, long esperaMaximaMs, long plazoMs) {
+		if (maxIntentos < 1 || esperaInicialMs < 1 || esperaMaximaMs < esperaInicialMs || plazoMs < 0) {
+			throw new IllegalArgumentException("Parametros del ejecutor de transacciones no validos");
+		}
+		this.maxIntentos = maxIntentos;
+		this.esperaInicialMs = esperaInicialMs;
+		this.esperaMaximaMs = esperaMaximaMs;
+		this.plazoMs = plazoMs;
+		for (SGBDError error : SGBDError.values()) {
+			if (error.isTransient()) {
+				reintentos.put(error, new LongAdder());
+			}
+		}
+	}
+
+	/**
+	 * Ejecuta la transaccion, repitiendola mientras falle por un error
+	 * transitorio y quede plazo.
+	 *
+	 * @param transaccion
+	 *            transaccion a ejecutar
+	 * @return resultado del intento que termina bien
+	 * @throws SQLException
+	 *             el error de la transaccion si no es transitorio, o el del
+	 *             ultimo intento si se agotan los reintentos
+	 */
+	public <T> T ejecutar(Transaccion<T> transaccion) throws SQLException {
+		transacciones.increment();
+		long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(plazoMs);
+		for (int intento = 1;; intento++) {
+			try {
+				T resultado = transaccion.ejecutar();
+				if (intento > 1) {
+					recuperadas.increment();
+				}
+				return resultado;
+			} catch (SQLException e) {
+				SGBDError error = traductor.classify(e);
+				if (!error.isTransient() || e instanceof ConfirmacionInciertaException) {
+					throw e;
+				}
+				long espera = espera(intento);
+				if (intento >= maxIntentos || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(espera) > limite) {
+					agotadas.increment();
+					logger.warn("Transaccion abandonada tras {} intentos por {}: {}", intento, error, e.getMessage());
+					throw e;
+				}
+				reintentos.get(error).increment();
+				esperaTotalMs.add(espera);
+				logger.warn("Reintento {} de la transaccion por {} dentro de {} ms: {}", intento, error, espera,
+						e.getMessage());
+				try {
+					Thread.sleep(espera);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ejecuta una transaccion sin resultado, con los mismos reintentos que
+	 * {@link #ejecutar(Transaccion)}.
+	 *
+	 * @param transaccion
+	 *            transaccion a ejecutar
+	 * @throws SQLException
+	 *             el error de la transaccion si no es transitorio, o el del
+	 *             ultimo intento si se agotan los reintentos
+	 */
+	public void ejecutar(TransaccionSinResultado transaccion) throws SQLException {
+		ejecutar(() -> {
+			transaccion.ejecutar();
+			return null;
+		});
+	}
+
+	/**
+	 * Confirma la transaccion de la conexion. Si el commit falla, la
+	 * transaccion no se repite aunque el error sea transitorio, porque puede
+	 * haberse confirmado igualmente.
+	 *
+	 * @param con
+	 *            conexion de la transaccion
+	 * @throws ConfirmacionInciertaException
+	 *             si falla el commit, con el codigo de error original
+	 */
+	public static void confirmar(Connection con) throws ConfirmacionInciertaException {
+		try {
+			con.commit();
+		} catch (SQLException e) {
+			throw new ConfirmacionInciertaException(e);
+		}
+	}
+
+	/**
+	 * Espera antes del reintento: la mitad fija y la otra mitad aleatoria de
+	 * esperaInicialMs * 2^(intento-1), con tope esperaMaximaMs.
+	 */
+	private long espera(int intento) {
+		long base = esperaMaximaMs;
+		if (intento <= 31) {
+			base = Math.min(esperaMaximaMs, esperaInicialMs << (intento - 1));
+		}
+		return base / 2 + ThreadLocalRandom.current().nextLong(base - base / 2 + 1);
+	}
+
+	/**
+	 * Publica las metricas del ejecutor por JMX.
+	 *
+	 * @param nombre
+	 *            nombre del ejecutor en JMX
+	 */
+	public void registrarJMX(String nombre) {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombreJMX = new ObjectName(DOMINIO_JMX + ":type=EjecutorTransacciones,name=" + nombre);
+			if (!servidor.isRegistered(nombreJMX)) {
+				servidor.registerMBean(this, nombreJMX);
+			}
+		} catch (Exception e) {
+			logger.warn("No se han podido publicar las metricas del ejecutor de transacciones por JMX");
+			logger.warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Reintentos hechos por un tipo de error.
+	 *
+	 * @param error
+	 *            tipo de error
+	 * @return numero de reintentos, 0 si el error no es transitorio
+	 */
+	public long getReintentos(SGBDError error) {
+		LongAdder contador = reintentos.get(error);
+		return contador == null ? 0 : contador.sum();
+	}
+
+	@Override
+	public long getTransacciones() {
+		return transacciones.sum();
+	}
+
+	@Override
+	public long getReintentos() {
+		long total = 0;
+		for (LongAdder contador : reintentos.values()) {
+			total += contador.sum();
+		}
+		return total;
+	}
+
+	@Override
+	public String[] getReintentosPorError() {
+		String[] lineas = new String[reintentos.size()];
+		int i = 0;
+		for (Map.Entry<SGBDError, LongAdder> contador : reintentos.entrySet()) {
+			lineas[i++] = contador.getKey() + "=" + contador.getValue().sum();
+		}
+		return lineas;
+	}
+
+	@Override
+	public long getRecuperadas() {
+		return recuperadas.sum();
+	}
+
+	@Override
+	public long getAgotadas() {
+		return agotadas.sum();
+	}
+
+	@Override
+	public long getEsperaTotalMs() {
+		return esperaTotalMs.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("transacciones=").append(getTransacciones()).append(" reintentos=").append(getReintentos());
+		for (String linea : getReintentosPorError()) {
+			sb.append(' ').append(linea);
+		}
+		sb.append(" recuperadas=").append(getRecuperadas()).append(" agotadas=").append(getAgotadas())
+				.append(" espera=").append(getEsperaTotalMs()).append("ms");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,24 @@
+package lsi.ubu.util;
+
+/**
+ * Interfaz JMX de las metricas del ejecutor de transacciones. Los tiempos se
+ * expresan en milisegundos.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public interface EjecutorTransaccionesMBean {
+
+	long getTransacciones();
+
+	long getReintentos();
+
+	String[] getReintentosPorError();
+
+	long getRecuperadas();
+
+	long getAgotadas();
+
+	long getEsperaTotalMs();
+}
@@ -0,0 +1,135 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Filtro de Bloom de cadenas: conjunto aproximado que nunca da falsos
+ * negativos. Si {@link #puedeContener(String)} devuelve false la cadena no se
+ * anadio nunca; si devuelve true puede que si (con la probabilidad de falsos
+ * positivos indicada al crearlo, mientras no se superen los elementos
+ * esperados). No admite borrados: para quitar elementos hay que construir otro
+ * filtro. Es seguro entre hilos sin bloqueos: los bits se activan con
+ * operaciones atomicas sobre un AtomicLongArray.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class FiltroBloom {
+
+	/** Numero maximo de funciones hash. */
+	private static final int MAX_HASH = 16;
+
+	private final AtomicLongArray bits;
+	private final long numeroBits;
+	private final int numeroHash;
+	private final LongAdder elementos = new LongAdder();
+
+	/**
+	 * Constructor. Calcula el numero de bits y de funciones hash optimos.
+	 *
+	 * @param elementosEsperados
+	 *            numero de elementos que se espera anadir
+	 * @param probabilidadFalsos
+	 *            probabilidad de falsos positivos deseada, entre 0 y 1
+	 */
+	public FiltroBloom(int elementosEsperados, double probabilidadFalsos) {
+		if (elementosEsperados <= 0 || probabilidadFalsos <= 0 || probabilidadFalsos >= 1) {
+			throw new IllegalArgumentException("Parametros del filtro de Bloom no validos");
+		}
+		long m = (long) Math.ceil(-elementosEsperados * Math.log(probabilidadFalsos) / (Math.log(2) * Math.log(2)));
+		int palabras = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+		this.bits = new AtomicLongArray(palabras);
+		this.numeroBits = (long) palabras * 64;
+		int k = (int) Math.round((double) numeroBits / elementosEsperados * Math.log(2));
+		this.numeroHash = Math.max(1, Math.min(MAX_HASH, k));
+	}
+
+	/**
+	 * Anade una cadena al filtro.
+	 *
+	 * @param valor
+	 *            cadena
+	 */
+	public void anadir(String valor) {
+		long hash = hash64(valor);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numeroHash; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, numeroBits);
+			long mascara = 1L << bit;
+			int palabra = (int) (bit >>> 6);
+			if ((bits.get(palabra) & mascara) == 0) {
+				bits.getAndAccumulate(palabra, mascara, (a, b) -> a | b);
+			}
+		}
+		elementos.increment();
+	}
+
+	/**
+	 * Indica si la cadena puede estar en el filtro.
+	 *
+	 * @param valor
+	 *            cadena
+	 * @return false si seguro que no se anadio, true si puede que si
+	 */
+	public boolean puedeContener(String valor) {
+		long hash = hash64(valor);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numeroHash; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, numeroBits);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hash de 64 bits de la cadena (FNV-1a con mezcla final), del que se sacan
+	 * las dos mitades para el doble hashing.
+	 */
+	private static long hash64(String valor) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < valor.length(); i++) {
+			h ^= valor.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public long getNumeroBits() {
+		return numeroBits;
+	}
+
+	public int getNumeroHash() {
+		return numeroHash;
+	}
+
+	/**
+	 * Numero de veces que se ha llamado a anadir (cuenta repetidos).
+	 */
+	public long getElementos() {
+		return elementos.sum();
+	}
+
+	/**
+	 * Probabilidad de falsos positivos estimada con los elementos anadidos.
+	 */
+	public double getProbabilidadFalsos() {
+		return Math.pow(1 - Math.exp(-(double) numeroHash * getElementos() / numeroBits), numeroHash);
+	}
+
+	@Override
+	public String toString() {
+		return "bits=" + numeroBits + " hash=" + numeroHash + " elementos=" + getElementos()
+				+ String.format(" falsos=%.4f", getProbabilidadFalsos());
+	}
+}
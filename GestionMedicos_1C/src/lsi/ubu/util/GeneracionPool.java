@@ -0,0 +1,200 @@
+package lsi.ubu.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import oracle.ucp.admin.UniversalConnectionPoolManagerImpl;
+import oracle.ucp.jdbc.PoolDataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Una generacion del pool de conexiones: un DataSource junto con la cuenta de
+ * conexiones prestadas que aun no se han devuelto. Al recargar la
+ * configuracion se crea una generacion nueva y la anterior se retira: deja de
+ * prestar conexiones y su pool de UCP se destruye cuando se devuelve la
+ * ultima (o, como tarde, al cumplirse el drenaje maximo).
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+class GeneracionPool {
+
+	/** Planificador de los drenajes forzados. */
+	private static ScheduledExecutorService planificador;
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(GeneracionPool.class);
+
+	private final DataSource ds;
+	private final int numero;
+	private final AtomicInteger enUso = new AtomicInteger();
+	private final AtomicBoolean destruida = new AtomicBoolean();
+	private volatile boolean retirada;
+
+	/** Indica si las conexiones son de solo lectura. */
+	private final boolean soloLectura;
+
+	/** Etiquetas de sesion solicitadas en cada prestamo. */
+	private final Properties etiquetasSesion;
+
+	/** Indica si la sesion se configura una sola vez mediante etiquetado de UCP. */
+	private boolean sesionEtiquetada;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ds
+	 *            DataSource de esta generacion
+	 * @param numero
+	 *            numero de generacion
+	 * @param soloLectura
+	 *            si las conexiones son de solo lectura
+	 */
+	GeneracionPool(DataSource ds, int numero, boolean soloLectura) {
+		this.ds = ds;
+		this.numero = numero;
+		this.soloLectura = soloLectura;
+		this.etiquetasSesion = ConfiguracionSesionCallback.etiquetasSesion(soloLectura);
+		registrarConfiguracionSesion();
+	}
+
+	/**
+	 * Registra el callback que configura la sesion de cada conexion fisica una
+	 * unica vez. Si el DataSource no es de UCP, la sesion se configura en cada
+	 * prestamo como antes.
+	 */
+	private void registrarConfiguracionSesion() {
+		if (!(ds instanceof PoolDataSource)) {
+			return;
+		}
+		try {
+			((PoolDataSource) ds).registerConnectionLabelingCallback(new ConfiguracionSesionCallback(soloLectura));
+			sesionEtiquetada = true;
+		} catch (SQLException e) {
+			logger.warn("No se ha podido registrar el callback de sesion, se configura en cada prestamo");
+			logger.warn(e.getMessage());
+		}
+	}
+
+	DataSource getDataSource() {
+		return ds;
+	}
+
+	int getNumero() {
+		return numero;
+	}
+
+	int getEnUso() {
+		return enUso.get();
+	}
+
+	/**
+	 * Presta una conexion con la sesion ya configurada.
+	 *
+	 * @return conexion, o null si la generacion se ha retirado y hay que pedirla
+	 *         a la actual
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	Connection prestar() throws SQLException {
+		enUso.incrementAndGet();
+		if (retirada) {
+			devolver();
+			return null;
+		}
+		Connection conn = null;
+		try {
+			if (sesionEtiquetada) {
+				// UCP solo invoca al callback si la conexion fisica aun no esta configurada
+				conn = ((PoolDataSource) ds).getConnection(etiquetasSesion);
+			} else {
+				conn = ds.getConnection();
+				ConfiguracionSesionCallback.configurarSesion(conn, soloLectura);
+			}
+			return conn;
+		} catch (SQLException | RuntimeException e) {
+			// Si falla la configuracion de la sesion, la conexion vuelve a UCP
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException ignorada) {
+					logger.warn("No se ha podido devolver la conexion a UCP: " + ignorada.getMessage());
+				}
+			}
+			devolver();
+			throw e;
+		}
+	}
+
+	/**
+	 * Anota la devolucion de una conexion prestada por esta generacion.
+	 */
+	void devolver() {
+		if (enUso.decrementAndGet() == 0 && retirada) {
+			destruir();
+		}
+	}
+
+	/**
+	 * Retira la generacion: no presta mas conexiones y se destruye al quedar
+	 * sin conexiones en uso.
+	 *
+	 * @param drenajeMaximoSegundos
+	 *            tiempo maximo de espera a que se devuelvan las conexiones
+	 */
+	void retirar(int drenajeMaximoSegundos) {
+		retirada = true;
+		if (enUso.get() == 0) {
+			destruir();
+		} else {
+			logger.info("Generacion {} del pool retirada con {} conexiones en uso", numero, enUso.get());
+			getPlanificador().schedule(this::destruir, drenajeMaximoSegundos, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Destruye el pool de UCP de esta generacion, una sola vez.
+	 */
+	void destruir() {
+		if (!destruida.compareAndSet(false, true)) {
+			return;
+		}
+		if (enUso.get() > 0) {
+			logger.warn("Generacion {} del pool destruida con {} conexiones sin devolver", numero, enUso.get());
+		}
+		if (ds instanceof PoolDataSource && ((PoolDataSource) ds).getConnectionPoolName() != null) {
+			try {
+				UniversalConnectionPoolManagerImpl.getUniversalConnectionPoolManager()
+						.destroyConnectionPool(((PoolDataSource) ds).getConnectionPoolName());
+				logger.info("Generacion {} del pool drenada y destruida", numero);
+			} catch (Exception e) {
+				logger.warn("No se ha podido destruir la generacion {} del pool: {}", numero, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Planificador compartido, creado bajo demanda en un hilo demonio.
+	 */
+	private static synchronized ScheduledExecutorService getPlanificador() {
+		if (planificador == null) {
+			planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "drenaje-pool");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return planificador;
+	}
+}
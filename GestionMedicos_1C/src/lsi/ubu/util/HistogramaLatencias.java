@@ -0,0 +1,145 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias, seguro para hilos y sin bloqueos, con cubos
+ * logaritmicos en microsegundos (cuatro subcubos por potencia de dos, error
+ * relativo menor del 25%). Permite estimar percentiles sin guardar las
+ * muestras.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class HistogramaLatencias {
+
+	/** Subcubos por cada potencia de dos (en bits). */
+	private static final int BITS_SUBCUBO = 2;
+
+	/** Numero de cubos: cubre hasta 2^40 microsegundos. */
+	private static final int NUM_CUBOS = (41 << BITS_SUBCUBO);
+
+	/** Contadores por cubo. */
+	private final AtomicLongArray cubos = new AtomicLongArray(NUM_CUBOS);
+
+	/** Numero de muestras. */
+	private final AtomicLong total = new AtomicLong();
+
+	/** Suma de las muestras en microsegundos. */
+	private final AtomicLong suma = new AtomicLong();
+
+	/** Maximo observado en microsegundos. */
+	private final AtomicLong maximo = new AtomicLong();
+
+	/**
+	 * Registra una muestra.
+	 *
+	 * @param nanos
+	 *            duracion en nanosegundos
+	 */
+	public void registrar(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		cubos.incrementAndGet(indice(micros));
+		total.incrementAndGet();
+		suma.addAndGet(micros);
+		long max;
+		while (micros > (max = maximo.get()) && !maximo.compareAndSet(max, micros)) {
+			// reintento
+		}
+	}
+
+	/**
+	 * Numero de muestras registradas.
+	 *
+	 * @return numero de muestras
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Suma de todas las muestras.
+	 *
+	 * @return suma en microsegundos
+	 */
+	public long getSumaMicros() {
+		return suma.get();
+	}
+
+	/**
+	 * Media de las muestras.
+	 *
+	 * @return media en milisegundos, 0 si no hay muestras
+	 */
+	public double getMediaMs() {
+		long n = total.get();
+		return n == 0 ? 0 : suma.get() / 1000.0 / n;
+	}
+
+	/**
+	 * Maximo de las muestras.
+	 *
+	 * @return maximo en milisegundos
+	 */
+	public double getMaximoMs() {
+		return maximo.get() / 1000.0;
+	}
+
+	/**
+	 * Estima un percentil como el limite superior del cubo que lo contiene.
+	 *
+	 * @param percentil
+	 *            percentil entre 0 y 100
+	 * @return valor estimado en milisegundos, 0 si no hay muestras
+	 */
+	public double getPercentilMs(double percentil) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long objetivo = (long) Math.ceil(n * percentil / 100.0);
+		long acumulado = 0;
+		for (int i = 0; i < NUM_CUBOS; i++) {
+			acumulado += cubos.get(i);
+			if (acumulado >= Math.max(1, objetivo)) {
+				return Math.min(limiteSuperior(i), maximo.get()) / 1000.0;
+			}
+		}
+		return getMaximoMs();
+	}
+
+	/**
+	 * Cubo que corresponde a un valor.
+	 *
+	 * @param micros
+	 *            valor en microsegundos
+	 * @return indice del cubo
+	 */
+	private static int indice(long micros) {
+		if (micros < (1 << BITS_SUBCUBO)) {
+			return (int) micros;
+		}
+		int exponente = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponente - BITS_SUBCUBO)) & ((1 << BITS_SUBCUBO) - 1);
+		int i = ((exponente - BITS_SUBCUBO + 1) << BITS_SUBCUBO) + sub;
+		return Math.min(i, NUM_CUBOS - 1);
+	}
+
+	/**
+	 * Limite superior (exclusivo) de un cubo.
+	 *
+	 * @param indice
+	 *            indice del cubo
+	 * @return limite en microsegundos
+	 */
+	private static long limiteSuperior(int indice) {
+		if (indice < (1 << BITS_SUBCUBO)) {
+			return indice + 1;
+		}
+		int exponente = (indice >>> BITS_SUBCUBO) + BITS_SUBCUBO - 1;
+		int sub = indice & ((1 << BITS_SUBCUBO) - 1);
+		return (1L << exponente) + ((long) (sub + 1) << (exponente - BITS_SUBCUBO));
+	}
+}
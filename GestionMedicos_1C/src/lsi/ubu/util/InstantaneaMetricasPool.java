@@ -0,0 +1,154 @@
+package lsi.ubu.util;
+
+/**
+ * Instantanea inmutable de las metricas del pool de conexiones. Los tiempos
+ * se expresan en milisegundos.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class InstantaneaMetricasPool {
+
+	private final long instante;
+	private final long prestamos;
+	private final long timeouts;
+	private final long poolAgotado;
+	private final long erroresPrestamo;
+	private final long rechazos;
+	private final int enEspera;
+	private final long esperaAcumuladaMicros;
+	private final double esperaP50Ms;
+	private final double esperaP95Ms;
+	private final double esperaP99Ms;
+	private final double esperaMaximaMs;
+	private final double retencionP50Ms;
+	private final double retencionP95Ms;
+	private final double retencionP99Ms;
+	private final double retencionMaximaMs;
+	private final int conexionesEnUso;
+	private final int conexionesActivas;
+	private final int conexionesDisponibles;
+	private final int picoConexiones;
+	private final int tamanoMaximo;
+
+	InstantaneaMetricasPool(MetricasPool m) {
+		instante = System.currentTimeMillis();
+		prestamos = m.getPrestamos();
+		timeouts = m.getTimeouts();
+		poolAgotado = m.getPoolAgotado();
+		erroresPrestamo = m.getErroresPrestamo();
+		rechazos = m.getRechazos();
+		enEspera = m.getEnEspera();
+		esperaAcumuladaMicros = m.getEsperaAcumuladaMicros();
+		esperaP50Ms = m.getEsperaP50Ms();
+		esperaP95Ms = m.getEsperaP95Ms();
+		esperaP99Ms = m.getEsperaP99Ms();
+		esperaMaximaMs = m.getEsperaMaximaMs();
+		retencionP50Ms = m.getRetencionP50Ms();
+		retencionP95Ms = m.getRetencionP95Ms();
+		retencionP99Ms = m.getRetencionP99Ms();
+		retencionMaximaMs = m.getRetencionMaximaMs();
+		conexionesEnUso = m.getConexionesEnUso();
+		conexionesActivas = m.getConexionesActivas();
+		conexionesDisponibles = m.getConexionesDisponibles();
+		picoConexiones = m.getPicoConexiones();
+		tamanoMaximo = m.getTamanoMaximo();
+	}
+
+	public long getInstante() {
+		return instante;
+	}
+
+	public long getPrestamos() {
+		return prestamos;
+	}
+
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	public long getPoolAgotado() {
+		return poolAgotado;
+	}
+
+	public long getErroresPrestamo() {
+		return erroresPrestamo;
+	}
+
+	public long getRechazos() {
+		return rechazos;
+	}
+
+	public int getEnEspera() {
+		return enEspera;
+	}
+
+	public long getEsperaAcumuladaMicros() {
+		return esperaAcumuladaMicros;
+	}
+
+	public double getEsperaP50Ms() {
+		return esperaP50Ms;
+	}
+
+	public double getEsperaP95Ms() {
+		return esperaP95Ms;
+	}
+
+	public double getEsperaP99Ms() {
+		return esperaP99Ms;
+	}
+
+	public double getEsperaMaximaMs() {
+		return esperaMaximaMs;
+	}
+
+	public double getRetencionP50Ms() {
+		return retencionP50Ms;
+	}
+
+	public double getRetencionP95Ms() {
+		return retencionP95Ms;
+	}
+
+	public double getRetencionP99Ms() {
+		return retencionP99Ms;
+	}
+
+	public double getRetencionMaximaMs() {
+		return retencionMaximaMs;
+	}
+
+	public int getConexionesEnUso() {
+		return conexionesEnUso;
+	}
+
+	public int getConexionesActivas() {
+		return conexionesActivas;
+	}
+
+	public int getConexionesDisponibles() {
+		return conexionesDisponibles;
+	}
+
+	public int getPicoConexiones() {
+		return picoConexiones;
+	}
+
+	public int getTamanoMaximo() {
+		return tamanoMaximo;
+	}
+
+	@Override
+	public String toString() {
+		return "Prestamos=" + prestamos + " Timeouts=" + timeouts + " PoolAgotado=" + poolAgotado
+				+ " Errores=" + erroresPrestamo + " Rechazos=" + rechazos + " EnEspera=" + enEspera + "\n"
+				+ "Espera(ms) p50=" + esperaP50Ms + " p95=" + esperaP95Ms + " p99=" + esperaP99Ms
+				+ " max=" + esperaMaximaMs + "\n"
+				+ "Retencion(ms) p50=" + retencionP50Ms + " p95=" + retencionP95Ms + " p99=" + retencionP99Ms
+				+ " max=" + retencionMaximaMs + "\n"
+				+ "Conexiones enUso=" + conexionesEnUso + " activas=" + conexionesActivas + " disponibles="
+				+ conexionesDisponibles + " pico=" + picoConexiones + " maximo=" + tamanoMaximo;
+	}
+}
@@ -0,0 +1,370 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import oracle.ucp.jdbc.PoolDataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metricas del pool de conexiones: histogramas de espera en el prestamo y de
+ * tiempo de retencion de cada conexion, contadores de prestamos, timeouts y
+ * pool agotado, e indicadores de conexiones activas, disponibles y pico
+ * obtenidos de UCP. Se publican por JMX y mediante {@link #instantanea()}.
+ * <p>
+ * Tambien deciden que prestamos se admiten: un semaforo con tantos permisos
+ * como conexiones maximas mas peticiones que pueden esperar, que se toma al
+ * pedir la conexion y se suelta al devolverla o si el prestamo falla, acota
+ * de forma exacta las peticiones en curso.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class MetricasPool implements MetricasPoolMBean {
+
+	/** Dominio JMX. */
+	private static final String DOMINIO_JMX = "lsi.ubu.util";
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(MetricasPool.class);
+
+	private final HistogramaLatencias espera = new HistogramaLatencias();
+	private final HistogramaLatencias retencion = new HistogramaLatencias();
+	private final LongAdder prestamos = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder poolAgotado = new LongAdder();
+	private final LongAdder erroresPrestamo = new LongAdder();
+	private final LongAdder rechazos = new LongAdder();
+	private final AtomicInteger enEspera = new AtomicInteger();
+	private final AtomicInteger enUso = new AtomicInteger();
+	private final AtomicInteger picoEnUsoIntervalo = new AtomicInteger();
+
+	/** Admision de prestamos: conexiones en uso mas peticiones esperando. */
+	private final Admision admision = new Admision();
+
+	/** Permisos totales de la admision, que siguen al tamano del pool. */
+	private int limiteAdmision;
+
+	/** Tamano maximo del pool con el que se fijaron los permisos. */
+	private volatile int tamanoMaximoAdmision;
+
+	/** DataSource del que se leen los indicadores de UCP. */
+	private volatile DataSource ds;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ds
+	 *            DataSource del pool
+	 */
+	MetricasPool(DataSource ds) {
+		this.ds = ds;
+	}
+
+	/**
+	 * Cambia el DataSource del que se leen los indicadores (al recargar la
+	 * configuracion del pool).
+	 *
+	 * @param ds
+	 *            DataSource en uso
+	 */
+	void setDataSource(DataSource ds) {
+		this.ds = ds;
+	}
+
+	/**
+	 * Publica las metricas en el servidor JMX de la plataforma.
+	 *
+	 * @param nombre
+	 *            nombre del pool
+	 */
+	void registrarJMX(String nombre) {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombreJMX = new ObjectName(DOMINIO_JMX + ":type=PoolDeConexiones,name=" + nombre);
+			if (!servidor.isRegistered(nombreJMX)) {
+				servidor.registerMBean(this, nombreJMX);
+			}
+		} catch (Exception e) {
+			logger.warn("No se han podido publicar las metricas del pool por JMX");
+			logger.warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Anota el inicio de un prestamo y decide si se admite. No toma cerrojos
+	 * ni consulta a UCP: los permisos los fija {@link #ajustarAdmision(int, int)}.
+	 *
+	 * @return true si se admite, false si se rechaza por cola llena
+	 */
+	boolean inicioPrestamo() {
+		if (!admision.tryAcquire()) {
+			poolAgotado.increment();
+			rechazos.increment();
+			return false;
+		}
+		enEspera.incrementAndGet();
+		if (enUso.get() >= tamanoMaximoAdmision) {
+			poolAgotado.increment();
+		}
+		return true;
+	}
+
+	/**
+	 * Fija los permisos de la admision al crear el pool y cada vez que cambia
+	 * su tamano maximo o la cola (redimensionado, controlador de tamano o
+	 * recarga de la configuracion). Con menos permisos, los que faltan se
+	 * descuentan de las devoluciones siguientes.
+	 *
+	 * @param maximo
+	 *            tamano maximo del pool
+	 * @param colaMaxima
+	 *            peticiones que pueden esperar conexion con el pool agotado
+	 */
+	synchronized void ajustarAdmision(int maximo, int colaMaxima) {
+		tamanoMaximoAdmision = maximo;
+		int limite = (int) Math.min(Integer.MAX_VALUE, (long) maximo + colaMaxima);
+		if (limite > limiteAdmision) {
+			admision.release(limite - limiteAdmision);
+		} else if (limite < limiteAdmision) {
+			admision.reducir(limiteAdmision - limite);
+		}
+		limiteAdmision = limite;
+	}
+
+	/**
+	 * Anota un prestamo realizado.
+	 *
+	 * @param nanosEspera
+	 *            tiempo de espera en nanosegundos
+	 */
+	void prestamoRealizado(long nanosEspera) {
+		enEspera.decrementAndGet();
+		prestamos.increment();
+		int usadas = enUso.incrementAndGet();
+		int pico;
+		while (usadas > (pico = picoEnUsoIntervalo.get()) && !picoEnUsoIntervalo.compareAndSet(pico, usadas)) {
+			// reintento
+		}
+		espera.registrar(nanosEspera);
+	}
+
+	/**
+	 * Anota un prestamo fallido, distinguiendo si se agoto el tiempo de espera
+	 * configurado en UCP.
+	 *
+	 * @param nanosEspera
+	 *            tiempo de espera en nanosegundos
+	 * @param e
+	 *            error producido
+	 * @return true si se ha agotado el tiempo de espera
+	 */
+	boolean prestamoFallido(long nanosEspera, SQLException e) {
+		enEspera.decrementAndGet();
+		admision.release();
+		espera.registrar(nanosEspera);
+		DataSource actual = ds;
+		int timeout = (actual instanceof PoolDataSource) ? ((PoolDataSource) actual).getConnectionWaitTimeout() : -1;
+		// Con espera 0 UCP falla en el acto si no hay conexiones libres
+		if ((timeout > 0 && nanosEspera >= TimeUnit.SECONDS.toNanos(timeout))
+				|| (timeout == 0 && enUso.get() >= getTamanoMaximo())) {
+			timeouts.increment();
+			return true;
+		}
+		erroresPrestamo.increment();
+		return false;
+	}
+
+	/**
+	 * Anota la devolucion de una conexion al pool.
+	 *
+	 * @param nanosRetencion
+	 *            tiempo que se ha retenido la conexion
+	 */
+	void devolucion(long nanosRetencion) {
+		enUso.decrementAndGet();
+		admision.release();
+		retencion.registrar(nanosRetencion);
+	}
+
+	/**
+	 * Obtiene el maximo de conexiones en uso simultaneo desde la llamada
+	 * anterior y reinicia la cuenta.
+	 *
+	 * @return pico de conexiones en uso en el intervalo
+	 */
+	int reiniciarPicoEnUso() {
+		return picoEnUsoIntervalo.getAndSet(enUso.get());
+	}
+
+	/**
+	 * Obtiene una instantanea inmutable de las metricas.
+	 *
+	 * @return instantanea
+	 */
+	public InstantaneaMetricasPool instantanea() {
+		return new InstantaneaMetricasPool(this);
+	}
+
+	/**
+	 * Espera acumulada de todos los prestamos.
+	 *
+	 * @return espera acumulada en microsegundos
+	 */
+	public long getEsperaAcumuladaMicros() {
+		return espera.getSumaMicros();
+	}
+
+	@Override
+	public long getPrestamos() {
+		return prestamos.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getPoolAgotado() {
+		return poolAgotado.sum();
+	}
+
+	@Override
+	public long getErroresPrestamo() {
+		return erroresPrestamo.sum();
+	}
+
+	@Override
+	public long getRechazos() {
+		return rechazos.sum();
+	}
+
+	@Override
+	public int getEnEspera() {
+		return enEspera.get();
+	}
+
+	@Override
+	public double getEsperaMediaMs() {
+		return espera.getMediaMs();
+	}
+
+	@Override
+	public double getEsperaP50Ms() {
+		return espera.getPercentilMs(50);
+	}
+
+	@Override
+	public double getEsperaP95Ms() {
+		return espera.getPercentilMs(95);
+	}
+
+	@Override
+	public double getEsperaP99Ms() {
+		return espera.getPercentilMs(99);
+	}
+
+	@Override
+	public double getEsperaMaximaMs() {
+		return espera.getMaximoMs();
+	}
+
+	@Override
+	public double getRetencionMediaMs() {
+		return retencion.getMediaMs();
+	}
+
+	@Override
+	public double getRetencionP50Ms() {
+		return retencion.getPercentilMs(50);
+	}
+
+	@Override
+	public double getRetencionP95Ms() {
+		return retencion.getPercentilMs(95);
+	}
+
+	@Override
+	public double getRetencionP99Ms() {
+		return retencion.getPercentilMs(99);
+	}
+
+	@Override
+	public double getRetencionMaximaMs() {
+		return retencion.getMaximoMs();
+	}
+
+	@Override
+	public int getConexionesEnUso() {
+		return enUso.get();
+	}
+
+	@Override
+	public int getConexionesActivas() {
+		DataSource actual = ds;
+		if (actual instanceof PoolDataSource) {
+			try {
+				return ((PoolDataSource) actual).getBorrowedConnectionsCount();
+			} catch (SQLException e) {
+				return -1;
+			}
+		}
+		return enUso.get();
+	}
+
+	@Override
+	public int getConexionesDisponibles() {
+		DataSource actual = ds;
+		if (actual instanceof PoolDataSource) {
+			try {
+				return ((PoolDataSource) actual).getAvailableConnectionsCount();
+			} catch (SQLException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int getPicoConexiones() {
+		DataSource actual = ds;
+		if (actual instanceof PoolDataSource && ((PoolDataSource) actual).getStatistics() != null) {
+			return ((PoolDataSource) actual).getStatistics().getPeakConnectionsCount();
+		}
+		return -1;
+	}
+
+	@Override
+	public int getTamanoMaximo() {
+		DataSource actual = ds;
+		return (actual instanceof PoolDataSource) ? ((PoolDataSource) actual).getMaxPoolSize() : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Semaforo al que se le pueden quitar permisos.
+	 */
+	private static class Admision extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		Admision() {
+			super(0);
+		}
+
+		void reducir(int permisos) {
+			reducePermits(permisos);
+		}
+	}
+}
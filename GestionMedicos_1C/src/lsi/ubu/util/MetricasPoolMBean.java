@@ -0,0 +1,54 @@
+package lsi.ubu.util;
+
+/**
+ * Interfaz JMX de las metricas del pool de conexiones. Los tiempos se
+ * expresan en milisegundos.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public interface MetricasPoolMBean {
+
+	long getPrestamos();
+
+	long getTimeouts();
+
+	long getPoolAgotado();
+
+	long getErroresPrestamo();
+
+	long getRechazos();
+
+	int getEnEspera();
+
+	double getEsperaMediaMs();
+
+	double getEsperaP50Ms();
+
+	double getEsperaP95Ms();
+
+	double getEsperaP99Ms();
+
+	double getEsperaMaximaMs();
+
+	double getRetencionMediaMs();
+
+	double getRetencionP50Ms();
+
+	double getRetencionP95Ms();
+
+	double getRetencionP99Ms();
+
+	double getRetencionMaximaMs();
+
+	int getConexionesEnUso();
+
+	int getConexionesActivas();
+
+	int getConexionesDisponibles();
+
+	int getPicoConexiones();
+
+	int getTamanoMaximo();
+}
@@ -1,16 +1,29 @@
 package lsi.ubu.util;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import lsi.ubu.util.exceptions.PoolSaturadoException;
+
 import oracle.ucp.jdbc.PoolDataSource;
-import oracle.ucp.jdbc.PoolDataSourceFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,26 +42,47 @@ public class PoolDeConexiones {
 	private static final String FILE_SYSTEM_CONTEXT_FACTORY = "com.sun.jndi.fscontext.RefFSContextFactory";
 	private static final String FILE_RES = "file:./res";
 	private static final String JDBC_TESTDB_DS = "jdbc/testdb_pooled";
+	private static final String NOMBRE_POOL = JDBC_TESTDB_DS.substring(JDBC_TESTDB_DS.indexOf('/') + 1);
+	private static final int COLA_MAXIMA_POR_DEFECTO = 20;
+	
+	/** Nombre del pool general. */
+	public static final String SECCION_ESCRITURA = "escritura";
+	
+	/** Seccion de la configuracion del pool de lectura. */
+	public static final String SECCION_LECTURA = "lectura";
 
-	// Constantes de conexi�n
-	private static final String DRIVER_TYPE = "thin";
-	private static final int PORT = 1521;
-	private static final String SID = "xe";
-	private static final String HOST = "localhost";
-	private static final String USER = "hr";
+	/** Registro de pools con nombre. */
+	private static final ConcurrentHashMap<String, PoolDeConexiones> registro = new ConcurrentHashMap<String, PoolDeConexiones>();
+	
+	/** Seccion de la configuracion de este pool, o null para el general. */
+	private final String seccion;
+	
+	/** Nombre del pool (en UCP y JMX). */
+	private final String nombre;
 	
-	//
-	private static final String CONNECTION_FACTORY = "oracle.jdbc.pool.OracleDataSource";
+	/** Indica si las conexiones son de solo lectura. */
+	private final boolean soloLectura;
 	
-	// Tip: si hay problemas de conexi�n, comprueba que en la BD el password est� en min�sculas,
-	// prueba desde SQL*Plus o SQLDeveloper que efectivamente puedes conectarte con hr/hr.
-	private static final String PASSWORD = "hr"; 
+	/** Generacion actual del pool (DataSource en uso). */
+	private volatile GeneracionPool generacion;
 	
-	/** Pool de conexiones. */
-	private static PoolDeConexiones poolDeConexiones;
+	/** Metricas de uso del pool. */
+	private MetricasPool metricas;
 	
-	/** DataSource. */
-	private DataSource ds;
+	/** Configuracion con la que se ha creado la generacion actual. */
+	private volatile ConfiguracionPool configuracion;
+	
+	/** Peticiones que pueden esperar conexion con el pool agotado. */
+	private volatile int colaMaxima;
+	
+	/** Controlador del tamano maximo, o null si no esta configurado. */
+	private ControladorTamanoPool controlador;
+	
+	/** Indica si ya se ha registrado la parada del controlador al salir. */
+	private boolean paradaRegistrada;
+	
+	/** Sentencias a preparar al calentar una nueva generacion. */
+	private volatile Collection<String> sentenciasCalentamiento = new ArrayList<String>();
 	
 	/** Logger. */
 	private static Logger logger = LoggerFactory.getLogger(PoolDeConexiones.class);
@@ -61,62 +95,327 @@ public class PoolDeConexiones {
 	 *             si no encuentra el el recurso JNDI, y por tanto no logra instanciar el pool 
 	 */
 	private PoolDeConexiones() {	
+		this(null, false);
+	}
+	
+	/**
+	 * Constructor de un pool configurado en una seccion propia del fichero de
+	 * configuracion. Estos pools siempre se crean directamente, sin JNDI.
+	 * 
+	 * @param seccion
+	 *            seccion de la configuracion, o null para el pool general
+	 * @param soloLectura
+	 *            si las conexiones son de solo lectura
+	 * @throws RuntimeException
+	 *             si no logra instanciar el pool 
+	 */
+	private PoolDeConexiones(String seccion, boolean soloLectura) {
+		this.seccion = seccion;
+		this.nombre = seccion == null ? NOMBRE_POOL : NOMBRE_POOL + "_" + seccion;
+		this.soloLectura = soloLectura;
+		
+		DataSource ds = null;
+		configuracion = ConfiguracionPool.cargar().getSeccion(seccion);
+		colaMaxima = COLA_MAXIMA_POR_DEFECTO;
+		if (configuracion.isArranqueDirecto() || seccion != null) {
+			try {
+				colaMaxima = configuracion.getInt(ConfiguracionPool.COLA_MAXIMA, COLA_MAXIMA_POR_DEFECTO);
+				ds = crearDataSource(configuracion, 1);
+				logger.info("Pool " + nombre + " creado directamente desde " + ConfiguracionPool.getFichero());
+			} catch (IllegalArgumentException | SQLException e) {
+				colaMaxima = COLA_MAXIMA_POR_DEFECTO;
+				logger.error("Problema: configuracion del pool " + nombre + " no valida");
+				logger.error(e.getMessage());
+				if (seccion != null) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		
+		boolean recargable = ds != null && configuracion.isRecargaAutomatica();
+		if (ds == null) {
+			ds = buscarJNDI();
+			try {
+				colaMaxima = configuracion.getInt(ConfiguracionPool.COLA_MAXIMA, COLA_MAXIMA_POR_DEFECTO);
+			} catch (IllegalArgumentException e) {
+				logger.error("Problema: " + e.getMessage() + ", se usa una cola de " + COLA_MAXIMA_POR_DEFECTO);
+			}
+		}
+		
+		generacion = new GeneracionPool(ds, 1, soloLectura);
+		metricas = new MetricasPool(ds);
+		metricas.ajustarAdmision(metricas.getTamanoMaximo(), colaMaxima);
+		metricas.registrarJMX(nombre);
+		iniciarControlador(configuracion, 0);
 		
+		if (recargable) {
+			VigilanteConfiguracion.iniciar(ConfiguracionPool.getFichero(), this);
+		}
+	}
+	
+	/**
+	 * Crea el DataSource de una generacion con un nombre de pool propio, para
+	 * poder destruirlo al retirarla.
+	 */
+	private PoolDataSource crearDataSource(ConfiguracionPool configuracion, int numero) throws SQLException {
+		PoolDataSource pds = configuracion.crearDataSource();
+		pds.setConnectionPoolName(nombre + "-" + numero);
+		return pds;
+	}
+	
+	/**
+	 * Busca el DataSource publicado en el contexto JNDI.
+	 * 
+	 * @return DataSource publicado
+	 * @throws RuntimeException
+	 *             si no encuentra el el recurso JNDI, y por tanto no logra instanciar el pool 
+	 */
+	private static DataSource buscarJNDI() {
 		try {
 			Properties properties = new Properties();
 			properties.setProperty(Context.INITIAL_CONTEXT_FACTORY,	FILE_SYSTEM_CONTEXT_FACTORY);
 			properties.setProperty(Context.PROVIDER_URL, FILE_RES);
 			Context context = new InitialContext(properties);
 
-			ds = (DataSource) context.lookup(JDBC_TESTDB_DS);			
+			return (DataSource) context.lookup(JDBC_TESTDB_DS);			
 		
 		} catch (NamingException e) {
 			logger.error("Problema: no se encuentra el nombre del recurso en el contexto JNDI");
 			logger.error(e.getMessage());
 			
-			//La aplicaci�n ya no puede seguir si no se instancia un pool
+			//La aplicacion ya no puede seguir si no se instancia un pool
 			throw new RuntimeException();
 		}
-
-			return;
-		}
+	}
 	
 	/**
-	 * Obtiene la instancia del pool de conexiones si no exist�a.
+	 * Contenedor de la instancia del pool general: la JVM la crea de forma
+	 * perezosa y segura la primera vez que se accede, sin cerrojos despues.
+	 */
+	private static class Contenedor {
+		private static final PoolDeConexiones INSTANCIA = new PoolDeConexiones();
+	}
+	
+	/**
+	 * Obtiene la instancia del pool de conexiones general (de escritura),
+	 * creandola si no exist�a.
 	 * 
+	 * @return pool general
 	 */	
 	public static PoolDeConexiones getInstance() {		
-		
-		if (poolDeConexiones == null) {
-				poolDeConexiones = new PoolDeConexiones();
-		}	
+		return Contenedor.INSTANCIA;
+	}
+	
+	/**
+	 * Obtiene un pool con nombre del registro, creandolo la primera vez con la
+	 * configuracion de su seccion <code>pool.&lt;nombre&gt;.xxx</code> (las
+	 * claves no indicadas se heredan de las generales). Por ejemplo
+	 * {@link #SECCION_LECTURA} o "informes". Si la seccion no esta configurada,
+	 * o el pool no se puede crear, se usa el pool general.
+	 * 
+	 * @param nombre
+	 *            nombre del pool; null o {@link #SECCION_ESCRITURA} para el general
+	 * @return pool con ese nombre
+	 */
+	public static PoolDeConexiones getInstance(String nombre) {
+		if (nombre == null || SECCION_ESCRITURA.equals(nombre)) {
+			return getInstance();
+		}
+		PoolDeConexiones pool = registro.get(nombre);
+		if (pool == null) {
+			pool = registro.computeIfAbsent(nombre, PoolDeConexiones::crearPoolConNombre);
+		}
+		return pool;
+	}
 	
-		return poolDeConexiones;
+	/**
+	 * Crea un pool con nombre para el registro.
+	 */
+	private static PoolDeConexiones crearPoolConNombre(String nombre) {
+		ConfiguracionPool configuracion = ConfiguracionPool.cargar();
+		if (!configuracion.defineSeccion(nombre)) {
+			logger.info("Pool " + nombre + " sin configurar, se usa el general");
+			return getInstance();
+		}
+		try {
+			return new PoolDeConexiones(nombre, configuracion.getSeccion(nombre)
+					.isSoloLectura(SECCION_LECTURA.equals(nombre)));
+		} catch (RuntimeException e) {
+			logger.error("No se puede crear el pool " + nombre + ", se usa el general");
+			return getInstance();
+		}
+	}
+	
+	/**
+	 * Obtiene el pool de conexiones de solo lectura, para consultas que no
+	 * modifican datos. Se configura en la seccion <code>pool.lectura.xxx</code>
+	 * (que puede apuntar a una replica con <code>pool.lectura.url</code>) y
+	 * tiene su propio tamano, de modo que las consultas no quitan conexiones a
+	 * las transacciones de modificacion. Si no hay seccion de lectura
+	 * configurada, o no se puede crear, se usa el pool general.
+	 * 
+	 * @return pool de lectura
+	 */
+	public static PoolDeConexiones getInstanceLectura() {
+		return getInstance(SECCION_LECTURA);
 	}
 	
 	/**
-	 * Obtiene una conexi�n.
+	 * Obtiene una conexi�n. Si todas las conexiones estan en uso, espera como
+	 * mucho <code>pool.esperaMaxima</code> segundos, y solo si no hay ya
+	 * <code>pool.colaMaxima</code> peticiones esperando.
 	 * 
 	 * @return conexi�n
+	 * @throws PoolSaturadoException
+	 *             si la cola de espera esta llena o se agota el tiempo de espera
 	 * @throws SQLException
 	 *             si hay un error con la base de datos
 	 */
 	public Connection getConnection() throws SQLException {
 		Connection conn = null;
-		conn = ds.getConnection();
-
-		conn.setAutoCommit(false);
-		logger.info("Activacion de Autocommit={}", conn.getAutoCommit());
-		conn.setTransactionIsolation(
-			Connection.TRANSACTION_READ_COMMITTED);
-			//Connection.TRANSACTION_SERIALIZABLE);
-		    //No v�lidos en Oracle:
-				// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-				// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-		
-		logger.info(traceConnectionSettings(conn));
+		GeneracionPool actual = null;
+		long inicio = System.nanoTime();
+		if (!metricas.inicioPrestamo()) {
+			throw new PoolSaturadoException(PoolSaturadoException.Motivo.COLA_LLENA, null);
+		}
+		try {
+			// Si la generacion se retira mientras tanto, se pide a la nueva
+			while (conn == null) {
+				actual = generacion;
+				conn = actual.prestar();
+			}
+		} catch (SQLException e) {
+			if (metricas.prestamoFallido(System.nanoTime() - inicio, e)) {
+				throw new PoolSaturadoException(PoolSaturadoException.Motivo.TIEMPO_AGOTADO, e);
+			}
+			throw e;
+		}
+		metricas.prestamoRealizado(System.nanoTime() - inicio);
 
-		return conn;
+		if (logger.isDebugEnabled()) {
+			logger.debug(traceConnectionSettings(conn));
+		}
+
+		return ConexionMedida.envolver(conn, metricas, actual);
+	}
+	
+	/**
+	 * Presta una conexion de una generacion concreta (para calentarla antes
+	 * de ponerla en servicio). No se anota en las metricas, que solo miden
+	 * los prestamos de la aplicacion.
+	 */
+	private Connection getConnection(GeneracionPool destino) throws SQLException {
+		Connection conn = destino.prestar();
+		if (conn == null) {
+			throw new SQLException("Generacion " + destino.getNumero() + " del pool retirada");
+		}
+		return ConexionMedida.envolver(conn, null, destino);
+	}
+	
+	/**
+	 * Recarga la configuracion del pool sin interrumpir el servicio: crea y
+	 * calienta un DataSource nuevo con la configuracion actual del fichero,
+	 * lo sustituye atomicamente por el anterior y drena este ultimo cuando se
+	 * devuelven las conexiones que tenia prestadas.
+	 * 
+	 * @throws SQLException
+	 *             si la nueva configuracion no es valida o no se puede
+	 *             conectar con ella; en ese caso se mantiene la actual
+	 */
+	public synchronized void recargarConfiguracion() throws SQLException {
+		ConfiguracionPool nuevaConfiguracion = ConfiguracionPool.cargar().getSeccion(seccion);
+		int nuevaColaMaxima;
+		int drenajeMaximo;
+		PoolDataSource nuevoDataSource;
+		GeneracionPool anterior = generacion;
+		// Los valores no numericos se detectan antes de tocar el pool en uso
+		try {
+			nuevaColaMaxima = nuevaConfiguracion.getInt(ConfiguracionPool.COLA_MAXIMA, COLA_MAXIMA_POR_DEFECTO);
+			drenajeMaximo = nuevaConfiguracion.getInt(ConfiguracionPool.DRENAJE_MAXIMO, 60);
+			nuevoDataSource = crearDataSource(nuevaConfiguracion, anterior.getNumero() + 1);
+		} catch (IllegalArgumentException e) {
+			throw new SQLException(e.getMessage(), e);
+		}
+		GeneracionPool nueva = new GeneracionPool(nuevoDataSource, anterior.getNumero() + 1, soloLectura);
+
+		if (calentar(nueva, nuevaConfiguracion, sentenciasCalentamiento) == 0) {
+			nueva.destruir();
+			throw new SQLException("No se ha podido abrir ninguna conexion con la nueva configuracion del pool");
+		}
+
+		generacion = nueva;
+		configuracion = nuevaConfiguracion;
+		colaMaxima = nuevaColaMaxima;
+		metricas.setDataSource(nueva.getDataSource());
+		metricas.ajustarAdmision(metricas.getTamanoMaximo(), colaMaxima);
+		// La nueva generacion nace con el tamano del fichero: se le aplica el ajustado
+		iniciarControlador(nuevaConfiguracion, retirarControlador());
+		anterior.retirar(drenajeMaximo);
+
+		logger.info("Configuracion del pool {} recargada (generacion {})", nombre, nueva.getNumero());
+		if (logger.isDebugEnabled()) {
+			logger.debug(traceOracleSettings());
+		}
+	}
+	
+	/**
+	 * Arranca el controlador de tamano si la configuracion lo pide
+	 * (<code>pool.controlador.xxx</code>) y, si habia un tamano maximo
+	 * ajustado por el controlador anterior, lo aplica a la generacion actual.
+	 */
+	private synchronized void iniciarControlador(ConfiguracionPool conf, int maximoAjustado) {
+		if (!conf.isControladorActivo() || !(generacion.getDataSource() instanceof PoolDataSource)) {
+			return;
+		}
+		try {
+			int superior = conf.getInt(ConfiguracionPool.CONTROLADOR_MAXIMO_SUPERIOR, 0);
+			int inferior = conf.getInt(ConfiguracionPool.CONTROLADOR_MAXIMO_INFERIOR,
+					Math.min(getTamanoMaximo(), superior));
+			ControladorTamanoPool nuevo = new ControladorTamanoPool(this, inferior, superior,
+					conf.getInt(ConfiguracionPool.CONTROLADOR_PASO, 2),
+					conf.getInt(ConfiguracionPool.CONTROLADOR_PERIODO, 5000));
+			nuevo.reaplicar(maximoAjustado > 0 ? maximoAjustado : getTamanoMaximo());
+			nuevo.iniciar();
+			controlador = nuevo;
+		} catch (IllegalArgumentException | SQLException e) {
+			logger.error("No se puede iniciar el controlador de tamano del pool " + nombre);
+			logger.error(e.getMessage());
+			return;
+		}
+		if (!paradaRegistrada) {
+			paradaRegistrada = true;
+			Runtime.getRuntime().addShutdownHook(new Thread(this::detenerControlador, "parada-controlador-" + nombre));
+		}
+	}
+	
+	/**
+	 * Detiene el controlador de tamano, si esta en marcha.
+	 */
+	public void detenerControlador() {
+		retirarControlador();
+	}
+	
+	/**
+	 * Detiene el controlador de tamano y devuelve el ultimo tamano maximo que
+	 * aplico, o 0 si no hay controlador o no habia ajustado nada.
+	 */
+	private synchronized int retirarControlador() {
+		if (controlador == null) {
+			return 0;
+		}
+		controlador.detener();
+		int maximo = controlador.getMaximoAjustado();
+		controlador = null;
+		return maximo;
+	}
+	
+	/**
+	 * Obtiene las metricas de uso del pool (tambien publicadas por JMX).
+	 * 
+	 * @return metricas del pool
+	 */
+	public MetricasPool getMetricas() {
+		return metricas;
 	}
 	
 	/**
@@ -138,21 +437,9 @@ public class PoolDeConexiones {
 		
 		Context context = new InitialContext(properties);
 		
-		PoolDataSource  pds = 
-			PoolDataSourceFactory.getPoolDataSource();
-		pds.setConnectionFactoryClassName(CONNECTION_FACTORY);
-		
-		String url = "jdbc:oracle:" + DRIVER_TYPE + ":" + USER + "/" + PASSWORD + "@" + HOST + ":" + PORT + ":" + SID;
-		pds.setURL(url);
-			
-		//// Configuraci�n del pool   
-		pds.setMinPoolSize(3);
-		pds.setMaxPoolSize(10);
-		pds.setInitialPoolSize(5);
-		pds.setTimeToLiveConnectionTimeout(18000);
-		
-		////Activaci�n de la cach� de sentencias prepradas (6 sentencias)
-		pds.setMaxStatements(6);
+		// Por defecto tamano 5/3/10, TTL 18000s y cache de 32 sentencias,
+		// salvo que se indique otra cosa en el fichero de configuracion del pool
+		PoolDataSource pds = ConfiguracionPool.cargar().crearDataSource();
 		
 		context.rebind(JDBC_TESTDB_DS, pds);
 		
@@ -160,6 +447,151 @@ public class PoolDeConexiones {
 		return;
 	}
 
+	/**
+	 * Calienta el pool: abre en paralelo tantas conexiones como el tamano
+	 * inicial y en cada una prepara las sentencias indicadas, de modo que
+	 * queden en la cache de sentencias. Las consultas se ejecutan ademas con
+	 * parametros nulos (sin filas) para que el servidor ya las tenga
+	 * analizadas; las sentencias de modificacion solo se preparan. Si no se
+	 * ha configurado <code>pool.maxSentencias</code>, la cache de sentencias
+	 * se dimensiona para que quepan todas.
+	 * 
+	 * @param sentencias
+	 *            texto SQL de las sentencias a preparar
+	 * @return numero de conexiones calentadas
+	 */
+	public int calentar(Collection<String> sentencias) {
+		sentenciasCalentamiento = new ArrayList<String>(sentencias);
+		return calentar(generacion, configuracion, sentencias);
+	}
+	
+	/**
+	 * Calienta una generacion concreta del pool, creada con la configuracion
+	 * indicada.
+	 */
+	private int calentar(GeneracionPool destino, ConfiguracionPool configuracionDestino,
+			Collection<String> sentencias) {
+		dimensionarCacheSentencias(destino, configuracionDestino, sentencias.size());
+		int conexiones = Math.max(1, ((PoolDataSource) destino.getDataSource()).getInitialPoolSize());
+		ExecutorService hilos = Executors.newFixedThreadPool(conexiones);
+		CountDownLatch prestadas = new CountDownLatch(conexiones);
+		List<Future<Boolean>> resultados = new ArrayList<Future<Boolean>>();
+		long inicio = System.nanoTime();
+
+		for (int i = 0; i < conexiones; i++) {
+			resultados.add(hilos.submit(() -> {
+				Connection conn = null;
+				try {
+					conn = getConnection(destino);
+					prestadas.countDown();
+					prepararSentencias(conn, sentencias);
+					conn.commit();
+					// Se retienen hasta que todas esten prestadas para forzar conexiones distintas
+					prestadas.await(30, TimeUnit.SECONDS);
+					return true;
+				} finally {
+					if (conn == null)
+						prestadas.countDown();
+					else
+						conn.close();
+				}
+			}));
+		}
+
+		int calentadas = 0;
+		for (Future<Boolean> resultado : resultados) {
+			try {
+				if (resultado.get()) {
+					calentadas++;
+				}
+			} catch (Exception e) {
+				logger.warn("Fallo calentando una conexion del pool: " + e.getMessage());
+			}
+		}
+		hilos.shutdown();
+
+		logger.info("Pool calentado: {} conexiones y {} sentencias en {} ms", calentadas, sentencias.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+		return calentadas;
+	}
+	
+	/**
+	 * Ajusta la cache de sentencias al numero de sentencias conocidas, salvo
+	 * que su tamano se haya fijado en la configuracion.
+	 */
+	private static void dimensionarCacheSentencias(GeneracionPool destino, ConfiguracionPool configuracion,
+			int sentencias) {
+		if (configuracion.contiene(ConfiguracionPool.MAX_SENTENCIAS)
+				|| !(destino.getDataSource() instanceof PoolDataSource)) {
+			return;
+		}
+		PoolDataSource pds = (PoolDataSource) destino.getDataSource();
+		try {
+			if (pds.getMaxStatements() < sentencias) {
+				pds.setMaxStatements(sentencias);
+				logger.info("Cache de sentencias dimensionada a {} sentencias", sentencias);
+			}
+		} catch (SQLException e) {
+			logger.warn("No se ha podido dimensionar la cache de sentencias: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Prepara las sentencias en una conexion y ejecuta las consultas sin filas.
+	 */
+	private static void prepararSentencias(Connection conn, Collection<String> sentencias) throws SQLException {
+		for (String sql : sentencias) {
+			PreparedStatement pst = null;
+			ResultSet rs = null;
+			try {
+				// Las llamadas se cachean aparte: se preparan como las preparara la aplicacion
+				pst = sql.trim().startsWith("{") ? conn.prepareCall(sql) : conn.prepareStatement(sql);
+				CacheSentencias.anotar(conn, sql);
+				// Las que avanzan una secuencia o bloquean filas solo se preparan
+				String texto = sql.trim().toLowerCase();
+				if (texto.startsWith("select") && !texto.contains("nextval") && !texto.contains("for update")) {
+					int parametros = sql.length() - sql.replace("?", "").length();
+					for (int i = 1; i <= parametros; i++) {
+						pst.setNull(i, Types.VARCHAR);
+					}
+					rs = pst.executeQuery();
+				}
+			} finally {
+				if (rs != null)
+					rs.close();
+				if (pst != null)
+					pst.close();
+			}
+		}
+	}
+	
+	/**
+	 * Tamano inicial configurado en el pool.
+	 * 
+	 * @return tamano inicial
+	 */
+	public int getTamanoInicial() {
+		return ((PoolDataSource) generacion.getDataSource()).getInitialPoolSize();
+	}
+	
+	/**
+	 * Tamano minimo configurado en el pool.
+	 * 
+	 * @return tamano minimo
+	 */
+	public int getTamanoMinimo() {
+		return ((PoolDataSource) generacion.getDataSource()).getMinPoolSize();
+	}
+	
+	/**
+	 * Tamano maximo configurado en el pool.
+	 * 
+	 * @return tamano maximo
+	 */
+	public int getTamanoMaximo() {
+		return ((PoolDataSource) generacion.getDataSource()).getMaxPoolSize();
+	}
+	
 	/**
 	 * Consulta la configuraci�n de la conexi�n.
 	 * 
@@ -208,9 +640,10 @@ public class PoolDeConexiones {
 	 */	
 	public void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
 
-		((PoolDataSource) ds).setMinPoolSize(minLimit);
-		((PoolDataSource) ds).setMaxPoolSize(maxLimit);
-		((PoolDataSource) ds).setInitialPoolSize(initialLimit);
+		((PoolDataSource) generacion.getDataSource()).setMinPoolSize(minLimit);
+		((PoolDataSource) generacion.getDataSource()).setMaxPoolSize(maxLimit);
+		((PoolDataSource) generacion.getDataSource()).setInitialPoolSize(initialLimit);
+		metricas.ajustarAdmision(maxLimit, colaMaxima);
 		
 		return;
 	}
@@ -225,7 +658,7 @@ public class PoolDeConexiones {
 	 *             si hay un error con la base de datos
 	 */
 	public String traceOracleSettings() throws SQLException {
-		PoolDataSource pds = (PoolDataSource) ds;
+		PoolDataSource pds = (PoolDataSource) generacion.getDataSource();
 		String retorno = "trabajando con OracleDataSource\n";
 		retorno += "Activacion de Cache de Sentencias Preparadas con " + pds.getMaxStatements()+" sentencias \n";
 		
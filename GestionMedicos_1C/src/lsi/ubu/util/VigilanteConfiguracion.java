@@ -0,0 +1,118 @@
+package lsi.ubu.util;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Vigila el fichero de configuracion del pool en un hilo demonio y, cuando
+ * cambia, pide al pool que recargue la configuracion. Agrupa los eventos que
+ * llegan seguidos para no recargar varias veces por una sola edicion.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+class VigilanteConfiguracion implements Runnable {
+
+	/** Tiempo que se espera a que terminen de llegar eventos de una edicion. */
+	private static final long AGRUPACION_MS = 500;
+
+	/** Logger. */
+	private static Logger logger = LoggerFactory.getLogger(VigilanteConfiguracion.class);
+
+	private final Path fichero;
+	private final PoolDeConexiones pool;
+	private final WatchService vigilante;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fichero
+	 *            fichero de configuracion a vigilar
+	 * @param pool
+	 *            pool a recargar
+	 * @throws IOException
+	 *             si no se puede vigilar el directorio del fichero
+	 */
+	private VigilanteConfiguracion(Path fichero, PoolDeConexiones pool) throws IOException {
+		this.fichero = fichero.toAbsolutePath();
+		this.pool = pool;
+		this.vigilante = FileSystems.getDefault().newWatchService();
+		this.fichero.getParent().register(vigilante, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Arranca la vigilancia del fichero.
+	 *
+	 * @param fichero
+	 *            fichero de configuracion
+	 * @param pool
+	 *            pool a recargar
+	 */
+	static void iniciar(Path fichero, PoolDeConexiones pool) {
+		try {
+			Thread hilo = new Thread(new VigilanteConfiguracion(fichero, pool), "vigilante-configuracion-pool");
+			hilo.setDaemon(true);
+			hilo.start();
+			logger.info("Vigilando cambios en " + fichero);
+		} catch (IOException e) {
+			logger.error("No se puede vigilar el fichero de configuracion " + fichero);
+			logger.error(e.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey clave = vigilante.take();
+				boolean cambiado = afectaAlFichero(clave);
+				clave.reset();
+				if (!cambiado) {
+					continue;
+				}
+
+				// Se descartan los eventos de la misma edicion
+				Thread.sleep(AGRUPACION_MS);
+				WatchKey siguiente;
+				while ((siguiente = vigilante.poll()) != null) {
+					siguiente.pollEvents();
+					siguiente.reset();
+				}
+
+				try {
+					pool.recargarConfiguracion();
+				} catch (Exception e) {
+					logger.error("No se ha podido recargar la configuracion del pool, se mantiene la actual");
+					logger.error(e.getMessage());
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			logger.info("Fin de la vigilancia de " + fichero);
+		}
+	}
+
+	/**
+	 * Comprueba si alguno de los eventos se refiere al fichero vigilado.
+	 */
+	private boolean afectaAlFichero(WatchKey clave) {
+		boolean afecta = false;
+		for (WatchEvent<?> evento : clave.pollEvents()) {
+			Object contexto = evento.context();
+			if (contexto instanceof Path && fichero.getFileName().equals(contexto)) {
+				afecta = true;
+			}
+		}
+		return afecta;
+	}
+}
@@ -0,0 +1,28 @@
+package lsi.ubu.util.exceptions;
+
+import java.sql.SQLException;
+
+/**
+ * Excepcion lanzada cuando falla el commit de una transaccion. Si se ha
+ * perdido la conexion no se sabe si la base de datos llego a confirmarla, asi
+ * que no se debe repetir: conserva el mensaje, el SQLState y el codigo de error
+ * del original para que se traduzca igual que este.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class ConfirmacionInciertaException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param causa
+	 *            error devuelto por el commit
+	 */
+	public ConfirmacionInciertaException(SQLException causa) {
+		super(causa.getMessage(), causa.getSQLState(), causa.getErrorCode(), causa);
+	}
+}
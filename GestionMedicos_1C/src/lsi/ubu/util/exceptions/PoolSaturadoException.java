@@ -0,0 +1,48 @@
+package lsi.ubu.util.exceptions;
+
+import java.sql.SQLException;
+
+/**
+ * Excepcion lanzada por el pool de conexiones cuando no puede atender una
+ * peticion: la cola de espera esta llena o se ha agotado el tiempo maximo de
+ * espera de una conexion. Permite distinguir la saturacion del sistema de
+ * los errores de la base de datos.
+ *
+ * @author <a href="mailto:ecl1009@alu.ubu.es">Eduardo Manuel Cabeza Lopez</a>
+ * @version 1.1
+ * @since 1.1
+ */
+public class PoolSaturadoException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Motivo del rechazo. */
+	public enum Motivo {
+		COLA_LLENA, // Demasiadas peticiones esperando conexion
+		TIEMPO_AGOTADO; // No se ha liberado ninguna conexion a tiempo
+	}
+
+	private final Motivo motivo;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param motivo
+	 *            motivo del rechazo
+	 * @param causa
+	 *            excepcion original del pool, o null
+	 */
+	public PoolSaturadoException(Motivo motivo, Throwable causa) {
+		super("Pool de conexiones saturado: " + motivo, causa);
+		this.motivo = motivo;
+	}
+
+	/**
+	 * Motivo del rechazo.
+	 *
+	 * @return motivo
+	 */
+	public Motivo getMotivo() {
+		return motivo;
+	}
+}
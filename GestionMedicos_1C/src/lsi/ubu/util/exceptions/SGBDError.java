@@ -12,7 +12,29 @@ public enum SGBDError {
 	FK_VIOLATED, // Violacin de clave fornea
 	PK_VIOLATED, // Violacin de clave primaria
 	NOT_EXISTS_SEQUENCE, // No existe la secuencia utilizada
+	DEADLOCK, // Interbloqueo entre transacciones (transitorio)
+	SERIALIZATION_FAILURE, // Fallo de serializacin (transitorio)
+	CONNECTION_LOST, // Conexin perdida o cerrada por el servidor (transitorio)
+	RESOURCE_BUSY, // Recurso ocupado por otra sesin (transitorio)
 	// Aadir antes de esta lnea si fuera necesario
 	
 	UNKNOWN; // No determinado.
+
+	/**
+	 * Indica si el error es transitorio, es decir, si la misma transaccin
+	 * puede terminar bien si se repite desde el principio.
+	 * 
+	 * @return true si es transitorio
+	 */
+	public boolean isTransient() {
+		switch (this) {
+		case DEADLOCK:
+		case SERIALIZATION_FAILURE:
+		case CONNECTION_LOST:
+		case RESOURCE_BUSY:
+			return true;
+		default:
+			return false;
+		}
+	}
 }
\ No newline at end of file
@@ -29,4 +29,14 @@ public interface SGBDErrorUtil {
 	 * @return true si coinciden, false en caso contrario
 	 */
 	boolean checkExceptionToCode(SQLException ex, SGBDError error);	
+	
+	/**
+	 * Clasifica la excepcin: traduce su cdigo de error y, si no es un error
+	 * transitorio, busca uno en sus excepciones encadenadas y en sus causas
+	 * (un executeBatch, por ejemplo, puede envolver el error real).
+	 * 
+	 * @param ex excepcin con cdigo interno de la base de datos
+	 * @return el tipo de error; si hay alguno transitorio, ese
+	 */
+	SGBDError classify(SQLException ex);
 } 
\ No newline at end of file
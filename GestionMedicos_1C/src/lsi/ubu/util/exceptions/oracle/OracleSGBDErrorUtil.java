@@ -1,6 +1,9 @@
 package lsi.ubu.util.exceptions.oracle;
 
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import lsi.ubu.util.exceptions.SGBDError;
 import lsi.ubu.util.exceptions.SGBDErrorUtil;
@@ -20,8 +23,44 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	private static final int PK_VIOLATED = 1;
 	private static final int FK_VIOLATED = 2291;
 	private static final int NOT_EXISTS_SEQUENCE = 2289;
+	private static final int DEADLOCK = 60;
+	private static final int SERIALIZATION_FAILURE = 8177;
+	private static final int RESOURCE_BUSY_NOWAIT = 54;
+	private static final int RESOURCE_BUSY_TIMEOUT = 30006;
+	private static final int SESSION_KILLED = 28;
+	private static final int NOT_LOGGED_ON = 1012;
+	private static final int SHUTDOWN_IN_PROGRESS = 1089;
+	private static final int END_OF_FILE_CHANNEL = 3113;
+	private static final int NOT_CONNECTED = 3114;
+	private static final int CONNECTION_LOST_CONTACT = 3135;
+	private static final int NO_LISTENER = 12541;
+	// Cdigos del driver JDBC (no del servidor)
+	private static final int IO_ERROR = 17002;
+	private static final int CLOSED_CONNECTION = 17008;
+	private static final int NO_MORE_DATA = 17410;
 	// Aadir segn sea necesario, por parte del alumno...
 
+	/** Mximo de excepciones encadenadas que revisa classify. */
+	private static final int MAX_CAUSAS = 16;
+
+	/** nica instancia: no tiene estado, se comparte entre hilos. */
+	private static final OracleSGBDErrorUtil INSTANCIA = new OracleSGBDErrorUtil();
+
+	/**
+	 * Constructor privado, siguiendo el patrn de diseo Singleton.
+	 */
+	private OracleSGBDErrorUtil() {
+	}
+
+	/**
+	 * Devuelve la instancia compartida.
+	 * 
+	 * @return traductor de errores de Oracle
+	 */
+	public static OracleSGBDErrorUtil getInstance() {
+		return INSTANCIA;
+	}
+
 	/**
 	 * {@inheritDoc}.
 	 * 
@@ -46,6 +85,24 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 			return SGBDError.PK_VIOLATED;
 		case NOT_EXISTS_SEQUENCE:
 			return SGBDError.NOT_EXISTS_SEQUENCE;
+		case DEADLOCK:
+			return SGBDError.DEADLOCK;
+		case SERIALIZATION_FAILURE:
+			return SGBDError.SERIALIZATION_FAILURE;
+		case RESOURCE_BUSY_NOWAIT:
+		case RESOURCE_BUSY_TIMEOUT:
+			return SGBDError.RESOURCE_BUSY;
+		case SESSION_KILLED:
+		case NOT_LOGGED_ON:
+		case SHUTDOWN_IN_PROGRESS:
+		case END_OF_FILE_CHANNEL:
+		case NOT_CONNECTED:
+		case CONNECTION_LOST_CONTACT:
+		case NO_LISTENER:
+		case IO_ERROR:
+		case CLOSED_CONNECTION:
+		case NO_MORE_DATA:
+			return SGBDError.CONNECTION_LOST;
 		}
 		return SGBDError.UNKNOWN;
 	}
@@ -61,6 +118,42 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	 */
 	@Override
 	public boolean checkExceptionToCode(SQLException ex, SGBDError error) {
-		return new OracleSGBDErrorUtil().translate(ex.getErrorCode()) == error;
+		return translate(ex.getErrorCode()) == error;
+	}
+
+	/**
+	 * {@inheritDoc}. Una SQLRecoverableException sin cdigo conocido se
+	 * considera una conexin perdida.
+	 * 
+	 * @param ex
+	 *            {@inheritDoc}
+	 * @return {@inheritDoc}
+	 */
+	@Override
+	public SGBDError classify(SQLException ex) {
+		SGBDError error = translate(ex.getErrorCode());
+		Deque<Throwable> pendientes = new ArrayDeque<Throwable>();
+		pendientes.add(ex);
+		// Se limita el recorrido por si las cadenas de excepciones tienen ciclos
+		for (int revisadas = 0; !pendientes.isEmpty() && revisadas < MAX_CAUSAS; revisadas++) {
+			Throwable t = pendientes.poll();
+			if (t instanceof SQLException) {
+				SQLException sqle = (SQLException) t;
+				SGBDError causa = translate(sqle.getErrorCode());
+				if (causa == SGBDError.UNKNOWN && sqle instanceof SQLRecoverableException) {
+					causa = SGBDError.CONNECTION_LOST;
+				}
+				if (causa.isTransient()) {
+					return causa;
+				}
+				if (sqle.getNextException() != null) {
+					pendientes.add(sqle.getNextException());
+				}
+			}
+			if (t.getCause() != null && t.getCause() != t) {
+				pendientes.add(t.getCause());
+			}
+		}
+		return error;
 	}
 }
\ No newline at end of file